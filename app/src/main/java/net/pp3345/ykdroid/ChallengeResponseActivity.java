@@ -1,9 +1,7 @@
 package net.pp3345.ykdroid;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -13,7 +11,10 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import net.pp3345.ykdroid.yubikey.Slot;
-import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.SlotNotProgrammedException;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.concurrent.Future;
 
 /**
  * May be invoked by Android apps using the
@@ -26,6 +27,18 @@ import net.pp3345.ykdroid.yubikey.UsbYubiKey;
  * challenge. ykDroid will use this identifier to remember and pre-select the slot used for each
  * purpose.
  * </p>
+ * <p>
+ * Callers that expect to send the same challenge repeatedly within a short time may pass an extra
+ * <code>boolean cacheResponse</code> set to true. The response is then kept in memory for a short
+ * time and returned without another request to the YubiKey if the same app sends the same
+ * challenge again to the same YubiKey and slot. Responses are never shared between apps, and only
+ * apps that start this activity for a result can use the cache. The cache is wiped when the screen
+ * is turned off or a YubiKey is unplugged.
+ * </p>
+ * <p>
+ * If multiple YubiKeys are connected, the challenge is sent to all of them and the first response
+ * is returned.
+ * </p>
  */
 public class ChallengeResponseActivity extends Activity implements ConnectionManager.YubiKeyConnectReceiver, ConnectionManager.YubiKeyUsbUnplugReceiver, AdapterView.OnItemSelectedListener {
 	private ConnectionManager connectionManager;
@@ -33,6 +46,10 @@ public class ChallengeResponseActivity extends Activity implements ConnectionMan
 	private Slot selectedSlot;
 	private String purpose;
 	private byte[] challenge;
+	private ResponseCache responseCache;
+	private String caller;
+	private Future<byte[]> pendingRequest;
+	private YubiKey connectedYubiKey;
 
 	@Override
 	protected void onCreate(final Bundle savedInstanceState) {
@@ -68,6 +85,11 @@ public class ChallengeResponseActivity extends Activity implements ConnectionMan
 		}
 
 		this.purpose = this.getIntent().getStringExtra("purpose");
+
+		// Cached responses are scoped to the calling app, which is only known when a result is expected
+		this.caller = this.getCallingPackage();
+		if (this.caller != null && this.getIntent().getBooleanExtra("cacheResponse", false))
+			this.responseCache = ResponseCache.getInstance(this);
 		this.selectedSlot = this.slotPreferenceManager.getPreferredSlot(this.purpose, Slot.CHALLENGE_HMAC_1);
 
 		final Spinner slotSelection = this.findViewById(R.id.slotSelection);
@@ -88,48 +110,86 @@ public class ChallengeResponseActivity extends Activity implements ConnectionMan
 
 	@Override
 	public void onYubiKeyConnected(final YubiKey yubiKey) {
-		if (yubiKey instanceof UsbYubiKey)
-			((TextView) this.findViewById(R.id.info)).setText(R.string.press_button);
+		this.connectedYubiKey = yubiKey;
+
+		// Replaces the request to attach the YubiKey until it responds or waits for the user
+		((TextView) this.findViewById(R.id.info)).setText(R.string.communicating_with_yubikey);
 		this.findViewById(R.id.slotSelection).setVisibility(View.GONE);
 
-		@SuppressLint("StaticFieldLeak") // Leaks can't occur as the task will eventually timeout
-		final AsyncTask<Void, Void, byte[]> challengeResponseTask = new AsyncTask<Void, Void, byte[]>() {
-			private Exception executionException;
+		final Slot          slot          = this.selectedSlot;
+		final byte[]        challenge     = this.challenge;
+		final ResponseCache responseCache = this.responseCache;
+		final String        caller        = this.caller;
 
+		// Only ask the user to press the button once a YubiKey actually waits for it
+		final YubiKey.TouchListener touchListener = new YubiKey.TouchListener() {
 			@Override
-			protected byte[] doInBackground(final Void... nothing) {
-				try {
-					return yubiKey.challengeResponse(ChallengeResponseActivity.this.selectedSlot, ChallengeResponseActivity.this.challenge);
-				} catch (final Exception e) {
-					this.executionException = e;
-					return null;
-				}
+			public void onTouchPending() {
+				ChallengeResponseActivity.this.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						((TextView) ChallengeResponseActivity.this.findViewById(R.id.info)).setText(R.string.press_button);
+					}
+				});
 			}
+		};
 
+		// Send the challenge to all connected YubiKeys, the first one to respond wins
+		this.pendingRequest = YubiKeyFanOut.execute(this.connectionManager.getYubiKeys(), new YubiKey.Operation<byte[]>() {
 			@Override
-			protected void onPostExecute(final byte[] bytes) {
-				super.onPostExecute(bytes);
-
-				if (this.executionException == null) {
-					ChallengeResponseActivity.this.slotPreferenceManager.setPreferredSlot(ChallengeResponseActivity.this.purpose, ChallengeResponseActivity.this.selectedSlot);
-
-					final Intent result = new Intent();
-					result.putExtra("response", bytes);
-					ChallengeResponseActivity.this.setResult(RESULT_OK, result);
-					ChallengeResponseActivity.this.finish();
-				} else {
-					Log.e("ykDroid", "Error during challenge-response request", this.executionException);
+			public byte[] execute(final YubiKey yubiKey) throws YubiKeyException {
+				if (responseCache != null)
+					return responseCache.challengeResponse(caller, yubiKey, slot, challenge, 0, touchListener);
 
-					ChallengeResponseActivity.this.connectionManager.waitForYubiKeyUnplug(ChallengeResponseActivity.this);
-					ChallengeResponseActivity.this.showError();
+				return yubiKey.challengeResponse(slot, challenge, 0, touchListener);
+			}
+		}, new YubiKey.OperationCallback<byte[]>() {
+			@Override
+			public void onSuccess(final byte[] response) {
+				ChallengeResponseActivity.this.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						ChallengeResponseActivity.this.slotPreferenceManager.setPreferredSlot(ChallengeResponseActivity.this.purpose, ChallengeResponseActivity.this.selectedSlot);
+
+						final Intent result = new Intent();
+						result.putExtra("response", response);
+						ChallengeResponseActivity.this.setResult(RESULT_OK, result);
+						ChallengeResponseActivity.this.finish();
+					}
+				});
+			}
 
-					((TextView) ChallengeResponseActivity.this.findViewById(R.id.info)).setText(R.string.unplug_yubikey);
-				}
+			@Override
+			public void onError(final YubiKeyException e) {
+				ChallengeResponseActivity.this.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Log.e("ykDroid", "Error during challenge-response request", e);
+
+						if (e instanceof SlotNotProgrammedException) {
+							// No need to unplug the YubiKey, let the user pick another slot instead
+							((TextView) ChallengeResponseActivity.this.findViewById(R.id.info)).setText(R.string.slot_not_programmed);
+							ChallengeResponseActivity.this.findViewById(R.id.slotSelection).setVisibility(View.VISIBLE);
+							return;
+						}
+
+						ChallengeResponseActivity.this.connectionManager.waitForYubiKeyUnplug(ChallengeResponseActivity.this);
+						ChallengeResponseActivity.this.showError();
+
+						((TextView) ChallengeResponseActivity.this.findViewById(R.id.info)).setText(R.string.unplug_yubikey);
+					}
+				});
 			}
-		};
-		this.findViewById(R.id.slotSelection).setVisibility(View.GONE);
+		});
+	}
 
-		challengeResponseTask.execute();
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		// Don't keep the YubiKey busy for a result nobody is waiting for anymore, cancelling resets it
+		if (this.pendingRequest != null)
+			this.pendingRequest.cancel(true);
 	}
 
 	@Override
@@ -149,6 +209,10 @@ public class ChallengeResponseActivity extends Activity implements ConnectionMan
 			default:
 				throw new IllegalStateException();
 		}
+
+		// Retry with the newly selected slot if the previously selected one was not programmed
+		if (this.connectedYubiKey != null && this.pendingRequest != null && this.pendingRequest.isDone())
+			this.onYubiKeyConnected(this.connectedYubiKey);
 	}
 
 	@Override
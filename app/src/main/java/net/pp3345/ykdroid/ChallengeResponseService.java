@@ -0,0 +1,189 @@
+package net.pp3345.ykdroid;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import net.pp3345.ykdroid.yubikey.ConnectionLostException;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Bound service that serves challenge-response requests of other apps without showing any UI, as
+ * long as a YubiKey is attached via USB and ykDroid was granted permission to access it. The
+ * connection to the YubiKey is kept open by the {@link DeviceRegistry} until the YubiKey is
+ * unplugged.
+ * <p>
+ * Clients must hold the <code>net.pp3345.ykdroid.permission.CHALLENGE_RESPONSE</code> permission
+ * and bind to the <code>"net.pp3345.ykdroid.intent.action.BIND_CHALLENGE_RESPONSE"</code> intent,
+ * see {@link IChallengeResponseService}. Requests that require user interaction are answered with
+ * a {@link PendingIntent} starting the {@link ChallengeResponseActivity}.
+ * </p>
+ * <p>
+ * The user is not asked to confirm requests: any app that was granted the permission can obtain
+ * responses for arbitrary challenges while a YubiKey is attached, limited only by slots that
+ * require touch. The permission is therefore <code>dangerous</code>, so that it has to be granted
+ * explicitly, and its description tells the user as much.
+ * </p>
+ */
+public class ChallengeResponseService extends Service {
+	/**
+	 * Time a request may take including waiting for the user to press the button. Requests are
+	 * answered without UI, so a user who doesn't notice them must not keep the YubiKey busy.
+	 */
+	private static final long REQUEST_TIMEOUT_MS = 30000;
+
+	private DeviceRegistry deviceRegistry;
+
+	/**
+	 * A request that is being executed. Forwards the result to the client and cancels the request
+	 * if the client dies.
+	 */
+	private class PendingRequest implements YubiKey.OperationCallback<byte[]>, YubiKey.TouchListener, IBinder.DeathRecipient {
+		private final UsbYubiKey                 yubiKey;
+		private final IChallengeResponseCallback callback;
+		private       Future<byte[]>             future;
+		private       boolean                    clientDied;
+
+		PendingRequest(final UsbYubiKey yubiKey, final IChallengeResponseCallback callback) {
+			this.yubiKey = yubiKey;
+			this.callback = callback;
+		}
+
+		void start(final Slot slot, final byte[] challenge) {
+			try {
+				this.callback.asBinder().linkToDeath(this, 0);
+			} catch (final RemoteException e) {
+				// The client died already
+				return;
+			}
+
+			final Future<byte[]> future = this.yubiKey.executeAsync(new YubiKey.Operation<byte[]>() {
+				@Override
+				public byte[] execute(final YubiKey yubiKey) throws YubiKeyException {
+					return yubiKey.challengeResponse(slot, challenge, REQUEST_TIMEOUT_MS, PendingRequest.this);
+				}
+			}, this);
+
+			synchronized (this) {
+				this.future = future;
+
+				if (this.clientDied)
+					future.cancel(true);
+			}
+		}
+
+		@Override
+		public void binderDied() {
+			final Future<byte[]> future;
+
+			synchronized (this) {
+				this.clientDied = true;
+				future = this.future;
+			}
+
+			// Resets the YubiKey instead of waiting for a touch nobody asked for anymore
+			if (future != null)
+				future.cancel(true);
+		}
+
+		@Override
+		public void onTouchPending() {
+			try {
+				this.callback.onTouchPending();
+			} catch (final RemoteException ignored) {
+			}
+		}
+
+		@Override
+		public void onSuccess(final byte[] response) {
+			this.callback.asBinder().unlinkToDeath(this, 0);
+
+			try {
+				this.callback.onResponse(response);
+			} catch (final RemoteException ignored) {
+			}
+		}
+
+		@Override
+		public void onError(final YubiKeyException e) {
+			this.callback.asBinder().unlinkToDeath(this, 0);
+
+			if (e instanceof ConnectionLostException)
+				ChallengeResponseService.this.deviceRegistry.invalidate(this.yubiKey);
+
+			try {
+				this.callback.onError(e.getClass().getSimpleName());
+			} catch (final RemoteException ignored) {
+			}
+		}
+	}
+
+	private final IChallengeResponseService.Stub binder = new IChallengeResponseService.Stub() {
+		@Override
+		public void challengeResponse(final int slot, final byte[] challenge, final IChallengeResponseCallback callback) {
+			ChallengeResponseService.this.challengeResponse(slot, challenge, callback);
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		this.deviceRegistry = DeviceRegistry.getInstance(this);
+	}
+
+	@Override
+	public IBinder onBind(final Intent intent) {
+		return this.binder;
+	}
+
+	private void challengeResponse(final int slotNumber, final byte[] challenge, final IChallengeResponseCallback callback) {
+		final Slot slot;
+		switch (slotNumber) {
+			case 1:
+				slot = Slot.CHALLENGE_HMAC_1;
+				break;
+			case 2:
+				slot = Slot.CHALLENGE_HMAC_2;
+				break;
+			default:
+				// Passed on to the client by the Binder
+				throw new IllegalArgumentException("Invalid slot " + slotNumber);
+		}
+
+		if (challenge == null || challenge.length == 0 || challenge.length > 64)
+			throw new IllegalArgumentException("Invalid challenge");
+
+		final UsbYubiKey yubiKey = this.deviceRegistry.getAnyYubiKey();
+
+		if (yubiKey == null) {
+			try {
+				callback.onUserInteractionRequired(this.createActivityIntent(challenge));
+			} catch (final RemoteException ignored) {
+				// The client died
+			}
+			return;
+		}
+
+		new PendingRequest(yubiKey, callback).start(slot, challenge);
+	}
+
+	private PendingIntent createActivityIntent(final byte[] challenge) {
+		final Intent intent = new Intent(this, ChallengeResponseActivity.class);
+		intent.putExtra("challenge", challenge);
+		// PendingIntents only differ by their data, not their extras: without a unique Uri, clients
+		// would share a single PendingIntent and could receive each other's challenge
+		intent.setData(Uri.fromParts("ykdroid", UUID.randomUUID().toString(), null));
+
+		return PendingIntent.getActivity(this, 0, intent, Build.VERSION.SDK_INT >= 23 ? PendingIntent.FLAG_IMMUTABLE : 0);
+	}
+}
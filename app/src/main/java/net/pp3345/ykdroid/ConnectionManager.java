@@ -16,15 +16,30 @@ import android.nfc.tech.IsoDep;
 import android.os.Build;
 import android.os.Bundle;
 
+import net.pp3345.ykdroid.yubikey.IsoDepTransport;
+import net.pp3345.ykdroid.yubikey.MetricsListener;
+import net.pp3345.ykdroid.yubikey.NfcTransport;
 import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.PhaseTracer;
 import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.trace.RecordingNfcTransport;
+import net.pp3345.ykdroid.yubikey.trace.Trace;
+import net.pp3345.ykdroid.yubikey.trace.TraceWriter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Manages the lifecycle of a YubiKey connection via USB or NFC.
+ * Manages the lifecycle of YubiKey connections via USB or NFC. All YubiKeys that become accessible
+ * while the activity is started are tracked, see {@link #getYubiKeys()}.
  */
 class ConnectionManager extends BroadcastReceiver implements Application.ActivityLifecycleCallbacks {
-	private final Activity activity;
-	private       boolean  isActivityResumed;
+	private final Activity       activity;
+	private final DeviceRegistry deviceRegistry;
+	private final TraceRecorder  traceRecorder;
+	private       boolean        isActivityResumed;
 
 	private static final String ACTION_USB_PERMISSION_REQUEST = "net.pp3345.ykdroid.intent.action.USB_PERMISSION_REQUEST";
 
@@ -37,8 +52,13 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 	 */
 	public static final byte CONNECTION_METHOD_NFC = 0b10;
 
-	private YubiKeyConnectReceiver   connectReceiver;
-	private YubiKeyUsbUnplugReceiver unplugReceiver;
+	private final Map<String, UsbYubiKey>  usbYubiKeys     = new LinkedHashMap<>();
+	private       NfcYubiKey               nfcYubiKey;
+	private       TraceWriter              nfcTrace;
+	private       boolean                  isReceiverRegistered;
+	private       YubiKeyConnectReceiver   connectReceiver;
+	private       YubiKeyUsbUnplugReceiver unplugReceiver;
+	private       MetricsListener          metricsListener = MetricsListener.NO_OP;
 
 	/**
 	 * Receiver interface that is called when a YubiKey was connected.
@@ -72,9 +92,21 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 	 */
 	ConnectionManager(final Activity activity) {
 		this.activity = activity;
+		this.deviceRegistry = DeviceRegistry.getInstance(activity);
+		this.traceRecorder = new TraceRecorder(activity);
 		this.activity.getApplication().registerActivityLifecycleCallbacks(this);
 	}
 
+	/**
+	 * Sets the listener that receives performance metrics of the connection management and of
+	 * the YubiKey drivers instantiated by it.
+	 *
+	 * @param listener The listener or null, if metrics should be discarded.
+	 */
+	public void setMetricsListener(final MetricsListener listener) {
+		this.metricsListener = listener == null ? MetricsListener.NO_OP : listener;
+	}
+
 	@Override
 	public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
 	}
@@ -83,6 +115,8 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 	 * Waits for a YubiKey to be connected. Should be called in {@link Activity#onStart()}.
 	 *
 	 * @param receiver The receiver implementation to be called as soon as a YubiKey was connected.
+	 *                 Called only once, even if multiple YubiKeys are connected. Other YubiKeys
+	 *                 connected at that time are available through {@link #getYubiKeys()}.
 	 */
 	public void waitForYubiKey(final YubiKeyConnectReceiver receiver) {
 		this.connectReceiver = receiver;
@@ -93,14 +127,67 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 		if (this.connectReceiver == null || (this.getSupportedConnectionMethods() & CONNECTION_METHOD_USB) == 0)
 			return;
 
-		final UsbManager usbManager = (UsbManager) this.activity.getSystemService(Context.USB_SERVICE);
+		this.registerReceiver();
 
-		this.activity.registerReceiver(this, new IntentFilter(ACTION_USB_PERMISSION_REQUEST));
-		this.activity.registerReceiver(this, new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED));
+		// Connect to all accessible YubiKeys before reporting the first one, so that the receiver
+		// may use all of them
+		UsbYubiKey first = null;
+		for (final UsbDevice device : this.enumerateDevices()) {
+			final UsbYubiKey usbYubiKey = this.connect(device);
 
-		assert usbManager != null;
-		for (final UsbDevice device : usbManager.getDeviceList().values())
-			this.requestPermission(device);
+			if (first == null)
+				first = usbYubiKey;
+		}
+
+		if (first != null)
+			this.onYubiKeyConnected(first);
+	}
+
+	private void registerReceiver() {
+		if (this.isReceiverRegistered)
+			return;
+
+		final IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION_REQUEST);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+
+		this.activity.registerReceiver(this, filter);
+		this.isReceiverRegistered = true;
+	}
+
+	private void unregisterReceiver() {
+		if (!this.isReceiverRegistered)
+			return;
+
+		this.activity.unregisterReceiver(this);
+		this.isReceiverRegistered = false;
+	}
+
+	/**
+	 * Gets all YubiKeys that are currently connected and accessible.
+	 *
+	 * @return The YubiKeys, possibly including a YubiKey connected via NFC that has been removed
+	 * from the NFC field already.
+	 */
+	public List<YubiKey> getYubiKeys() {
+		synchronized (this.usbYubiKeys) {
+			final List<YubiKey> yubiKeys = new ArrayList<YubiKey>(this.usbYubiKeys.values());
+
+			if (this.nfcYubiKey != null)
+				yubiKeys.add(this.nfcYubiKey);
+
+			return yubiKeys;
+		}
+	}
+
+	private List<UsbDevice> enumerateDevices() {
+		final long start = PhaseTracer.begin(MetricsListener.Phase.ENUMERATE);
+
+		try {
+			return this.deviceRegistry.getDevices();
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.ENUMERATE, start, 0, 0);
+		}
 	}
 
 	@Override
@@ -135,15 +222,11 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 		}
 
 		this.unplugReceiver = receiver;
-		this.activity.registerReceiver(this, new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED));
+		this.registerReceiver();
 	}
 
 	private boolean isYubiKeyPlugged() {
-		final UsbManager usbManager = (UsbManager) this.activity.getSystemService(Context.USB_SERVICE);
-
-		assert usbManager != null;
-
-		for (final UsbDevice device : usbManager.getDeviceList().values()) {
+		for (final UsbDevice device : this.enumerateDevices()) {
 			if (UsbYubiKey.Type.isDeviceKnown(device))
 				return true;
 		}
@@ -160,13 +243,24 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 				if(!this.isYubiKeyPlugged()) // Do not keep asking for permission to access a YubiKey that was unplugged already
 					break;
 			case UsbManager.ACTION_USB_DEVICE_ATTACHED:
-				this.requestPermission((UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE));
+				final UsbYubiKey usbYubiKey = this.connect((UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE));
+
+				if (usbYubiKey != null)
+					this.onYubiKeyConnected(usbYubiKey);
 				break;
 			case UsbManager.ACTION_USB_DEVICE_DETACHED:
-				if (UsbYubiKey.Type.isDeviceKnown(((UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE)))) {
-					this.activity.unregisterReceiver(this);
-					this.unplugReceiver.onYubiKeyUnplugged();
+				final UsbDevice detachedDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+
+				// The device registry closes the connection and forgets the device
+				synchronized (this.usbYubiKeys) {
+					this.usbYubiKeys.remove(detachedDevice.getDeviceName());
+				}
+
+				if (this.unplugReceiver != null && UsbYubiKey.Type.isDeviceKnown(detachedDevice)) {
+					final YubiKeyUsbUnplugReceiver receiver = this.unplugReceiver;
+
 					this.unplugReceiver = null;
+					receiver.onYubiKeyUnplugged();
 				}
 				break;
 			case NfcAdapter.ACTION_TECH_DISCOVERED:
@@ -177,15 +271,41 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 					return;
 				}
 
-				if ((this.getSupportedConnectionMethods() & CONNECTION_METHOD_USB) != 0)
-					this.activity.unregisterReceiver(this);
+				final TraceWriter nfcTrace  = this.traceRecorder.open(Trace.Kind.NFC);
+				NfcTransport      transport = new IsoDepTransport(isoDep);
+				if (nfcTrace != null)
+					transport = new RecordingNfcTransport(transport, nfcTrace);
 
-				this.connectReceiver.onYubiKeyConnected(new NfcYubiKey(isoDep));
-				this.connectReceiver = null;
+				final NfcYubiKey nfcYubiKey = new NfcYubiKey(transport);
+				nfcYubiKey.setMetricsListener(this.metricsListener);
+
+				synchronized (this.usbYubiKeys) {
+					TraceRecorder.close(this.nfcTrace);
+					this.nfcYubiKey = nfcYubiKey;
+					this.nfcTrace = nfcTrace;
+				}
+
+				this.onYubiKeyConnected(nfcYubiKey);
 				break;
 		}
 	}
 
+	/**
+	 * Reports a connected YubiKey to the receiver, if it is still waiting for one.
+	 */
+	private void onYubiKeyConnected(final YubiKey yubiKey) {
+		if (this.connectReceiver == null)
+			return;
+
+		if ((this.getSupportedConnectionMethods() & CONNECTION_METHOD_NFC) != 0 && this.isActivityResumed)
+			NfcAdapter.getDefaultAdapter(this.activity).disableForegroundDispatch(this.activity);
+
+		final YubiKeyConnectReceiver receiver = this.connectReceiver;
+
+		this.connectReceiver = null;
+		receiver.onYubiKeyConnected(yubiKey);
+	}
+
 	@Override
 	public void onActivityPaused(final Activity activity) {
 		if (this.connectReceiver != null && (this.getSupportedConnectionMethods() & CONNECTION_METHOD_NFC) != 0)
@@ -196,28 +316,63 @@ class ConnectionManager extends BroadcastReceiver implements Application.Activit
 
 	@Override
 	public void onActivityStopped(final Activity activity) {
-		if (this.connectReceiver != null || this.unplugReceiver != null)
-			this.activity.unregisterReceiver(this);
+		this.unregisterReceiver();
+
+		// Devices may be detached while the activity is stopped, so they are enumerated again once it is started
+		synchronized (this.usbYubiKeys) {
+			this.usbYubiKeys.clear();
+			this.nfcYubiKey = null;
+
+			TraceRecorder.close(this.nfcTrace);
+			this.nfcTrace = null;
+		}
 	}
 
-	private void requestPermission(final UsbDevice device) {
+	/**
+	 * Connects to a YubiKey, requesting permission to access it first if necessary.
+	 *
+	 * @param device The USB device.
+	 * @return The YubiKey or null, if the device is not a YubiKey or the permission to access it
+	 * must be requested first.
+	 */
+	private UsbYubiKey connect(final UsbDevice device) {
 		final UsbManager usbManager = (UsbManager) this.activity.getSystemService(Context.USB_SERVICE);
 
 		if (!UsbYubiKey.Type.isDeviceKnown(device))
-			return;
+			return null;
 
 		assert usbManager != null;
-		if (usbManager.hasPermission(device)) {
-			this.activity.unregisterReceiver(this);
+		if (!usbManager.hasPermission(device)) {
+			usbManager.requestPermission(device, PendingIntent.getBroadcast(this.activity, 0, new Intent(ACTION_USB_PERMISSION_REQUEST), Build.VERSION.SDK_INT >= 23 ? PendingIntent.FLAG_MUTABLE : 0));
+			return null;
+		}
 
-			if ((this.getSupportedConnectionMethods() & CONNECTION_METHOD_NFC) != 0 && this.isActivityResumed)
-				NfcAdapter.getDefaultAdapter(this.activity).disableForegroundDispatch(this.activity);
+		synchronized (this.usbYubiKeys) {
+			final UsbYubiKey known = this.usbYubiKeys.get(device.getDeviceName());
 
-			this.connectReceiver.onYubiKeyConnected(new UsbYubiKey(device, usbManager.openDevice(device)));
-			this.connectReceiver = null;
-		} else {
-			usbManager.requestPermission(device, PendingIntent.getBroadcast(this.activity, 0, new Intent(ACTION_USB_PERMISSION_REQUEST), Build.VERSION.SDK_INT >= 23 ? PendingIntent.FLAG_MUTABLE : 0));
+			if (known != null)
+				return known;
+		}
+
+		// The connection is only opened if no other activity or service opened it before
+		final long       start = PhaseTracer.begin(MetricsListener.Phase.OPEN_DEVICE);
+		final UsbYubiKey usbYubiKey;
+		try {
+			usbYubiKey = this.deviceRegistry.getYubiKey(device);
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.OPEN_DEVICE, start, 0, 0);
+		}
+
+		if (usbYubiKey == null)
+			return null;
+
+		usbYubiKey.setMetricsListener(this.metricsListener);
+
+		synchronized (this.usbYubiKeys) {
+			this.usbYubiKeys.put(device.getDeviceName(), usbYubiKey);
 		}
+
+		return usbYubiKey;
 	}
 
 	/**
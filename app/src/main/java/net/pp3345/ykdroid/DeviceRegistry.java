@@ -0,0 +1,217 @@
+package net.pp3345.ykdroid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+
+import net.pp3345.ykdroid.yubikey.HidTransport;
+import net.pp3345.ykdroid.yubikey.NfcTransport;
+import net.pp3345.ykdroid.yubikey.UsbDeviceDescriptor;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.trace.RecordingHidTransport;
+import net.pp3345.ykdroid.yubikey.trace.RecordingNfcTransport;
+import net.pp3345.ykdroid.yubikey.trace.Trace;
+import net.pp3345.ykdroid.yubikey.trace.TraceWriter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide registry of the YubiKeys attached via USB. The USB devices are enumerated only once,
+ * afterwards the registry is updated from the attach and detach broadcasts. Once ykDroid was
+ * granted permission to access a YubiKey, the connection to it is opened once and kept open until
+ * the YubiKey is detached, so that all activities and services share the same driver instance.
+ */
+class DeviceRegistry extends BroadcastReceiver {
+	private static DeviceRegistry instance;
+
+	private final UsbManager              usbManager;
+	private final TraceRecorder           traceRecorder;
+	private final Map<String, Registered> devices = new LinkedHashMap<>();
+
+	private static class Registered {
+		private final UsbDevice           device;
+		private       UsbDeviceConnection connection;
+		private       UsbYubiKey          yubiKey;
+		private       TraceWriter         trace;
+		private       TraceWriter         ccidTrace;
+
+		Registered(final UsbDevice device) {
+			this.device = device;
+		}
+
+		void close() {
+			if (this.connection != null)
+				this.connection.close();
+
+			if (this.yubiKey != null)
+				this.yubiKey.shutdown();
+
+			TraceRecorder.close(this.trace);
+			TraceRecorder.close(this.ccidTrace);
+
+			this.connection = null;
+			this.yubiKey = null;
+			this.trace = null;
+			this.ccidTrace = null;
+		}
+	}
+
+	private DeviceRegistry(final UsbManager usbManager, final TraceRecorder traceRecorder) {
+		this.usbManager = usbManager;
+		this.traceRecorder = traceRecorder;
+	}
+
+	/**
+	 * Gets the process-wide instance of the registry.
+	 *
+	 * @param context Any context of the application. Used to register for the attach and detach
+	 *                broadcasts.
+	 * @return The device registry.
+	 */
+	static synchronized DeviceRegistry getInstance(final Context context) {
+		if (instance == null) {
+			instance = new DeviceRegistry((UsbManager) context.getApplicationContext().getSystemService(Context.USB_SERVICE), new TraceRecorder(context.getApplicationContext()));
+
+			final IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+			filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+			context.getApplicationContext().registerReceiver(instance, filter);
+
+			instance.enumerate();
+		}
+
+		return instance;
+	}
+
+	private synchronized void enumerate() {
+		if (this.usbManager == null)
+			return;
+
+		for (final UsbDevice device : this.usbManager.getDeviceList().values())
+			this.add(device);
+	}
+
+	private void add(final UsbDevice device) {
+		if (UsbYubiKey.Type.isDeviceKnown(device) && !this.devices.containsKey(device.getDeviceName()))
+			this.devices.put(device.getDeviceName(), new Registered(device));
+	}
+
+	/**
+	 * Gets the YubiKeys that are currently attached, regardless of whether ykDroid may access them.
+	 *
+	 * @return The USB devices.
+	 */
+	synchronized List<UsbDevice> getDevices() {
+		final List<UsbDevice> devices = new ArrayList<>(this.devices.size());
+
+		for (final Registered registered : this.devices.values())
+			devices.add(registered.device);
+
+		return devices;
+	}
+
+	/**
+	 * Gets the driver for an attached YubiKey, opening the connection to it if it is not open yet.
+	 *
+	 * @param device The USB device.
+	 * @return The driver or null, if the device is not an attached YubiKey, ykDroid has no
+	 * permission to access it or the connection could not be opened.
+	 */
+	synchronized UsbYubiKey getYubiKey(final UsbDevice device) {
+		// The attach broadcast may not have reached the registry yet
+		this.add(device);
+
+		final Registered registered = this.devices.get(device.getDeviceName());
+
+		if (registered == null || this.usbManager == null)
+			return null;
+
+		if (registered.yubiKey != null)
+			return registered.yubiKey;
+
+		if (!this.usbManager.hasPermission(registered.device))
+			return null;
+
+		final UsbDeviceConnection connection = this.usbManager.openDevice(registered.device);
+		if (connection == null)
+			return null;
+
+		HidTransport transport     = UsbYubiKey.createTransport(registered.device, connection);
+		NfcTransport ccidTransport = UsbYubiKey.createCcidTransport(registered.device, connection);
+
+		registered.connection = connection;
+		registered.trace = transport == null ? null : this.traceRecorder.open(Trace.Kind.HID);
+		if (registered.trace != null)
+			transport = new RecordingHidTransport(transport, registered.trace);
+
+		// APDUs exchanged via CCID are recorded like those exchanged via NFC
+		registered.ccidTrace = ccidTransport == null ? null : this.traceRecorder.open(Trace.Kind.NFC);
+		if (registered.ccidTrace != null)
+			ccidTransport = new RecordingNfcTransport(ccidTransport, registered.ccidTrace);
+
+		registered.yubiKey = new UsbYubiKey(registered.device, transport, ccidTransport);
+
+		return registered.yubiKey;
+	}
+
+	/**
+	 * Gets the driver for any attached YubiKey that ykDroid may access.
+	 *
+	 * @return The driver or null, if there is no such YubiKey.
+	 */
+	synchronized UsbYubiKey getAnyYubiKey() {
+		for (final Registered registered : this.devices.values()) {
+			final UsbYubiKey yubiKey = this.getYubiKey(registered.device);
+
+			if (yubiKey != null)
+				return yubiKey;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Closes the connection used by a driver, e.g. after it was lost. The connection is opened again
+	 * the next time the driver is requested.
+	 *
+	 * @param yubiKey The driver.
+	 */
+	synchronized void invalidate(final UsbYubiKey yubiKey) {
+		for (final Registered registered : this.devices.values()) {
+			if (registered.yubiKey == yubiKey) {
+				registered.close();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+
+		if (device == null || intent.getAction() == null)
+			return;
+
+		synchronized (this) {
+			switch (intent.getAction()) {
+				case UsbManager.ACTION_USB_DEVICE_ATTACHED:
+					this.add(device);
+					break;
+				case UsbManager.ACTION_USB_DEVICE_DETACHED:
+					final Registered registered = this.devices.remove(device.getDeviceName());
+
+					if (registered != null)
+						registered.close();
+
+					UsbDeviceDescriptor.forget(device);
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package net.pp3345.ykdroid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbManager;
+import android.os.SystemClock;
+
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, memory-only cache for challenge-response results. Responses are identified by the
+ * calling app, the serial number of the YubiKey, the slot and a digest of the challenge, so that
+ * no app receives a response that the user authorized for another one. Entries expire after a
+ * short time, the least recently used entries are evicted once the cache is full and the whole
+ * cache is wiped as soon as the screen is turned off or a YubiKey is unplugged.
+ */
+class ResponseCache extends BroadcastReceiver {
+	private static final int    MAX_ENTRIES      = 16;
+	private static final long   TIME_TO_LIVE_MS  = 30000;
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static ResponseCache instance;
+
+	private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(MAX_ENTRIES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+			if (this.size() <= MAX_ENTRIES)
+				return false;
+
+			eldest.getValue().wipe();
+			return true;
+		}
+	};
+
+	private static class Key {
+		private final String caller;
+		private final int    serialNumber;
+		private final Slot   slot;
+		private final byte[] challengeDigest;
+
+		Key(final String caller, final int serialNumber, final Slot slot, final byte[] challengeDigest) {
+			this.caller = caller;
+			this.serialNumber = serialNumber;
+			this.slot = slot;
+			this.challengeDigest = challengeDigest;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			final Key key = (Key) o;
+			return this.caller.equals(key.caller) && this.serialNumber == key.serialNumber && this.slot == key.slot && MessageDigest.isEqual(this.challengeDigest, key.challengeDigest);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((this.caller.hashCode() * 31 + this.serialNumber) * 31 + this.slot.hashCode()) * 31 + Arrays.hashCode(this.challengeDigest);
+		}
+	}
+
+	private static class Entry {
+		private final byte[] response;
+		private final long   expiresAt;
+
+		Entry(final byte[] response, final long expiresAt) {
+			this.response = response;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(final long now) {
+			return now >= this.expiresAt;
+		}
+
+		void wipe() {
+			Arrays.fill(this.response, (byte) 0);
+		}
+	}
+
+	private ResponseCache() {
+	}
+
+	/**
+	 * Gets the process-wide instance of the cache.
+	 *
+	 * @param context Any context of the application. Used to register for the broadcasts that wipe
+	 *                the cache.
+	 * @return The response cache.
+	 */
+	static synchronized ResponseCache getInstance(final Context context) {
+		if (instance == null) {
+			instance = new ResponseCache();
+
+			final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+			filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+			context.getApplicationContext().registerReceiver(instance, filter);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Sends a challenge to the YubiKey, unless a response to the same challenge from the same
+	 * YubiKey and slot was cached for the same caller. Successful responses are added to the cache.
+	 * Should not be called on the UI thread, as the serial number of the YubiKey may need to be
+	 * read.
+	 *
+	 * @param caller        The package name of the app that sent the challenge.
+	 * @param yubiKey       The YubiKey to send the challenge to.
+	 * @param slot          The YubiKey feature slot to use.
+	 * @param challenge     Challenge bytes to send to the YubiKey.
+	 * @param timeoutMillis Time after which the request fails, 0 for the default timeouts of the
+	 *                      driver.
+	 * @param touchListener Notified when the YubiKey waits for the user. May be null.
+	 * @return The (possibly cached) response.
+	 * @throws YubiKeyException When the request failed.
+	 * @see YubiKey#challengeResponse(Slot, byte[], long, YubiKey.TouchListener)
+	 */
+	byte[] challengeResponse(final String caller, final YubiKey yubiKey, final Slot slot, final byte[] challenge, final long timeoutMillis, final YubiKey.TouchListener touchListener) throws YubiKeyException {
+		final int serialNumber;
+
+		try {
+			serialNumber = yubiKey.getSerialNumber();
+		} catch (final YubiKeyException e) {
+			// The serial number may be configured to be invisible, responses can't be cached then
+			return yubiKey.challengeResponse(slot, challenge, timeoutMillis, touchListener);
+		}
+
+		final Key    key    = new Key(caller, serialNumber, slot, digest(challenge));
+		final byte[] cached = this.get(key);
+
+		if (cached != null)
+			return cached;
+
+		final byte[] response = yubiKey.challengeResponse(slot, challenge, timeoutMillis, touchListener);
+		this.put(key, response);
+
+		return response;
+	}
+
+	private synchronized byte[] get(final Key key) {
+		final Entry entry = this.entries.get(key);
+
+		if (entry == null)
+			return null;
+
+		if (entry.isExpired(SystemClock.elapsedRealtime())) {
+			this.entries.remove(key);
+			entry.wipe();
+
+			return null;
+		}
+
+		return entry.response.clone();
+	}
+
+	private synchronized void put(final Key key, final byte[] response) {
+		final Entry previous = this.entries.put(key, new Entry(response.clone(), SystemClock.elapsedRealtime() + TIME_TO_LIVE_MS));
+
+		if (previous != null)
+			previous.wipe();
+	}
+
+	/**
+	 * Removes and wipes all cached responses.
+	 */
+	synchronized void clear() {
+		final Iterator<Entry> iterator = this.entries.values().iterator();
+
+		while (iterator.hasNext()) {
+			iterator.next().wipe();
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		this.clear();
+	}
+
+	private static byte[] digest(final byte[] challenge) {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(challenge);
+		} catch (final NoSuchAlgorithmException e) {
+			// Every Android device is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
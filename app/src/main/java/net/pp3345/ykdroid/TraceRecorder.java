@@ -0,0 +1,65 @@
+package net.pp3345.ykdroid;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+
+import net.pp3345.ykdroid.yubikey.trace.Trace;
+import net.pp3345.ykdroid.yubikey.trace.TraceWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Opens trace files for the transports of the drivers, see
+ * {@link net.pp3345.ykdroid.yubikey.trace.Trace}. Recording is only possible in debuggable builds
+ * and is enabled by creating the directory <code>traces</code> in the external files directory of
+ * ykDroid, e.g. with
+ * <code>adb shell mkdir /sdcard/Android/data/net.pp3345.ykdroid/files/traces</code>. A trace file
+ * is written for each connection to a YubiKey.
+ */
+class TraceRecorder {
+	private final File directory;
+
+	TraceRecorder(final Context context) {
+		final File externalFilesDirectory = context.getExternalFilesDir(null);
+		final File directory              = externalFilesDirectory == null ? null : new File(externalFilesDirectory, "traces");
+
+		this.directory = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0 && directory != null && directory.isDirectory() ? directory : null;
+	}
+
+	/**
+	 * Opens a new trace file.
+	 *
+	 * @param kind The transport that is recorded.
+	 * @return The writer or null, if recording is disabled or the file could not be created.
+	 */
+	TraceWriter open(final Trace.Kind kind) {
+		if (this.directory == null)
+			return null;
+
+		final File file = new File(this.directory, String.format(Locale.ROOT, "%s-%d.yktr", kind.name().toLowerCase(Locale.ROOT), System.currentTimeMillis()));
+
+		try {
+			return new TraceWriter(new FileOutputStream(file), kind);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Closes a trace file, ignoring failures.
+	 *
+	 * @param writer The writer or null.
+	 */
+	static void close(final TraceWriter writer) {
+		if (writer == null)
+			return;
+
+		try {
+			writer.close();
+		} catch (final IOException ignored) {
+		}
+	}
+}
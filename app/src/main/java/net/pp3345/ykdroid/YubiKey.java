@@ -1,9 +1,15 @@
 package net.pp3345.ykdroid;
 
+import net.pp3345.ykdroid.yubikey.DeviceInfo;
 import net.pp3345.ykdroid.yubikey.InvalidSlotException;
+import net.pp3345.ykdroid.yubikey.OperationCancelledException;
 import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.TimeoutException;
 import net.pp3345.ykdroid.yubikey.YubiKeyException;
 
+import java.util.List;
+import java.util.concurrent.Future;
+
 /**
  * Interface that defines the YubiKey features that must be supported by the different driver
  * implementations
@@ -14,6 +20,94 @@ public interface YubiKey {
 	 */
 	int CHALLENGE_RESPONSE_LENGTH = 20;
 
+	/**
+	 * Callback interface for asynchronous challenge-response requests.
+	 */
+	interface ChallengeResponseCallback {
+		/**
+		 * Called when the YubiKey responded to the challenge.
+		 *
+		 * @param response The response from the YubiKey.
+		 */
+		void onResponse(byte[] response);
+
+		/**
+		 * Called when the request failed.
+		 *
+		 * @param e The exception thrown by the driver.
+		 */
+		void onError(YubiKeyException e);
+	}
+
+	/**
+	 * Listener notified when a YubiKey starts waiting for the user to press its button.
+	 */
+	interface TouchListener {
+		/**
+		 * Called on the thread executing the request as soon as the YubiKey indicates that it waits
+		 * for the user to press the button, at most once per request. Not called for requests that
+		 * don't require touch. Must not block.
+		 */
+		void onTouchPending();
+	}
+
+	/**
+	 * An operation that may be executed asynchronously using
+	 * {@link #executeAsync(Operation, OperationCallback)}.
+	 *
+	 * @param <T> Type of the operation's result.
+	 */
+	interface Operation<T> {
+		/**
+		 * Executes the operation on the I/O thread of the YubiKey.
+		 *
+		 * @param yubiKey The YubiKey the operation was submitted to.
+		 * @return The result of the operation.
+		 * @throws YubiKeyException When the operation failed.
+		 */
+		T execute(YubiKey yubiKey) throws YubiKeyException;
+	}
+
+	/**
+	 * Callback interface for asynchronous operations.
+	 *
+	 * @param <T> Type of the operation's result.
+	 */
+	interface OperationCallback<T> {
+		/**
+		 * Called when the operation completed successfully.
+		 *
+		 * @param result The result of the operation.
+		 */
+		void onSuccess(T result);
+
+		/**
+		 * Called when the operation failed.
+		 *
+		 * @param e The exception thrown by the operation.
+		 */
+		void onError(YubiKeyException e);
+	}
+
+	/**
+	 * Gets the serial number of the YubiKey.
+	 *
+	 * @return The 32-bit serial number of the YubiKey.
+	 * @throws YubiKeyException When the serial number could not be read, e.g. because it was
+	 *                          configured to be invisible.
+	 */
+	int getSerialNumber() throws YubiKeyException;
+
+	/**
+	 * Gets the serial number, firmware version, programming state and capabilities of the
+	 * YubiKey. The information is read in a single exchange and cached for as long as the
+	 * YubiKey stays connected.
+	 *
+	 * @return Information about the YubiKey.
+	 * @throws YubiKeyException When the information could not be read.
+	 */
+	DeviceInfo getDeviceInfo() throws YubiKeyException;
+
 	/**
 	 * Sends a challenge to the YubiKey and returns the response received. May wait for the user to
 	 * press the button on the YubiKey, depending on its configuration. Thus, this method should
@@ -29,4 +123,105 @@ public interface YubiKey {
 	 *                              be thrown.
 	 */
 	byte[] challengeResponse(final Slot slot, final byte[] challenge) throws YubiKeyException;
+
+	/**
+	 * Sends a challenge to the YubiKey and writes the response into a caller-supplied buffer.
+	 * Behaves like {@link #challengeResponse(Slot, byte[])}, but allows callers issuing many
+	 * requests to reuse their buffers.
+	 *
+	 * @param slot            The YubiKey feature slot to use. Must be either
+	 *                        {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param challenge       Buffer containing the challenge bytes to send to the YubiKey.
+	 * @param challengeOffset Offset of the challenge within the challenge buffer.
+	 * @param challengeLength Length of the challenge.
+	 * @param response        Buffer to write the response to. Must provide space for at least
+	 *                        {@link #CHALLENGE_RESPONSE_LENGTH} bytes after the offset.
+	 * @param responseOffset  Offset within the response buffer to write the response to.
+	 * @return The number of bytes written to the response buffer.
+	 * @throws InvalidSlotException When a slot was selected that can't be used for
+	 *                              challenge-response.
+	 * @throws YubiKeyException     Depending on the driver implementation, additional exceptions may
+	 *                              be thrown.
+	 */
+	int challengeResponse(final Slot slot, final byte[] challenge, final int challengeOffset, final int challengeLength, final byte[] response, final int responseOffset) throws YubiKeyException;
+
+	/**
+	 * Sends a challenge to the YubiKey and returns the response received, giving up once a
+	 * deadline passed. Behaves like {@link #challengeResponse(Slot, byte[])}, but notifies the
+	 * caller when the YubiKey actually waits for the user to press the button, so that the user is
+	 * only asked to do so when necessary.
+	 * <p>
+	 * The request may be cancelled by interrupting the calling thread, e.g. by cancelling the
+	 * {@link Future} returned by {@link #executeAsync(Operation, OperationCallback)}. The YubiKey
+	 * is reset when the request is cancelled or timed out, so that it does not keep waiting for
+	 * the user.
+	 * </p>
+	 *
+	 * @param slot          The YubiKey feature slot to use. Must be either
+	 *                      {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param challenge     Challenge bytes to send to the YubiKey.
+	 * @param timeoutMillis Time after which the request fails, including the time spent waiting
+	 *                      for the user. 0 if only the default timeouts of the driver apply.
+	 * @param touchListener Notified when the YubiKey starts waiting for the user. May be null.
+	 * @return The response from the YubiKey.
+	 * @throws InvalidSlotException         When a slot was selected that can't be used for
+	 *                                     challenge-response.
+	 * @throws TimeoutException            When the deadline passed.
+	 * @throws OperationCancelledException When the calling thread was interrupted.
+	 * @throws YubiKeyException            Depending on the driver implementation, additional
+	 *                                     exceptions may be thrown.
+	 */
+	byte[] challengeResponse(final Slot slot, final byte[] challenge, final long timeoutMillis, final TouchListener touchListener) throws YubiKeyException;
+
+	/**
+	 * Sends a challenge to the YubiKey asynchronously. Requests are executed one after another on an
+	 * I/O thread dedicated to the YubiKey, so this method may safely be called on the UI thread.
+	 *
+	 * @param slot      The YubiKey feature slot to use. Must be either
+	 *                  {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param challenge Challenge bytes to send to the YubiKey.
+	 * @param callback  Called on the I/O thread once the request completed. Not called if the
+	 *                  request was cancelled.
+	 * @return Handle that may be used to cancel the request.
+	 */
+	Future<byte[]> challengeResponseAsync(final Slot slot, final byte[] challenge, final ChallengeResponseCallback callback);
+
+	/**
+	 * Executes an arbitrary operation asynchronously on the I/O thread dedicated to the YubiKey,
+	 * serialized with all other asynchronous requests. Allows callers to chain multiple
+	 * operations without blocking any other thread.
+	 *
+	 * @param operation The operation to execute.
+	 * @param callback  Called on the I/O thread once the operation completed. Not called if the
+	 *                  operation was cancelled. May be null.
+	 * @param <T>       Type of the operation's result.
+	 * @return Handle that may be used to cancel the operation or wait for its result.
+	 */
+	<T> Future<T> executeAsync(final Operation<T> operation, final OperationCallback<T> callback);
+
+	/**
+	 * Sends multiple challenges to the YubiKey, sharing the connection setup between all of them.
+	 * Behaves like calling {@link #challengeResponse(Slot, byte[])} for each challenge on an open
+	 * {@link YubiKeySession}.
+	 *
+	 * @param slot       The YubiKey feature slot to use. Must be either
+	 *                   {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param challenges Challenges to send to the YubiKey.
+	 * @return The responses from the YubiKey, in the same order as the challenges.
+	 * @throws InvalidSlotException When a slot was selected that can't be used for
+	 *                              challenge-response.
+	 * @throws YubiKeyException     Depending on the driver implementation, additional exceptions may
+	 *                              be thrown.
+	 */
+	List<byte[]> challengeResponseBatch(final Slot slot, final List<byte[]> challenges) throws YubiKeyException;
+
+	/**
+	 * Opens a session that keeps the connection to the YubiKey established until it is closed.
+	 * Operations executed on the session (or on the YubiKey itself while a session is open) skip
+	 * the per-operation connection setup.
+	 *
+	 * @return The opened session.
+	 * @throws YubiKeyException When the connection could not be established.
+	 */
+	YubiKeySession openSession() throws YubiKeyException;
 }
@@ -0,0 +1,172 @@
+package net.pp3345.ykdroid;
+
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executes an operation on several YubiKeys concurrently and completes with the first successful
+ * result. Once a YubiKey succeeded, the operation is cancelled on all other YubiKeys. The operation
+ * only fails if it failed on every YubiKey, in which case the error of the last YubiKey to fail is
+ * reported.
+ *
+ * @param <T> The result type of the operation.
+ */
+final class YubiKeyFanOut<T> implements Future<T> {
+	private final List<Future<T>>              futures = new ArrayList<>();
+	private final YubiKey.OperationCallback<T> callback;
+	private       int                          pending;
+	private       boolean                      done;
+	private       boolean                      cancelled;
+	private       T                            result;
+	private       YubiKeyException             error;
+
+	private YubiKeyFanOut(final YubiKey.OperationCallback<T> callback, final int pending) {
+		this.callback = callback;
+		this.pending = pending;
+	}
+
+	/**
+	 * Starts executing an operation on several YubiKeys.
+	 *
+	 * @param yubiKeys  The YubiKeys to execute the operation on. Must not be empty.
+	 * @param operation The operation.
+	 * @param callback  Called once with the first successful result or, if the operation failed on
+	 *                  every YubiKey, the last error. May be null.
+	 * @param <T>       The result type of the operation.
+	 * @return A future representing the combined operation.
+	 */
+	static <T> Future<T> execute(final Collection<? extends YubiKey> yubiKeys, final YubiKey.Operation<T> operation, final YubiKey.OperationCallback<T> callback) {
+		if (yubiKeys.isEmpty())
+			throw new IllegalArgumentException("No YubiKeys to execute the operation on");
+
+		final YubiKeyFanOut<T> fanOut = new YubiKeyFanOut<>(callback, yubiKeys.size());
+
+		final YubiKey.OperationCallback<T> yubiKeyCallback = new YubiKey.OperationCallback<T>() {
+			@Override
+			public void onSuccess(final T result) {
+				fanOut.onSuccess(result);
+			}
+
+			@Override
+			public void onError(final YubiKeyException e) {
+				fanOut.onError(e);
+			}
+		};
+
+		for (final YubiKey yubiKey : yubiKeys) {
+			final Future<T> future = yubiKey.executeAsync(operation, yubiKeyCallback);
+
+			synchronized (fanOut) {
+				fanOut.futures.add(future);
+
+				// Another YubiKey may have responded before all operations were submitted
+				if (fanOut.done)
+					future.cancel(true);
+			}
+		}
+
+		return fanOut;
+	}
+
+	private void onSuccess(final T result) {
+		synchronized (this) {
+			if (this.done)
+				return;
+
+			this.done = true;
+			this.result = result;
+			this.cancelOthers();
+			this.notifyAll();
+		}
+
+		if (this.callback != null)
+			this.callback.onSuccess(result);
+	}
+
+	private void onError(final YubiKeyException e) {
+		synchronized (this) {
+			if (this.done || --this.pending > 0)
+				return;
+
+			this.done = true;
+			this.error = e;
+			this.notifyAll();
+		}
+
+		if (this.callback != null)
+			this.callback.onError(e);
+	}
+
+	private void cancelOthers() {
+		for (final Future<T> future : this.futures)
+			future.cancel(true);
+	}
+
+	@Override
+	public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+		if (this.done)
+			return false;
+
+		this.done = true;
+		this.cancelled = true;
+
+		for (final Future<T> future : this.futures)
+			future.cancel(mayInterruptIfRunning);
+
+		this.notifyAll();
+
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return this.done;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!this.done)
+			this.wait();
+
+		return this.getResult();
+	}
+
+	@Override
+	public synchronized T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!this.done) {
+			final long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0)
+				throw new TimeoutException();
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return this.getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (this.cancelled)
+			throw new CancellationException();
+
+		if (this.error != null)
+			throw new ExecutionException(this.error);
+
+		return this.result;
+	}
+}
@@ -0,0 +1,16 @@
+package net.pp3345.ykdroid;
+
+/**
+ * A session keeps the connection to a YubiKey established across any number of operations,
+ * avoiding the cost of setting it up for every single operation (e.g. claiming the USB interface
+ * or selecting the challenge-response applet via NFC). Sessions must be closed as soon as they
+ * are not needed anymore, preferably using a try-with-resources statement.
+ */
+public interface YubiKeySession extends YubiKey, AutoCloseable {
+	/**
+	 * Closes the session. Operations may not be executed on a closed session. Closing a session
+	 * that was closed already has no effect.
+	 */
+	@Override
+	void close();
+}
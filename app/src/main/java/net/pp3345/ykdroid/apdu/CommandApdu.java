@@ -1,22 +1,106 @@
 package net.pp3345.ykdroid.apdu;
 
+import java.nio.ByteBuffer;
+
 /**
  * ISO 7816-4 5.3.1
  */
 public abstract class CommandApdu {
-	protected byte[] data;
+	/**
+	 * Maximum length of the data field of a short APDU.
+	 */
+	public static final int MAX_SHORT_DATA_LENGTH    = 0xff;
+	/**
+	 * Maximum length of the data field of an extended APDU.
+	 */
+	public static final int MAX_EXTENDED_DATA_LENGTH = 0xffff;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	protected byte[] data       = NO_DATA;
+	protected int    dataOffset;
+	protected int    dataLength;
+
+	/**
+	 * Sets the data field of the APDU. The data is not copied.
+	 *
+	 * @param data   Buffer containing the data.
+	 * @param offset Offset of the data within the buffer.
+	 * @param length Length of the data.
+	 */
+	protected void setData(final byte[] data, final int offset, final int length) {
+		if (length > MAX_EXTENDED_DATA_LENGTH)
+			throw new IllegalArgumentException("Data exceeds " + MAX_EXTENDED_DATA_LENGTH + " bytes");
+
+		this.data = data;
+		this.dataOffset = offset;
+		this.dataLength = length;
+	}
+
+	/**
+	 * Checks whether the data field is too long to be sent in a short APDU.
+	 *
+	 * @return true, if the APDU must be encoded with extended length fields.
+	 */
+	public boolean requiresExtendedLength() {
+		return this.dataLength > MAX_SHORT_DATA_LENGTH;
+	}
+
+	/**
+	 * Gets the length of the encoded APDU.
+	 *
+	 * @param extendedLength Whether extended length fields are used.
+	 * @return Length of the encoded APDU in bytes.
+	 */
+	public int getEncodedLength(final boolean extendedLength) {
+		final int lengthFieldSize = extendedLength ? 2 : 1;
+
+		// Lc and the data field are omitted if there is no data to send
+		if (this.dataLength == 0)
+			return 4 + (extendedLength ? 1 : 0) + lengthFieldSize;
+
+		return 4 + (extendedLength ? 1 : 0) + lengthFieldSize + this.dataLength + lengthFieldSize;
+	}
+
+	/**
+	 * Encodes the APDU into a buffer, starting at the current position of the buffer.
+	 *
+	 * @param buffer         The buffer to encode the APDU into. Must provide at least
+	 *                       {@link #getEncodedLength(boolean)} bytes of space.
+	 * @param extendedLength Whether extended length fields should be used. Must be true if
+	 *                       {@link #requiresExtendedLength()} is true.
+	 */
+	public void encode(final ByteBuffer buffer, final boolean extendedLength) {
+		if (!extendedLength && this.requiresExtendedLength())
+			throw new IllegalArgumentException("Data exceeds " + MAX_SHORT_DATA_LENGTH + " bytes, extended length required");
+
+		buffer.put(this.getCommandClass());
+		buffer.put(this.getInstruction());
+		buffer.put(this.getParameter1());
+		buffer.put(this.getParameter2());
+
+		if (extendedLength)
+			buffer.put((byte) 0x00);
+
+		if (this.dataLength != 0) {
+			if (extendedLength)
+				buffer.put((byte) (this.dataLength >> 8));
+
+			buffer.put((byte) this.dataLength);
+			buffer.put(this.data, this.dataOffset, this.dataLength);
+		}
+
+		if (extendedLength)
+			buffer.put((byte) 0x00);
+
+		buffer.put(this.getExpectedLength());
+	}
 
 	public byte[] build() {
-		assert this.getParameters().length == 2;
+		final boolean extendedLength = this.requiresExtendedLength();
+		final byte[]  apdu           = new byte[this.getEncodedLength(extendedLength)];
 
-		final byte[] apdu = new byte[6 + this.data.length];
-		apdu[0] = this.getCommandClass();
-		apdu[1] = this.getInstruction();
-		apdu[2] = this.getParameters()[0];
-		apdu[3] = this.getParameters()[1];
-		apdu[4] = (byte) this.data.length;
-		System.arraycopy(this.data, 0, apdu, 5, this.data.length);
-		apdu[apdu.length - 1] = this.getExpectedLength();
+		this.encode(ByteBuffer.wrap(apdu), extendedLength);
 
 		return apdu;
 	}
@@ -25,11 +109,25 @@ public abstract class CommandApdu {
 
 	protected abstract byte getInstruction();
 
-	protected abstract byte[] getParameters();
+	protected abstract byte getParameter1();
+
+	protected abstract byte getParameter2();
 
 	protected abstract byte getExpectedLength();
 
 	public ResponseApdu parseResponse(final byte[] response) {
-		return new ResponseApdu(response);
+		return this.parseResponse(response, response.length);
+	}
+
+	/**
+	 * Parses a response that occupies only the beginning of a buffer, e.g. the buffer of a
+	 * {@link ResponseChainReader}. The buffer is not copied.
+	 *
+	 * @param response Buffer containing the response, including the status word.
+	 * @param length   Length of the response.
+	 * @return The parsed response.
+	 */
+	public ResponseApdu parseResponse(final byte[] response, final int length) {
+		return new ResponseApdu(response, length);
 	}
 }
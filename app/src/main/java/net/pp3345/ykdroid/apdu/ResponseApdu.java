@@ -4,13 +4,60 @@ package net.pp3345.ykdroid.apdu;
  * ISO 7816-4 5.3.3
  */
 public class ResponseApdu {
+	/**
+	 * SW1 indicating that more response data is available and must be retrieved by sending
+	 * GET RESPONSE (or an equivalent command). SW2 contains the number of bytes still available,
+	 * 0x00 meaning 256 or more.
+	 */
+	public static final byte SW1_MORE_DATA_AVAILABLE = (byte) 0x61;
+
 	protected final byte[] response;
+	protected final int    length;
 
 	public ResponseApdu(final byte[] response) {
+		this(response, response.length);
+	}
+
+	/**
+	 * @param response Buffer containing the response, including the status word. Not copied.
+	 * @param length   Length of the response within the buffer.
+	 */
+	public ResponseApdu(final byte[] response, final int length) {
 		this.response = response;
+		this.length = length;
+	}
+
+	public byte[] getData() {
+		final byte[] data = new byte[this.length - 2];
+
+		System.arraycopy(this.response, 0, data, 0, data.length);
+
+		return data;
+	}
+
+	/**
+	 * Gets the buffer backing this response without copying it. The data field starts at offset 0
+	 * and is followed by the status word.
+	 *
+	 * @return The buffer.
+	 */
+	public byte[] getBuffer() {
+		return this.response;
+	}
+
+	public int getDataLength() {
+		return this.length - 2;
+	}
+
+	public int getStatusWord() {
+		return ((this.response[this.length - 2] & 0xff) << 8) | (this.response[this.length - 1] & 0xff);
 	}
 
 	public boolean isSuccess() {
-		return this.response[this.response.length - 2] == (byte) 0x90 && this.response[this.response.length - 1] == (byte) 0x00;
+		return this.response[this.length - 2] == (byte) 0x90 && this.response[this.length - 1] == (byte) 0x00;
+	}
+
+	public boolean isMoreDataAvailable() {
+		return this.response[this.length - 2] == SW1_MORE_DATA_AVAILABLE;
 	}
 }
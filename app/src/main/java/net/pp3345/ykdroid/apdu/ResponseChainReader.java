@@ -0,0 +1,109 @@
+package net.pp3345.ykdroid.apdu;
+
+import java.io.IOException;
+
+/**
+ * Collects responses that are split into multiple chunks by the card (ISO 7816-4 5.3.4). As long as
+ * the card indicates that more data is available (SW1 = 0x61), the remaining data is requested
+ * automatically and appended to a buffer that is reused for all responses read by this instance.
+ * <p>
+ * Not thread-safe. The buffer returned by {@link #getBuffer()} is only valid until the next call
+ * of {@link #read(byte[])}.
+ * </p>
+ */
+public class ResponseChainReader {
+	/**
+	 * ISO 7816-4 7.6.1 GET RESPONSE
+	 */
+	public static final byte INS_GET_RESPONSE   = (byte) 0xc0;
+	/**
+	 * YKOATH SEND REMAINING, used by the OATH applet instead of GET RESPONSE.
+	 */
+	public static final byte INS_SEND_REMAINING = (byte) 0xa5;
+
+	/**
+	 * Upper bound for the length of a chained response, protecting against cards that never stop
+	 * indicating that more data is available.
+	 */
+	private static final int MAX_RESPONSE_LENGTH = 0x10000 + 2;
+	private static final int INITIAL_CAPACITY    = 0x100 + 2;
+
+	private final Transceiver transceiver;
+	private final byte[]      remainingDataCommand;
+	private       byte[]      buffer = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * Uses GET RESPONSE to retrieve remaining data.
+	 *
+	 * @param transceiver Used to send the commands requesting the remaining data.
+	 */
+	public ResponseChainReader(final Transceiver transceiver) {
+		this(transceiver, INS_GET_RESPONSE);
+	}
+
+	/**
+	 * @param transceiver Used to send the commands requesting the remaining data.
+	 * @param instruction The instruction of the command requesting the remaining data, e.g.
+	 *                    {@link #INS_GET_RESPONSE} or {@link #INS_SEND_REMAINING}.
+	 */
+	public ResponseChainReader(final Transceiver transceiver, final byte instruction) {
+		this.transceiver = transceiver;
+		this.remainingDataCommand = new byte[]{0x00, instruction, 0x00, 0x00, 0x00};
+	}
+
+	/**
+	 * Reads a complete response, requesting remaining data as long as the card indicates that more
+	 * is available.
+	 *
+	 * @param firstResponse The first response received for a command.
+	 * @return Length of the complete response in the buffer, including the final status word.
+	 * @throws IOException When the communication with the card failed or the card returned an
+	 *                     invalid or overly long response.
+	 */
+	public int read(final byte[] firstResponse) throws IOException {
+		byte[] response = firstResponse;
+		int    length   = 0;
+
+		while (true) {
+			if (response == null || response.length < 2)
+				throw new IOException("Invalid response APDU");
+
+			final int dataLength = response.length - 2;
+
+			this.ensureCapacity(length + response.length);
+			System.arraycopy(response, 0, this.buffer, length, dataLength);
+			length += dataLength;
+
+			if (response[dataLength] != ResponseApdu.SW1_MORE_DATA_AVAILABLE) {
+				this.buffer[length++] = response[dataLength];
+				this.buffer[length++] = response[dataLength + 1];
+
+				return length;
+			}
+
+			// SW2 contains the number of bytes still available, which is exactly what Le must be
+			this.remainingDataCommand[4] = response[dataLength + 1];
+			response = this.transceiver.transceive(this.remainingDataCommand);
+		}
+	}
+
+	/**
+	 * @return The buffer containing the last response read by {@link #read(byte[])}.
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	private void ensureCapacity(final int capacity) throws IOException {
+		if (capacity <= this.buffer.length)
+			return;
+
+		if (capacity > MAX_RESPONSE_LENGTH)
+			throw new IOException("Response exceeds " + MAX_RESPONSE_LENGTH + " bytes");
+
+		final byte[] buffer = new byte[Math.min(Math.max(capacity, this.buffer.length * 2), MAX_RESPONSE_LENGTH)];
+
+		System.arraycopy(this.buffer, 0, buffer, 0, this.buffer.length);
+		this.buffer = buffer;
+	}
+}
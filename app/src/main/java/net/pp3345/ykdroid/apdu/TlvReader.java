@@ -0,0 +1,161 @@
+package net.pp3345.ykdroid.apdu;
+
+/**
+ * Cursor over a sequence of BER-TLV encoded data objects with single byte tags, as used by the
+ * YKOATH protocol. The reader does not copy any data: after each call to {@link #next()}, the tag
+ * and the position of the value within the underlying buffer are available through the getters.
+ * Instances may be reused for any number of buffers, see {@link #reset(byte[], int, int)}.
+ */
+public class TlvReader {
+	private byte[] buffer;
+	private int    position;
+	private int    end;
+	private byte   tag;
+	private int    valueOffset;
+	private int    valueLength;
+
+	public TlvReader() {
+	}
+
+	public TlvReader(final byte[] buffer, final int offset, final int length) {
+		this.reset(buffer, offset, length);
+	}
+
+	/**
+	 * Starts reading a new sequence of data objects.
+	 *
+	 * @param buffer Buffer containing the data objects. Not copied.
+	 * @param offset Offset of the first data object.
+	 * @param length Total length of the data objects.
+	 */
+	public void reset(final byte[] buffer, final int offset, final int length) {
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+		this.tag = 0;
+		this.valueOffset = offset;
+		this.valueLength = 0;
+	}
+
+	/**
+	 * Starts reading the data objects contained in the data field of a response.
+	 *
+	 * @param response The response. Its buffer is not copied.
+	 */
+	public void reset(final ResponseApdu response) {
+		this.reset(response.response, 0, response.length - 2);
+	}
+
+	/**
+	 * Moves the cursor to the next data object.
+	 *
+	 * @return false, if there are no more data objects.
+	 * @throws IllegalArgumentException When the data object is truncated or its length is not
+	 *                                  encoded in one of the supported forms.
+	 */
+	public boolean next() {
+		if (this.position >= this.end)
+			return false;
+
+		if (this.end - this.position < 2)
+			throw new IllegalArgumentException("Truncated TLV data object");
+
+		this.tag = this.buffer[this.position++];
+
+		final int first = this.buffer[this.position++] & 0xff;
+		final int length;
+
+		// ISO 7816-4 5.2.2.2
+		if (first < 0x80) {
+			length = first;
+		} else if (first == 0x81 && this.position < this.end) {
+			length = this.buffer[this.position++] & 0xff;
+		} else if (first == 0x82 && this.position + 1 < this.end) {
+			length = ((this.buffer[this.position] & 0xff) << 8) | (this.buffer[this.position + 1] & 0xff);
+			this.position += 2;
+		} else {
+			throw new IllegalArgumentException("Invalid TLV length");
+		}
+
+		if (length > this.end - this.position)
+			throw new IllegalArgumentException("Truncated TLV data object");
+
+		this.valueOffset = this.position;
+		this.valueLength = length;
+		this.position += length;
+
+		return true;
+	}
+
+	public byte getTag() {
+		return this.tag;
+	}
+
+	/**
+	 * @return The buffer containing the value of the current data object.
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	public int getValueOffset() {
+		return this.valueOffset;
+	}
+
+	public int getValueLength() {
+		return this.valueLength;
+	}
+
+	/**
+	 * @param index Index of the byte within the value of the current data object.
+	 * @return The byte.
+	 */
+	public byte getValueByte(final int index) {
+		if (index < 0 || index >= this.valueLength)
+			throw new IndexOutOfBoundsException();
+
+		return this.buffer[this.valueOffset + index];
+	}
+
+	/**
+	 * Interprets the value of the current data object as a big-endian unsigned integer.
+	 *
+	 * @param offset Offset within the value.
+	 * @param length Number of bytes to interpret, at most 4.
+	 * @return The integer.
+	 */
+	public int getValueInt(final int offset, final int length) {
+		if (offset < 0 || length > 4 || offset + length > this.valueLength)
+			throw new IndexOutOfBoundsException();
+
+		int value = 0;
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | (this.buffer[this.valueOffset + offset + i] & 0xff);
+
+		return value;
+	}
+
+	/**
+	 * Copies the value of the current data object.
+	 *
+	 * @param destination Buffer to copy the value into.
+	 * @param offset      Offset within the destination buffer.
+	 * @return Length of the value.
+	 */
+	public int copyValue(final byte[] destination, final int offset) {
+		System.arraycopy(this.buffer, this.valueOffset, destination, offset, this.valueLength);
+
+		return this.valueLength;
+	}
+
+	/**
+	 * @return A copy of the value of the current data object.
+	 */
+	public byte[] getValue() {
+		final byte[] value = new byte[this.valueLength];
+
+		this.copyValue(value, 0);
+
+		return value;
+	}
+}
@@ -0,0 +1,70 @@
+package net.pp3345.ykdroid.apdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes BER-TLV data objects with single byte tags, the counterpart of {@link TlvReader}.
+ */
+public final class TlvWriter {
+	private TlvWriter() {
+	}
+
+	/**
+	 * Gets the encoded length of a data object.
+	 *
+	 * @param valueLength Length of the value.
+	 * @return Length of the encoded data object, including tag and length fields.
+	 */
+	public static int getEncodedLength(final int valueLength) {
+		if (valueLength < 0x80)
+			return 2 + valueLength;
+		if (valueLength <= 0xff)
+			return 3 + valueLength;
+		if (valueLength <= 0xffff)
+			return 4 + valueLength;
+
+		throw new IllegalArgumentException("Value exceeds " + 0xffff + " bytes");
+	}
+
+	/**
+	 * Encodes a data object, starting at the current position of the buffer.
+	 *
+	 * @param buffer The buffer to encode the data object into.
+	 * @param tag    The tag of the data object.
+	 * @param value  Buffer containing the value.
+	 * @param offset Offset of the value within its buffer.
+	 * @param length Length of the value.
+	 */
+	public static void put(final ByteBuffer buffer, final byte tag, final byte[] value, final int offset, final int length) {
+		buffer.put(tag);
+
+		// ISO 7816-4 5.2.2.2
+		if (length < 0x80) {
+			buffer.put((byte) length);
+		} else if (length <= 0xff) {
+			buffer.put((byte) 0x81);
+			buffer.put((byte) length);
+		} else if (length <= 0xffff) {
+			buffer.put((byte) 0x82);
+			buffer.put((byte) (length >> 8));
+			buffer.put((byte) length);
+		} else {
+			throw new IllegalArgumentException("Value exceeds " + 0xffff + " bytes");
+		}
+
+		buffer.put(value, offset, length);
+	}
+
+	/**
+	 * Encodes a data object with a single byte value.
+	 *
+	 * @param buffer The buffer to encode the data object into.
+	 * @param tag    The tag of the data object.
+	 * @param value  The value.
+	 */
+	public static void put(final ByteBuffer buffer, final byte tag, final byte value) {
+		buffer.put(tag);
+		buffer.put((byte) 1);
+		buffer.put(value);
+	}
+}
@@ -0,0 +1,15 @@
+package net.pp3345.ykdroid.apdu;
+
+import java.io.IOException;
+
+/**
+ * Sends encoded command APDUs to a smart card and receives the raw responses.
+ */
+public interface Transceiver {
+	/**
+	 * @param command The encoded command APDU.
+	 * @return The raw response APDU, including the status word.
+	 * @throws IOException When the communication with the card failed.
+	 */
+	byte[] transceive(byte[] command) throws IOException;
+}
@@ -49,7 +49,7 @@ public class SelectFileApdu extends CommandApdu {
 	public SelectFileApdu(final SelectionControl p1, final RecordOffset p2, final byte[] identifier) {
 		this.p1 = p1;
 		this.p2 = p2;
-		this.data = identifier;
+		this.setData(identifier, 0, identifier.length);
 	}
 
 	@Override
@@ -63,8 +63,13 @@ public class SelectFileApdu extends CommandApdu {
 	}
 
 	@Override
-	protected byte[] getParameters() {
-		return new byte[]{this.p1.getP1(), this.p2.getP2()};
+	protected byte getParameter1() {
+		return this.p1.getP1();
+	}
+
+	@Override
+	protected byte getParameter2() {
+		return this.p2.getP2();
 	}
 
 	@Override
@@ -0,0 +1,50 @@
+package net.pp3345.ykdroid.apdu.command.ykoath;
+
+import net.pp3345.ykdroid.apdu.CommandApdu;
+import net.pp3345.ykdroid.apdu.TlvWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * https://developers.yubico.com/OATH/YKOATH_Protocol.html
+ */
+public class CalculateAllApdu extends CommandApdu {
+	public static final byte TAG_CHALLENGE = (byte) 0x74;
+
+	/**
+	 * Requests truncated responses, i.e. the codes as they are displayed to the user.
+	 *
+	 * @param challenge The challenge, usually the TOTP time step as 8 byte big-endian integer.
+	 */
+	public CalculateAllApdu(final byte[] challenge) {
+		final byte[] data = new byte[TlvWriter.getEncodedLength(challenge.length)];
+
+		TlvWriter.put(ByteBuffer.wrap(data), TAG_CHALLENGE, challenge, 0, challenge.length);
+		this.setData(data, 0, data.length);
+	}
+
+	@Override
+	protected byte getCommandClass() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getInstruction() {
+		return (byte) 0xa4;
+	}
+
+	@Override
+	protected byte getParameter1() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getParameter2() {
+		return (byte) 0x01;
+	}
+
+	@Override
+	protected byte getExpectedLength() {
+		return (byte) 0x00;
+	}
+}
@@ -0,0 +1,54 @@
+package net.pp3345.ykdroid.apdu.command.ykoath;
+
+import net.pp3345.ykdroid.apdu.CommandApdu;
+import net.pp3345.ykdroid.apdu.TlvWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * https://developers.yubico.com/OATH/YKOATH_Protocol.html
+ */
+public class CalculateApdu extends CommandApdu {
+	public static final byte TAG_NAME = (byte) 0x71;
+
+	/**
+	 * Requests the truncated response of a single credential, i.e. the code as it is displayed to
+	 * the user.
+	 *
+	 * @param name      The name of the credential.
+	 * @param challenge The challenge, usually the TOTP time step as 8 byte big-endian integer.
+	 */
+	public CalculateApdu(final byte[] name, final byte[] challenge) {
+		final byte[]     data   = new byte[TlvWriter.getEncodedLength(name.length) + TlvWriter.getEncodedLength(challenge.length)];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		TlvWriter.put(buffer, TAG_NAME, name, 0, name.length);
+		TlvWriter.put(buffer, CalculateAllApdu.TAG_CHALLENGE, challenge, 0, challenge.length);
+		this.setData(data, 0, data.length);
+	}
+
+	@Override
+	protected byte getCommandClass() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getInstruction() {
+		return (byte) 0xa2;
+	}
+
+	@Override
+	protected byte getParameter1() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getParameter2() {
+		return (byte) 0x01;
+	}
+
+	@Override
+	protected byte getExpectedLength() {
+		return (byte) 0x00;
+	}
+}
@@ -0,0 +1,33 @@
+package net.pp3345.ykdroid.apdu.command.ykoath;
+
+import net.pp3345.ykdroid.apdu.CommandApdu;
+
+/**
+ * https://developers.yubico.com/OATH/YKOATH_Protocol.html
+ */
+public class ListApdu extends CommandApdu {
+	@Override
+	protected byte getCommandClass() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getInstruction() {
+		return (byte) 0xa1;
+	}
+
+	@Override
+	protected byte getParameter1() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getParameter2() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getExpectedLength() {
+		return (byte) 0x00;
+	}
+}
@@ -11,8 +11,12 @@ public class PutApdu extends CommandApdu {
 	private final Slot slot;
 
 	public PutApdu(final Slot slot, final byte[] challenge) {
+		this(slot, challenge, 0, challenge.length);
+	}
+
+	public PutApdu(final Slot slot, final byte[] challenge, final int offset, final int length) {
 		this.slot = slot;
-		this.data = challenge;
+		this.setData(challenge, offset, length);
 	}
 
 	@Override
@@ -26,8 +30,13 @@ public class PutApdu extends CommandApdu {
 	}
 
 	@Override
-	protected byte[] getParameters() {
-		return new byte[]{this.slot.getAddress(), (byte) 0x00};
+	protected byte getParameter1() {
+		return this.slot.getAddress();
+	}
+
+	@Override
+	protected byte getParameter2() {
+		return (byte) 0x00;
 	}
 
 	@Override
@@ -37,6 +46,11 @@ public class PutApdu extends CommandApdu {
 
 	@Override
 	public PutResponseApdu parseResponse(final byte[] response) {
-		return new PutResponseApdu(response);
+		return this.parseResponse(response, response.length);
+	}
+
+	@Override
+	public PutResponseApdu parseResponse(final byte[] response, final int length) {
+		return new PutResponseApdu(response, length);
 	}
 }
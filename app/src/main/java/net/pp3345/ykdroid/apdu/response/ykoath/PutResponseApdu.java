@@ -8,11 +8,19 @@ public class PutResponseApdu extends ResponseApdu {
 		super(response);
 	}
 
+	public PutResponseApdu(final byte[] response, final int length) {
+		super(response, length);
+	}
+
 	public byte[] getResult() {
 		final byte[] result = new byte[YubiKey.CHALLENGE_RESPONSE_LENGTH];
 
-		System.arraycopy(this.response, 0, result, 0, YubiKey.CHALLENGE_RESPONSE_LENGTH);
+		this.getResult(result, 0);
 
 		return result;
 	}
+
+	public void getResult(final byte[] buffer, final int offset) {
+		System.arraycopy(this.response, 0, buffer, offset, YubiKey.CHALLENGE_RESPONSE_LENGTH);
+	}
 }
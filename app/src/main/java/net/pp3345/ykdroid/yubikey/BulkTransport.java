@@ -0,0 +1,53 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Transport for the bulk transfers exchanged with the CCID (smart card) interface of a YubiKey.
+ * Decouples the {@link CcidTransport} from the Android USB host API, so that it can also be run
+ * against other implementations, e.g. a simulator.
+ */
+public interface BulkTransport {
+	/**
+	 * Claims exclusive access to the CCID interface.
+	 *
+	 * @return false, if the interface could not be claimed.
+	 */
+	boolean claim();
+
+	/**
+	 * Releases the CCID interface claimed by {@link #claim()}.
+	 */
+	void release();
+
+	/**
+	 * Sends data to the bulk OUT endpoint.
+	 *
+	 * @param data          Buffer containing the data.
+	 * @param length        Length of the data.
+	 * @param timeoutMillis Timeout of the transfer in milliseconds.
+	 * @return The number of bytes sent or a negative value on failure.
+	 */
+	int send(byte[] data, int length, int timeoutMillis);
+
+	/**
+	 * Receives data from the bulk IN endpoint. A single transfer ends once the buffer is full or
+	 * the device sent a short packet.
+	 *
+	 * @param buffer        Buffer to receive the data into.
+	 * @param offset        Offset within the buffer.
+	 * @param length        Maximum number of bytes to receive.
+	 * @param timeoutMillis Timeout of the transfer in milliseconds.
+	 * @return The number of bytes received or a negative value on failure.
+	 */
+	int receive(byte[] buffer, int offset, int length, int timeoutMillis);
+
+	/**
+	 * Sends the class-specific ABORT request to the CCID interface via the control endpoint. It
+	 * must be followed by a PC_to_RDR_Abort message with the same slot and sequence number.
+	 *
+	 * @param slot          The slot of the command to abort.
+	 * @param sequence      The sequence number of the command to abort.
+	 * @param timeoutMillis Timeout of the transfer in milliseconds.
+	 * @return A negative value on failure.
+	 */
+	int sendAbortRequest(int slot, int sequence, int timeoutMillis);
+}
@@ -0,0 +1,86 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Table-driven implementation of the CRC-16 (reflected ISO 13239 polynomial) that protects the
+ * frames exchanged with a YubiKey via USB. The checksum can be updated incrementally, e.g. as
+ * feature reports arrive.
+ */
+public class CRC16 {
+	/**
+	 * The residual that results from computing the checksum over data followed by its own
+	 * (little endian) CRC.
+	 */
+	public static final char OK_RESIDUAL = 0xf0b8;
+
+	private static final char   INITIAL_VALUE = 0xffff;
+	private static final char   POLYNOMIAL    = 0x8408;
+	private static final char[] TABLE         = new char[256];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			char crc = (char) i;
+
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 0b1) == 1 ? (char) ((crc >> 1) ^ POLYNOMIAL) : (char) (crc >> 1);
+
+			TABLE[i] = crc;
+		}
+	}
+
+	private char crc = INITIAL_VALUE;
+
+	/**
+	 * Computes the checksum of a buffer in one go.
+	 *
+	 * @param buffer Buffer containing the data.
+	 * @param offset Offset of the first byte to include.
+	 * @param length Number of bytes to include.
+	 * @return The CRC-16 of the data.
+	 */
+	public static char compute(final byte[] buffer, final int offset, final int length) {
+		return update(INITIAL_VALUE, buffer, offset, length);
+	}
+
+	private static char update(char crc, final byte[] buffer, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++)
+			crc = (char) ((crc >> 8) ^ TABLE[(crc ^ buffer[i]) & 0xff]);
+
+		return crc;
+	}
+
+	/**
+	 * Adds data to the checksum.
+	 *
+	 * @param buffer Buffer containing the data.
+	 * @param offset Offset of the first byte to include.
+	 * @param length Number of bytes to include.
+	 */
+	public void update(final byte[] buffer, final int offset, final int length) {
+		this.crc = update(this.crc, buffer, offset, length);
+	}
+
+	/**
+	 * Gets the checksum of all data added since the last reset.
+	 *
+	 * @return The current CRC-16 value.
+	 */
+	public char getValue() {
+		return this.crc;
+	}
+
+	/**
+	 * Checks whether the data added since the last reset was followed by its correct CRC.
+	 *
+	 * @return true, if the current value equals {@link #OK_RESIDUAL}.
+	 */
+	public boolean isResidualOk() {
+		return this.crc == OK_RESIDUAL;
+	}
+
+	/**
+	 * Resets the checksum so that a new computation can be started.
+	 */
+	public void reset() {
+		this.crc = INITIAL_VALUE;
+	}
+}
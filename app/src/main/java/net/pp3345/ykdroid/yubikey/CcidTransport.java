@@ -0,0 +1,300 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link NfcTransport} that exchanges APDUs with the CCID (smart card) interface of a YubiKey
+ * attached via USB, so that the APDU based driver used for NFC can be used via USB as well.
+ * <p>
+ * Each command APDU is sent in a single PC_to_RDR_XfrBlock message to the bulk OUT endpoint and
+ * the complete response APDU arrives in a single RDR_to_PC_DataBlock message from the bulk IN
+ * endpoint, so no status polling is required. Time extension requests, sent by the YubiKey while
+ * it waits for the user to press the button, are reported to the
+ * {@link #setTouchListener(YubiKey.TouchListener) touch listener} and honored for as long as the
+ * user may take, unless a {@link #setDeadline(long) deadline} ends the wait earlier. Commands that
+ * are cancelled or time out are aborted, so that the YubiKey stops waiting. The card is powered
+ * on when connecting and powered off when closing.
+ * </p>
+ * <p>
+ * Only short APDUs are supported, as the maximum message length of the reader is not known.
+ * </p>
+ */
+public class CcidTransport implements NfcTransport, UserInteractionTransport {
+	private static final int HEADER_LENGTH       = 10;
+	private static final int MAX_APDU_LENGTH     = 261;
+	private static final int MAX_RESPONSE_LENGTH = 258;
+
+	/**
+	 * Time the user may take to press the button, as for the OTP interface.
+	 */
+	private static final long USER_INTERACTION_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(256000);
+
+	private static final byte PC_TO_RDR_ICC_POWER_ON  = 0x62;
+	private static final byte PC_TO_RDR_ICC_POWER_OFF = 0x63;
+	private static final byte PC_TO_RDR_XFR_BLOCK     = 0x6f;
+	private static final byte PC_TO_RDR_ABORT         = 0x72;
+	private static final byte RDR_TO_PC_DATA_BLOCK    = (byte) 0x80;
+	private static final byte RDR_TO_PC_SLOT_STATUS   = (byte) 0x81;
+
+	private static final int COMMAND_STATUS_MASK           = 0xc0;
+	private static final int COMMAND_STATUS_TIME_EXTENSION = 0x80;
+
+	private static final int OFFSET_SEQUENCE = 6;
+	private static final int OFFSET_STATUS   = 7;
+	private static final int OFFSET_ERROR    = 8;
+
+	private final BulkTransport         transport;
+	private final byte[]                commandBuffer  = new byte[HEADER_LENGTH + MAX_APDU_LENGTH];
+	private final byte[]                responseBuffer = new byte[HEADER_LENGTH + MAX_RESPONSE_LENGTH];
+	private       boolean               connected;
+	private       int                   timeoutMillis  = 5000;
+	private       byte                  sequence;
+	private       long                  deadline;
+	private       boolean               hasDeadline;
+	private       YubiKey.TouchListener touchListener;
+
+	/**
+	 * @param transport The transport used to exchange CCID messages with the YubiKey.
+	 */
+	public CcidTransport(final BulkTransport transport) {
+		this.transport = transport;
+	}
+
+	@Override
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public synchronized void connect() throws IOException {
+		if (this.connected)
+			return;
+
+		if (!this.transport.claim())
+			throw new IOException("Failed to claim interface");
+
+		try {
+			// The answer to reset is not needed, the YubiKey always uses T=1 with APDU level exchange
+			this.exchange(PC_TO_RDR_ICC_POWER_ON, RDR_TO_PC_DATA_BLOCK, 0);
+		} catch (final IOException e) {
+			this.transport.release();
+			throw e;
+		}
+
+		this.connected = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!this.connected)
+			return;
+
+		this.connected = false;
+
+		try {
+			this.exchange(PC_TO_RDR_ICC_POWER_OFF, RDR_TO_PC_SLOT_STATUS, 0);
+		} finally {
+			this.transport.release();
+		}
+	}
+
+	@Override
+	public synchronized void setTimeout(final int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public synchronized void setDeadline(final long deadlineNanos) {
+		this.deadline = deadlineNanos;
+		this.hasDeadline = true;
+	}
+
+	@Override
+	public synchronized void clearDeadline() {
+		this.hasDeadline = false;
+	}
+
+	/**
+	 * The YubiKey is considered to wait for the user when it first requests a time extension for a
+	 * command APDU.
+	 */
+	@Override
+	public synchronized void setTouchListener(final YubiKey.TouchListener touchListener) {
+		this.touchListener = touchListener;
+	}
+
+	@Override
+	public synchronized byte[] transceive(final byte[] command) throws IOException {
+		if (!this.connected)
+			throw new IOException("Card is not powered");
+
+		if (command.length > MAX_APDU_LENGTH)
+			throw new IOException("Transceive length exceeds supported maximum");
+
+		System.arraycopy(command, 0, this.commandBuffer, HEADER_LENGTH, command.length);
+
+		final int    length   = this.exchange(PC_TO_RDR_XFR_BLOCK, RDR_TO_PC_DATA_BLOCK, command.length);
+		final byte[] response = new byte[length];
+		System.arraycopy(this.responseBuffer, HEADER_LENGTH, response, 0, length);
+
+		return response;
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return false;
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return MAX_APDU_LENGTH;
+	}
+
+	/**
+	 * Sends a message whose data was already copied into the {@link #commandBuffer} and receives
+	 * the response into the {@link #responseBuffer}.
+	 *
+	 * @return Length of the data of the response.
+	 */
+	private int exchange(final byte type, final byte responseType, final int length) throws IOException {
+		final byte sequence = this.sequence++;
+		final long start    = System.nanoTime();
+		long       deadline = this.limitDeadline(start + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis));
+
+		this.send(type, sequence, length);
+
+		try {
+			while (true) {
+				final int    responseLength = this.receive(deadline);
+				final byte[] response       = this.responseBuffer;
+
+				// Responses to commands that timed out before may still arrive
+				if (response[OFFSET_SEQUENCE] != sequence)
+					continue;
+
+				if ((response[OFFSET_STATUS] & COMMAND_STATUS_MASK) == COMMAND_STATUS_TIME_EXTENSION) {
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedIOException("CCID command was cancelled");
+
+					if (type == PC_TO_RDR_XFR_BLOCK && this.touchListener != null) {
+						final YubiKey.TouchListener touchListener = this.touchListener;
+
+						this.touchListener = null;
+						touchListener.onTouchPending();
+					}
+
+					// The YubiKey waits for the user, who may take much longer than any command
+					deadline = this.limitDeadline(start + USER_INTERACTION_TIMEOUT_NS);
+
+					continue;
+				}
+
+				if (response[0] != responseType)
+					throw new IOException("Unexpected CCID message type " + (response[0] & 0xff));
+
+				if ((response[OFFSET_STATUS] & COMMAND_STATUS_MASK) != 0)
+					throw new IOException("CCID command failed with error " + (response[OFFSET_ERROR] & 0xff));
+
+				return responseLength;
+			}
+		} catch (final InterruptedIOException e) {
+			if (type == PC_TO_RDR_XFR_BLOCK)
+				this.abort(sequence);
+
+			throw e;
+		}
+	}
+
+	private long limitDeadline(final long deadline) {
+		// Deadlines are compared by their difference, as System.nanoTime() may overflow
+		return this.hasDeadline && this.deadline - deadline < 0 ? this.deadline : deadline;
+	}
+
+	/**
+	 * Sends a message whose data was already copied into the {@link #commandBuffer}.
+	 */
+	private void send(final byte type, final byte sequence, final int length) throws IOException {
+		final byte[] command = this.commandBuffer;
+
+		command[0] = type;
+		command[1] = (byte) length;
+		command[2] = (byte) (length >> 8);
+		command[3] = (byte) (length >> 16);
+		command[4] = (byte) (length >> 24);
+		// Slot 0 and no message specific parameters
+		command[5] = 0;
+		command[OFFSET_SEQUENCE] = sequence;
+		command[7] = 0;
+		command[8] = 0;
+		command[9] = 0;
+
+		if (this.transport.send(command, HEADER_LENGTH + length, this.timeoutMillis) != HEADER_LENGTH + length)
+			throw new IOException("Failed to send CCID message");
+	}
+
+	/**
+	 * Aborts a command that was cancelled or timed out, so that the YubiKey stops waiting for the
+	 * user and accepts further commands. The ABORT control request must precede the
+	 * PC_to_RDR_Abort message, which is answered once the command was aborted.
+	 *
+	 * @param sequence The sequence number of the command.
+	 */
+	private void abort(final byte sequence) {
+		try {
+			if (this.transport.sendAbortRequest(0, sequence & 0xff, this.timeoutMillis) < 0)
+				return;
+
+			this.send(PC_TO_RDR_ABORT, sequence, 0);
+
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+
+			// The aborted command itself may still be answered before the abort
+			do {
+				this.receive(deadline);
+			} while (this.responseBuffer[0] != RDR_TO_PC_SLOT_STATUS || this.responseBuffer[OFFSET_SEQUENCE] != sequence);
+		} catch (final IOException ignored) {
+			// Powering the card off when closing the transport stops the command as well
+		}
+	}
+
+	/**
+	 * Receives a complete message into the {@link #responseBuffer}, which may take more than a
+	 * single transfer.
+	 *
+	 * @return Length of the data of the message.
+	 */
+	private int receive(final long deadline) throws IOException {
+		final byte[] response = this.responseBuffer;
+		int          received = 0;
+		int          expected = HEADER_LENGTH;
+
+		while (received < expected) {
+			final long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0)
+				throw new InterruptedIOException("CCID response timed out");
+
+			final int bytes = this.transport.receive(response, received, response.length - received, (int) TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+
+			if (bytes < 0)
+				throw new IOException("Failed to receive CCID message: " + bytes);
+
+			received += bytes;
+
+			if (expected == HEADER_LENGTH && received >= HEADER_LENGTH) {
+				final int length = (response[1] & 0xff) | ((response[2] & 0xff) << 8) | ((response[3] & 0xff) << 16) | ((response[4] & 0xff) << 24);
+
+				if (length < 0 || length > response.length - HEADER_LENGTH)
+					throw new IOException("CCID message too long: " + length);
+
+				expected = HEADER_LENGTH + length;
+			}
+		}
+
+		return expected - HEADER_LENGTH;
+	}
+}
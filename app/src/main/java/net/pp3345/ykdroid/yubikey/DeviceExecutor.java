@@ -0,0 +1,122 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the asynchronous operations of a single YubiKey one after another on a dedicated I/O
+ * thread. Operations submitted while another one is running are queued. The thread is only kept
+ * alive while there is work to do.
+ */
+class DeviceExecutor {
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param name Name of the I/O thread, used for debugging purposes.
+	 */
+	DeviceExecutor(final String name) {
+		this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues an operation.
+	 *
+	 * @param yubiKey   The YubiKey to execute the operation on.
+	 * @param operation The operation to execute.
+	 * @param callback  Called on the I/O thread once the operation completed, unless it was
+	 *                  cancelled, or on the calling thread if the executor was shut down. May be
+	 *                  null.
+	 * @param <T>       Type of the operation's result.
+	 * @return Handle that may be used to cancel the operation.
+	 */
+	<T> Future<T> submit(final YubiKey yubiKey, final YubiKey.Operation<T> operation, final YubiKey.OperationCallback<T> callback) {
+		final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws YubiKeyException {
+				return operation.execute(yubiKey);
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (callback == null || this.isCancelled())
+					return;
+
+				try {
+					callback.onSuccess(this.get());
+				} catch (final ExecutionException e) {
+					callback.onError(e.getCause() instanceof YubiKeyException ? (YubiKeyException) e.getCause() : new YubiKeyException(e.getCause()));
+				} catch (final InterruptedException ignored) {
+					// Can't happen as the task is done already
+				}
+			}
+		};
+
+		try {
+			this.executor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			// The executor was shut down as the YubiKey is gone
+			task.cancel(false);
+
+			if (callback != null)
+				callback.onError(new ConnectionLostException(e));
+		}
+
+		return task;
+	}
+
+	/**
+	 * Stops the I/O thread once the queued operations completed. Operations submitted afterwards
+	 * fail with a {@link ConnectionLostException}.
+	 */
+	void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Queues a challenge-response request.
+	 *
+	 * @param yubiKey   The YubiKey to send the challenge to.
+	 * @param slot      The YubiKey feature slot to use.
+	 * @param challenge Challenge bytes to send to the YubiKey.
+	 * @param callback  Called on the I/O thread once the request completed, unless it was cancelled.
+	 * @return Handle that may be used to cancel the request.
+	 */
+	Future<byte[]> challengeResponse(final YubiKey yubiKey, final Slot slot, final byte[] challenge, final YubiKey.ChallengeResponseCallback callback) {
+		return this.submit(yubiKey, new YubiKey.Operation<byte[]>() {
+			@Override
+			public byte[] execute(final YubiKey yubiKey) throws YubiKeyException {
+				return yubiKey.challengeResponse(slot, challenge);
+			}
+		}, new YubiKey.OperationCallback<byte[]>() {
+			@Override
+			public void onSuccess(final byte[] response) {
+				callback.onResponse(response);
+			}
+
+			@Override
+			public void onError(final YubiKeyException e) {
+				callback.onError(e);
+			}
+		});
+	}
+}
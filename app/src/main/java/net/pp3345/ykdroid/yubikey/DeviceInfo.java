@@ -0,0 +1,135 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Snapshot of the static properties of a YubiKey: serial number, firmware version, programming
+ * state and capabilities.
+ */
+public class DeviceInfo {
+	/**
+	 * Length of the status structure reported by YubiKeys (in bytes).
+	 */
+	static final int STATUS_LENGTH = 6;
+
+	private final int         serialNumber;
+	private final int         versionMajor;
+	private final int         versionMinor;
+	private final int         versionBuild;
+	private final int         programmingSequence;
+	private final int         touchLevel;
+	private final byte[]      capabilities;
+	private final SlotProfile slotProfile;
+
+	/**
+	 * @param serialNumber The serial number of the YubiKey.
+	 * @param status       Buffer containing the status structure reported by the YubiKey (version,
+	 *                     programming sequence and touch level).
+	 * @param statusOffset Offset of the status structure within the buffer.
+	 * @param capabilities Capabilities reported by the YubiKey or null, if not supported.
+	 */
+	DeviceInfo(final int serialNumber, final byte[] status, final int statusOffset, final byte[] capabilities) {
+		this.serialNumber = serialNumber;
+		this.versionMajor = status[statusOffset] & 0xff;
+		this.versionMinor = status[statusOffset + 1] & 0xff;
+		this.versionBuild = status[statusOffset + 2] & 0xff;
+		this.programmingSequence = status[statusOffset + 3] & 0xff;
+		this.touchLevel = (status[statusOffset + 4] & 0xff) | ((status[statusOffset + 5] & 0xff) << 8);
+		this.capabilities = capabilities;
+		this.slotProfile = new SlotProfile(status, statusOffset);
+	}
+
+	/**
+	 * Checks whether a firmware version supports reading the capabilities of a YubiKey.
+	 *
+	 * @param status       Buffer containing the status structure reported by the YubiKey.
+	 * @param statusOffset Offset of the status structure within the buffer.
+	 * @return true, if the firmware version is 4.1 or newer.
+	 */
+	static boolean supportsCapabilities(final byte[] status, final int statusOffset) {
+		final int major = status[statusOffset] & 0xff;
+
+		return major > 4 || (major == 4 && (status[statusOffset + 1] & 0xff) >= 1);
+	}
+
+	/**
+	 * Gets the serial number of the YubiKey.
+	 *
+	 * @return The 32-bit serial number.
+	 */
+	public int getSerialNumber() {
+		return this.serialNumber;
+	}
+
+	/**
+	 * Gets the major firmware version of the YubiKey.
+	 *
+	 * @return Major version
+	 */
+	public int getVersionMajor() {
+		return this.versionMajor;
+	}
+
+	/**
+	 * Gets the minor firmware version of the YubiKey.
+	 *
+	 * @return Minor version
+	 */
+	public int getVersionMinor() {
+		return this.versionMinor;
+	}
+
+	/**
+	 * Gets the firmware build number of the YubiKey.
+	 *
+	 * @return Build number
+	 */
+	public int getVersionBuild() {
+		return this.versionBuild;
+	}
+
+	/**
+	 * Gets the firmware version of the YubiKey as a string.
+	 *
+	 * @return Version in the format major.minor.build
+	 */
+	public String getVersion() {
+		return this.versionMajor + "." + this.versionMinor + "." + this.versionBuild;
+	}
+
+	/**
+	 * Gets the programming sequence number, which is incremented each time the configuration of
+	 * the YubiKey is changed.
+	 *
+	 * @return Programming sequence number
+	 */
+	public int getProgrammingSequence() {
+		return this.programmingSequence;
+	}
+
+	/**
+	 * Gets the touch level reported by the YubiKey, a bit field describing the configuration
+	 * state of the slots.
+	 *
+	 * @return Touch level bit field
+	 */
+	public int getTouchLevel() {
+		return this.touchLevel;
+	}
+
+	/**
+	 * Gets the profile of the slots, derived from the touch level.
+	 *
+	 * @return The slot profile at the time the device information was read.
+	 */
+	public SlotProfile getSlotProfile() {
+		return this.slotProfile;
+	}
+
+	/**
+	 * Gets the capabilities reported by the YubiKey (TLV encoded, prefixed by their length).
+	 *
+	 * @return A copy of the capabilities or null, if the YubiKey doesn't report them.
+	 */
+	public byte[] getCapabilities() {
+		return this.capabilities == null ? null : this.capabilities.clone();
+	}
+}
@@ -0,0 +1,104 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.YubiKeySession;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Session implementation shared by the YubiKey drivers. Delegates all operations to the driver,
+ * which keeps its connection established until the session is closed.
+ */
+class DriverSession implements YubiKeySession {
+	private final YubiKey  yubiKey;
+	private final Runnable onClose;
+	private       boolean  closed;
+
+	/**
+	 * @param yubiKey The driver that opened the session.
+	 * @param onClose Called exactly once when the session is closed, so that the driver may
+	 *                release its connection.
+	 */
+	DriverSession(final YubiKey yubiKey, final Runnable onClose) {
+		this.yubiKey = yubiKey;
+		this.onClose = onClose;
+	}
+
+	private synchronized void ensureOpen() {
+		if (this.closed)
+			throw new IllegalStateException("Session is closed");
+	}
+
+	@Override
+	public int getSerialNumber() throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.getSerialNumber();
+	}
+
+	@Override
+	public DeviceInfo getDeviceInfo() throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.getDeviceInfo();
+	}
+
+	@Override
+	public byte[] challengeResponse(final Slot slot, final byte[] challenge) throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.challengeResponse(slot, challenge);
+	}
+
+	@Override
+	public int challengeResponse(final Slot slot, final byte[] challenge, final int challengeOffset, final int challengeLength, final byte[] response, final int responseOffset) throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.challengeResponse(slot, challenge, challengeOffset, challengeLength, response, responseOffset);
+	}
+
+	@Override
+	public byte[] challengeResponse(final Slot slot, final byte[] challenge, final long timeoutMillis, final TouchListener touchListener) throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.challengeResponse(slot, challenge, timeoutMillis, touchListener);
+	}
+
+	@Override
+	public Future<byte[]> challengeResponseAsync(final Slot slot, final byte[] challenge, final ChallengeResponseCallback callback) {
+		this.ensureOpen();
+
+		return this.yubiKey.challengeResponseAsync(slot, challenge, callback);
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final Operation<T> operation, final OperationCallback<T> callback) {
+		this.ensureOpen();
+
+		return this.yubiKey.executeAsync(operation, callback);
+	}
+
+	@Override
+	public List<byte[]> challengeResponseBatch(final Slot slot, final List<byte[]> challenges) throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.challengeResponseBatch(slot, challenges);
+	}
+
+	@Override
+	public YubiKeySession openSession() throws YubiKeyException {
+		this.ensureOpen();
+
+		return this.yubiKey.openSession();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (this.closed)
+			return;
+
+		this.closed = true;
+		this.onClose.run();
+	}
+}
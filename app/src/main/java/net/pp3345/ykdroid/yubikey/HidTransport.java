@@ -0,0 +1,40 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Transport for the HID feature reports exchanged with the OTP interface of a YubiKey. Decouples
+ * {@link UsbYubiKey} from the Android USB host API, so that the driver can also be run against
+ * other implementations, e.g. a simulator.
+ */
+public interface HidTransport {
+	/**
+	 * Claims exclusive access to the OTP interface.
+	 *
+	 * @return false, if the interface could not be claimed.
+	 */
+	boolean claim();
+
+	/**
+	 * Releases the OTP interface claimed by {@link #claim()}.
+	 */
+	void release();
+
+	/**
+	 * Reads a feature report (HID GET_REPORT).
+	 *
+	 * @param report        Buffer to read the report into.
+	 * @param length        Length of the report.
+	 * @param timeoutMillis Timeout of the transfer in milliseconds.
+	 * @return The number of bytes read or a negative value on failure.
+	 */
+	int getFeatureReport(byte[] report, int length, int timeoutMillis);
+
+	/**
+	 * Writes a feature report (HID SET_REPORT).
+	 *
+	 * @param report        Buffer containing the report.
+	 * @param length        Length of the report.
+	 * @param timeoutMillis Timeout of the transfer in milliseconds.
+	 * @return The number of bytes written or a negative value on failure.
+	 */
+	int setFeatureReport(byte[] report, int length, int timeoutMillis);
+}
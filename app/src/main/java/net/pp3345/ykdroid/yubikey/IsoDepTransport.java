@@ -0,0 +1,54 @@
+package net.pp3345.ykdroid.yubikey;
+
+import android.nfc.tech.IsoDep;
+
+import java.io.IOException;
+
+/**
+ * {@link NfcTransport} that exchanges APDUs with an ISO-DEP tag via the Android NFC API.
+ */
+public class IsoDepTransport implements NfcTransport {
+	private final IsoDep tag;
+
+	/**
+	 * @param tag YubiKey NEOs provide the functionality of ISO-DEP (14443-4) tags.
+	 */
+	public IsoDepTransport(final IsoDep tag) {
+		this.tag = tag;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.tag.isConnected();
+	}
+
+	@Override
+	public void connect() throws IOException {
+		this.tag.connect();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.tag.close();
+	}
+
+	@Override
+	public void setTimeout(final int timeoutMillis) {
+		this.tag.setTimeout(timeoutMillis);
+	}
+
+	@Override
+	public byte[] transceive(final byte[] command) throws IOException {
+		return this.tag.transceive(command);
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return this.tag.isExtendedLengthApduSupported();
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return this.tag.getMaxTransceiveLength();
+	}
+}
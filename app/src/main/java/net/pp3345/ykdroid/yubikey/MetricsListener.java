@@ -0,0 +1,100 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Listener for performance metrics of the YubiKey drivers and the connection management. Methods
+ * are called synchronously on the thread that executes the operation and should thus return
+ * quickly.
+ */
+public interface MetricsListener {
+	/**
+	 * The phases that are measured. Each phase also appears as a named section in system traces.
+	 */
+	enum Phase {
+		/**
+		 * Enumerating the attached USB devices.
+		 */
+		ENUMERATE("ykDroid:enumerate"),
+		/**
+		 * Opening a USB device.
+		 */
+		OPEN_DEVICE("ykDroid:openDevice"),
+		/**
+		 * Claiming the OTP interface of a YubiKey connected via USB.
+		 */
+		CLAIM("ykDroid:claim"),
+		/**
+		 * Writing a frame to a YubiKey connected via USB, including the status polls before each
+		 * feature report.
+		 */
+		WRITE("ykDroid:write"),
+		/**
+		 * Waiting for the user to press the button on the YubiKey.
+		 */
+		TOUCH_WAIT("ykDroid:touchWait"),
+		/**
+		 * Waiting for and reading a response from a YubiKey connected via USB.
+		 */
+		READ_RESPONSE("ykDroid:readResponse"),
+		/**
+		 * Verifying the CRC of a response. The CRC is computed while the response is read, so this
+		 * phase only covers the final verification.
+		 */
+		CRC_CHECK("ykDroid:crcCheck"),
+		/**
+		 * Connecting to a YubiKey via NFC.
+		 */
+		CONNECT("ykDroid:connect"),
+		/**
+		 * Exchanging an APDU with a YubiKey.
+		 */
+		TRANSCEIVE("ykDroid:transceive");
+
+		private final String traceSectionName;
+
+		Phase(final String traceSectionName) {
+			this.traceSectionName = traceSectionName;
+		}
+
+		/**
+		 * Gets the name of the section that represents this phase in system traces.
+		 *
+		 * @return Trace section name
+		 */
+		public String getTraceSectionName() {
+			return this.traceSectionName;
+		}
+	}
+
+	/**
+	 * Listener that discards all metrics.
+	 */
+	MetricsListener NO_OP = new MetricsListener() {
+		@Override
+		public void onPhaseCompleted(final Phase phase, final long durationNanos, final int polls, final int bytesTransferred) {
+		}
+
+		@Override
+		public void onError(final Phase phase, final Exception cause) {
+		}
+	};
+
+	/**
+	 * Called when a phase was completed, regardless of whether it was successful.
+	 *
+	 * @param phase            The completed phase.
+	 * @param durationNanos    Duration of the phase in nanoseconds.
+	 * @param polls            Number of status reports read during the phase.
+	 * @param bytesTransferred Number of bytes sent and received during the phase.
+	 */
+	void onPhaseCompleted(Phase phase, long durationNanos, int polls, int bytesTransferred);
+
+	/**
+	 * Called when a phase failed. If phases are nested, this is called for every phase the failure
+	 * propagates out of, innermost phase first. Each call is followed by a call to
+	 * {@link #onPhaseCompleted(Phase, long, int, int)} for the same phase.
+	 *
+	 * @param phase The failed phase.
+	 * @param cause The exception that caused the failure.
+	 */
+	void onError(Phase phase, Exception cause);
+}
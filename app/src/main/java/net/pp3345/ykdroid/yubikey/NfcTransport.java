@@ -0,0 +1,50 @@
+package net.pp3345.ykdroid.yubikey;
+
+import java.io.IOException;
+
+/**
+ * Transport for the APDUs exchanged with a YubiKey via NFC (ISO-DEP) or via its USB CCID interface
+ * (see {@link CcidTransport}). Decouples {@link NfcYubiKey} from the Android NFC API, so that the
+ * driver can also be run against other implementations, e.g. a simulator.
+ */
+public interface NfcTransport {
+	/**
+	 * @return true, if the connection to the tag is open.
+	 */
+	boolean isConnected();
+
+	/**
+	 * Opens the connection to the tag.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Closes the connection to the tag.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Sets the timeout of {@link #transceive(byte[])}.
+	 *
+	 * @param timeoutMillis Timeout in milliseconds.
+	 */
+	void setTimeout(int timeoutMillis);
+
+	/**
+	 * Sends a command APDU and receives the response APDU.
+	 *
+	 * @param command The encoded command.
+	 * @return The response, including the status word.
+	 */
+	byte[] transceive(byte[] command) throws IOException;
+
+	/**
+	 * @return true, if command APDUs may use extended length fields.
+	 */
+	boolean isExtendedLengthApduSupported();
+
+	/**
+	 * @return The maximum length of a command APDU in bytes.
+	 */
+	int getMaxTransceiveLength();
+}
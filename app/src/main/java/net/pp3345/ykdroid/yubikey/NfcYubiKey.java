@@ -3,17 +3,39 @@ package net.pp3345.ykdroid.yubikey;
 import android.nfc.tech.IsoDep;
 
 import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.YubiKeySession;
+import net.pp3345.ykdroid.apdu.CommandApdu;
+import net.pp3345.ykdroid.apdu.ResponseApdu;
+import net.pp3345.ykdroid.apdu.ResponseChainReader;
+import net.pp3345.ykdroid.apdu.Transceiver;
 import net.pp3345.ykdroid.apdu.command.iso.SelectFileApdu;
 import net.pp3345.ykdroid.apdu.command.ykoath.PutApdu;
 import net.pp3345.ykdroid.apdu.response.ykoath.PutResponseApdu;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * NFC YubiKey driver implementation.
  */
 public class NfcYubiKey implements YubiKey {
-	private final IsoDep tag;
+	private final NfcTransport        transport;
+	private final DeviceExecutor      executor;
+	private final ResponseChainReader responseReader;
+	private final OathApplet          oathApplet;
+	private       int                 sessions;
+	private       boolean             connectedBySession;
+	private       boolean             appletSelected;
+	private       boolean             oathAppletSelected;
+	private       byte[]              appletStatus;
+	private       byte[]              commandBuffer   = new byte[0];
+	private       DeviceInfo          deviceInfo;
+	private       MetricsListener     metricsListener = MetricsListener.NO_OP;
 
 	/**
 	 * The scheme of the URI passed in the initial NDEF messages sent by YubiKey NEOs.
@@ -28,44 +50,489 @@ public class NfcYubiKey implements YubiKey {
 	 */
 	private static final byte[] CHALLENGE_AID           = new byte[]{(byte) 0xa0, 0x00, 0x00, 0x05, 0x27, 0x20, 0x01};
 
+	private static final int TRANSCEIVE_TIMEOUT_MS = 10000;
+
+	private static final int SW_FILE_NOT_FOUND            = 0x6a82;
+	private static final int SW_INSTRUCTION_NOT_SUPPORTED = 0x6d00;
+	private static final int SW_CLASS_NOT_SUPPORTED       = 0x6e00;
+
 	/**
 	 * Should only be instantiated by the {@link net.pp3345.ykdroid.ConnectionManager}.
 	 *
 	 * @param tag YubiKey NEOs provide the functionality of ISO-DEP (14443-4) tags.
 	 */
 	public NfcYubiKey(final IsoDep tag) {
-		this.tag = tag;
+		this(new IsoDepTransport(tag));
+	}
+
+	/**
+	 * Instantiates the driver on top of an arbitrary transport, e.g. a simulator. Does not depend
+	 * on the Android NFC API.
+	 *
+	 * @param transport The transport used to exchange APDUs with the YubiKey.
+	 */
+	public NfcYubiKey(final NfcTransport transport) {
+		this(transport, new DeviceExecutor("NfcYubiKey"));
+	}
+
+	/**
+	 * Instantiates the driver for the CCID interface of a YubiKey attached via USB, whose
+	 * asynchronous operations share the I/O thread of the {@link UsbYubiKey}.
+	 *
+	 * @param transport The transport used to exchange APDUs with the YubiKey.
+	 * @param executor  The executor of the USB driver.
+	 */
+	NfcYubiKey(final NfcTransport transport, final DeviceExecutor executor) {
+		this.transport = transport;
+		this.executor = executor;
+		final Transceiver transceiver = new Transceiver() {
+			@Override
+			public byte[] transceive(final byte[] command) throws IOException {
+				return NfcYubiKey.this.transceive(command);
+			}
+		};
+
+		this.responseReader = new ResponseChainReader(transceiver);
+		this.oathApplet = new OathApplet(this, transceiver);
+	}
+
+	/**
+	 * Sets the listener that receives performance metrics of this driver.
+	 *
+	 * @param listener The listener or null, if metrics should be discarded.
+	 */
+	public void setMetricsListener(final MetricsListener listener) {
+		this.metricsListener = listener == null ? MetricsListener.NO_OP : listener;
 	}
 
 	private void ensureConnected() throws IOException {
-		if (!this.tag.isConnected()) {
-			this.tag.connect();
-			this.tag.setTimeout(10000);
+		if (!this.transport.isConnected()) {
+			final long start = PhaseTracer.begin(MetricsListener.Phase.CONNECT);
+
+			try {
+				this.transport.connect();
+				this.transport.setTimeout(TRANSCEIVE_TIMEOUT_MS);
+				this.appletSelected = false;
+				this.oathAppletSelected = false;
+			} catch (final IOException e) {
+				this.metricsListener.onError(MetricsListener.Phase.CONNECT, e);
+				throw e;
+			} finally {
+				PhaseTracer.end(this.metricsListener, MetricsListener.Phase.CONNECT, start, 0, 0);
+			}
+		}
+	}
+
+	private byte[] transceive(final byte[] command) throws IOException {
+		final long start    = PhaseTracer.begin(MetricsListener.Phase.TRANSCEIVE);
+		byte[]     response = null;
+
+		try {
+			response = this.transport.transceive(command);
+
+			return response;
+		} catch (final IOException e) {
+			this.metricsListener.onError(MetricsListener.Phase.TRANSCEIVE, e);
+			throw e;
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.TRANSCEIVE, start, 0, command.length + (response == null ? 0 : response.length));
+		}
+	}
+
+	/**
+	 * Encodes and sends a command to the YubiKey and reads the response using GET RESPONSE, see
+	 * {@link #transceive(CommandApdu, ResponseChainReader)}.
+	 *
+	 * @param apdu The command to send.
+	 * @return Length of the complete response in the buffer of the {@link #responseReader}.
+	 * @throws FailedOperationException When the command exceeds what the NFC controller can send.
+	 */
+	private int transceive(final CommandApdu apdu) throws IOException, YubiKeyException {
+		return this.transceive(apdu, this.responseReader);
+	}
+
+	/**
+	 * Encodes and sends a command to the YubiKey. Extended length fields are only used if the
+	 * command does not fit into a short APDU and the NFC controller supports them.
+	 *
+	 * @param apdu           The command to send.
+	 * @param responseReader Reads the response, e.g. one requesting the remaining data of an
+	 *                       applet that does not use GET RESPONSE.
+	 * @return Length of the complete response in the buffer of the response reader.
+	 * @throws FailedOperationException When the command exceeds what the NFC controller can send.
+	 */
+	int transceive(final CommandApdu apdu, final ResponseChainReader responseReader) throws IOException, YubiKeyException {
+		final boolean extendedLength = apdu.requiresExtendedLength();
+		final int     length         = apdu.getEncodedLength(extendedLength);
+
+		if ((extendedLength && !this.transport.isExtendedLengthApduSupported()) || length > this.transport.getMaxTransceiveLength())
+			throw new FailedOperationException();
+
+		// IsoDep only accepts exactly sized arrays, so the buffer is reused as long as consecutive
+		// commands (e.g. challenges) have the same length
+		if (this.commandBuffer.length != length)
+			this.commandBuffer = new byte[length];
+
+		apdu.encode(ByteBuffer.wrap(this.commandBuffer), extendedLength);
+
+		return responseReader.read(this.transceive(this.commandBuffer));
+	}
+
+	private void selectApplet() throws IOException, YubiKeyException {
+		if (this.appletSelected)
+			return;
+
+		final SelectFileApdu selectFileApdu = new SelectFileApdu(SelectFileApdu.SelectionControl.DF_NAME_DIRECT, SelectFileApdu.RecordOffset.FIRST_RECORD, CHALLENGE_AID);
+		final int            length         = this.transceive(selectFileApdu);
+		final ResponseApdu   response       = selectFileApdu.parseResponse(this.responseReader.getBuffer(), length);
+		if (!response.isSuccess()) {
+			throw new FailedOperationException();
+		}
+
+		// The applet reports its status (version etc.) when it is selected
+		this.appletStatus = response.getData();
+
+		// The selection remains valid for as long as the tag stays connected
+		this.appletSelected = true;
+		this.oathAppletSelected = false;
+	}
+
+	/**
+	 * Checks whether the challenge-response applet is available, selecting it if so. Closes the
+	 * connection otherwise, unless a session is open.
+	 *
+	 * @return false, if the YubiKey does not provide the applet via this transport.
+	 */
+	synchronized boolean selectAppletIfAvailable() throws YubiKeyException {
+		try {
+			this.ensureConnected();
+			this.selectApplet();
+
+			return true;
+		} catch (final FailedOperationException e) {
+			if (this.sessions == 0)
+				this.disconnect();
+
+			return false;
+		} catch (final IOException e) {
+			this.appletSelected = false;
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	private void selectOathApplet() throws IOException, YubiKeyException {
+		if (this.oathAppletSelected)
+			return;
+
+		this.appletSelected = false;
+		this.oathApplet.select();
+		this.oathAppletSelected = true;
+	}
+
+	/**
+	 * Lists the OATH credentials stored on the YubiKey.
+	 *
+	 * @param listener Receives the credentials as they are parsed.
+	 * @throws FailedOperationException When the YubiKey does not provide the OATH applet or the
+	 *                                  credentials are protected by an access code.
+	 */
+	public synchronized void listOathCredentials(final OathApplet.ListListener listener) throws YubiKeyException {
+		try {
+			this.ensureConnected();
+			this.selectOathApplet();
+			this.oathApplet.list(listener);
+		} catch (final IOException e) {
+			this.oathAppletSelected = false;
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	/**
+	 * Calculates the codes of all OATH credentials stored on the YubiKey in a single request.
+	 *
+	 * @param timestamp The time to calculate TOTP codes for, in milliseconds since the epoch.
+	 * @param listener  Receives the codes as they are parsed.
+	 * @throws FailedOperationException When the YubiKey does not provide the OATH applet or the
+	 *                                  credentials are protected by an access code.
+	 */
+	public synchronized void calculateAllOathCodes(final long timestamp, final OathApplet.CalculateListener listener) throws YubiKeyException {
+		try {
+			this.ensureConnected();
+			this.selectOathApplet();
+			this.oathApplet.calculateAll(timestamp, listener);
+		} catch (final IOException e) {
+			this.oathAppletSelected = false;
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	/**
+	 * Calculates the code of a single OATH credential, e.g. a HOTP credential skipped by
+	 * {@link #calculateAllOathCodes(long, OathApplet.CalculateListener)}.
+	 *
+	 * @param name      The name of the credential.
+	 * @param timestamp The time to calculate a TOTP code for, in milliseconds since the epoch.
+	 * @return The code, zero-padded to the number of digits configured for the credential.
+	 * @throws FailedOperationException When the YubiKey does not provide the OATH applet or the
+	 *                                  credential does not exist.
+	 */
+	public synchronized String calculateOathCode(final String name, final long timestamp) throws YubiKeyException {
+		try {
+			this.ensureConnected();
+			this.selectOathApplet();
+
+			return this.oathApplet.calculate(name, timestamp);
+		} catch (final IOException e) {
+			this.oathAppletSelected = false;
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	/**
+	 * Checks whether a status word indicates that the challenge-response applet is not selected
+	 * (anymore).
+	 *
+	 * @param statusWord The status word returned by the YubiKey.
+	 * @return true, if the applet must be selected again.
+	 */
+	private static boolean isSelectionLost(final int statusWord) {
+		return statusWord == SW_FILE_NOT_FOUND || statusWord == SW_INSTRUCTION_NOT_SUPPORTED || statusWord == SW_CLASS_NOT_SUPPORTED;
+	}
+
+	@Override
+	public Future<byte[]> challengeResponseAsync(final Slot slot, final byte[] challenge, final ChallengeResponseCallback callback) {
+		return this.executor.challengeResponse(this, slot, challenge, callback);
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final Operation<T> operation, final OperationCallback<T> callback) {
+		return this.executor.submit(this, operation, callback);
+	}
+
+	@Override
+	public List<byte[]> challengeResponseBatch(final Slot slot, final List<byte[]> challenges) throws YubiKeyException {
+		slot.ensureChallengeResponseSlot();
+
+		final List<byte[]> responses = new ArrayList<>(challenges.size());
+
+		try (final YubiKeySession session = this.openSession()) {
+			for (final byte[] challenge : challenges)
+				responses.add(session.challengeResponse(slot, challenge));
+		}
+
+		return responses;
+	}
+
+	@Override
+	public synchronized YubiKeySession openSession() throws YubiKeyException {
+		// The connection is left as the first session found it, so that a batch of requests does
+		// not cost a reconnect and a re-selection afterwards
+		if (this.sessions++ == 0)
+			this.connectedBySession = !this.transport.isConnected();
+
+		try {
+			this.ensureConnected();
+			this.selectApplet();
+		} catch (final IOException e) {
+			this.closeSession();
+			throw new ConnectionLostException(e);
+		} catch (final YubiKeyException e) {
+			this.closeSession();
+			throw e;
+		}
+
+		return new DriverSession(this, new Runnable() {
+			@Override
+			public void run() {
+				NfcYubiKey.this.closeSession();
+			}
+		});
+	}
+
+	private synchronized void closeSession() {
+		if (--this.sessions > 0 || !this.connectedBySession)
+			return;
+
+		this.disconnect();
+	}
+
+	/**
+	 * Closes the connection unless a session is open, e.g. to release the USB interface between
+	 * operations. The next operation connects and selects the applet again.
+	 */
+	synchronized void closeIfIdle() {
+		if (this.sessions == 0)
+			this.disconnect();
+	}
+
+	private void disconnect() {
+		this.appletSelected = false;
+		this.oathAppletSelected = false;
+
+		try {
+			this.transport.close();
+		} catch (final IOException ignored) {
+		}
+	}
+
+	/**
+	 * Sends a request to the challenge-response applet, selecting it again if necessary.
+	 *
+	 * @param putApdu The request to send.
+	 * @return The successful response, valid until the next command is sent.
+	 * @throws FailedOperationException When the YubiKey indicated failure.
+	 */
+	private PutResponseApdu put(final PutApdu putApdu) throws IOException, YubiKeyException {
+		int             length          = this.transceive(putApdu);
+		PutResponseApdu putResponseApdu = putApdu.parseResponse(this.responseReader.getBuffer(), length);
+
+		if (isSelectionLost(putResponseApdu.getStatusWord())) {
+			this.appletSelected = false;
+			this.selectApplet();
+
+			length = this.transceive(putApdu);
+			putResponseApdu = putApdu.parseResponse(this.responseReader.getBuffer(), length);
+		}
+
+		if (!putResponseApdu.isSuccess()) {
+			throw new FailedOperationException();
+		}
+
+		return putResponseApdu;
+	}
+
+	@Override
+	public int getSerialNumber() throws YubiKeyException {
+		return this.getDeviceInfo().getSerialNumber();
+	}
+
+	@Override
+	public synchronized DeviceInfo getDeviceInfo() throws YubiKeyException {
+		if (this.deviceInfo != null)
+			return this.deviceInfo;
+
+		try {
+			this.ensureConnected();
+			this.selectApplet();
+
+			final byte[] serial = this.put(new PutApdu(Slot.DEVICE_SERIAL, new byte[0])).getData();
+
+			if (serial.length < 4 || this.appletStatus.length < DeviceInfo.STATUS_LENGTH)
+				throw new InvalidResponseException();
+
+			byte[] capabilities = null;
+			if (DeviceInfo.supportsCapabilities(this.appletStatus, 0)) {
+				try {
+					capabilities = this.put(new PutApdu(Slot.YUBIKEY_4_CAPABILITIES, new byte[0])).getData();
+				} catch (final FailedOperationException ignored) {
+					// Not all applet versions provide the capabilities via NFC
+				}
+			}
+
+			this.deviceInfo = new DeviceInfo(((serial[0] & 0xff) << 24) | ((serial[1] & 0xff) << 16) | ((serial[2] & 0xff) << 8) | (serial[3] & 0xff), this.appletStatus, 0, capabilities);
+
+			return this.deviceInfo;
+		} catch (final IOException e) {
+			this.appletSelected = false;
+			throw new ConnectionLostException(e);
 		}
 	}
 
 	@Override
 	public byte[] challengeResponse(final Slot slot, final byte[] challenge) throws YubiKeyException {
+		final byte[] response = new byte[CHALLENGE_RESPONSE_LENGTH];
+
+		this.challengeResponse(slot, challenge, 0, challenge.length, response, 0);
+
+		return response;
+	}
+
+	@Override
+	public synchronized int challengeResponse(final Slot slot, final byte[] challenge, final int challengeOffset, final int challengeLength, final byte[] response, final int responseOffset) throws YubiKeyException {
 		slot.ensureChallengeResponseSlot();
 
 		try {
 			this.ensureConnected();
+			this.selectApplet();
 
-			final SelectFileApdu selectFileApdu = new SelectFileApdu(SelectFileApdu.SelectionControl.DF_NAME_DIRECT, SelectFileApdu.RecordOffset.FIRST_RECORD, CHALLENGE_AID);
-			if (!selectFileApdu.parseResponse(this.tag.transceive(selectFileApdu.build())).isSuccess()) {
-				throw new FailedOperationException();
-			}
+			// The status reported when selecting the applet tells whether the slot may be programmed
+			// for challenge-response
+			if (this.appletStatus.length >= DeviceInfo.STATUS_LENGTH)
+				new SlotProfile(this.appletStatus, 0).ensureChallengeResponse(slot);
+
+			final PutResponseApdu putResponseApdu = this.put(new PutApdu(slot, challenge, challengeOffset, challengeLength));
+
+			putResponseApdu.getResult(response, responseOffset);
+
+			return CHALLENGE_RESPONSE_LENGTH;
+		} catch (final InterruptedIOException e) {
+			// The transport gave up waiting for the user
+			this.appletSelected = false;
+
+			if (Thread.currentThread().isInterrupted())
+				throw new OperationCancelledException();
+
+			throw new TimeoutException();
+		} catch (final IOException e) {
+			this.appletSelected = false;
+			throw new ConnectionLostException(e);
+		}
+	}
+
+	@Override
+	public synchronized byte[] challengeResponse(final Slot slot, final byte[] challenge, final long timeoutMillis, final TouchListener touchListener) throws YubiKeyException {
+		// Via NFC, a request consists of a few short transceives that can't be interrupted, so
+		// cancellation is only checked before it is sent. YubiKeys never wait for the user via NFC,
+		// as holding them to the reader counts as user presence already. Via CCID, the transport
+		// checks for cancellation while the YubiKey waits for the user.
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			throw new OperationCancelledException();
+		}
+
+		final long    deadline     = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final boolean limitTimeout = timeoutMillis > 0 && timeoutMillis < TRANSCEIVE_TIMEOUT_MS;
+
+		final UserInteractionTransport userInteractionTransport = this.transport instanceof UserInteractionTransport ? (UserInteractionTransport) this.transport : null;
 
-			final PutApdu         putApdu         = new PutApdu(slot, challenge);
-			final PutResponseApdu putResponseApdu = putApdu.parseResponse(this.tag.transceive(putApdu.build()));
+		try {
+			if (userInteractionTransport != null) {
+				// Bounds the whole request, including the time the YubiKey waits for the user
+				if (timeoutMillis > 0)
+					userInteractionTransport.setDeadline(deadline);
 
-			if (!putResponseApdu.isSuccess()) {
-				throw new FailedOperationException();
+				// Whether a slot requires touch is not reported, so the transport has to tell when
+				// the YubiKey waits for the user
+				userInteractionTransport.setTouchListener(touchListener);
 			}
 
-			return putResponseApdu.getResult();
+			this.ensureConnected();
+
+			if (limitTimeout)
+				this.transport.setTimeout((int) timeoutMillis);
+
+			return this.challengeResponse(slot, challenge);
+		} catch (final ConnectionLostException e) {
+			// IsoDep reports a transceive timeout like any other failure
+			if (timeoutMillis > 0 && System.nanoTime() - deadline >= 0)
+				throw new TimeoutException();
+
+			throw e;
 		} catch (final IOException e) {
+			this.appletSelected = false;
+
+			if (timeoutMillis > 0 && System.nanoTime() - deadline >= 0)
+				throw new TimeoutException();
+
 			throw new ConnectionLostException(e);
+		} finally {
+			if (limitTimeout)
+				this.transport.setTimeout(TRANSCEIVE_TIMEOUT_MS);
+
+			if (userInteractionTransport != null) {
+				userInteractionTransport.clearDeadline();
+				userInteractionTransport.setTouchListener(null);
+			}
 		}
 	}
 }
@@ -0,0 +1,244 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.apdu.CommandApdu;
+import net.pp3345.ykdroid.apdu.ResponseApdu;
+import net.pp3345.ykdroid.apdu.ResponseChainReader;
+import net.pp3345.ykdroid.apdu.TlvReader;
+import net.pp3345.ykdroid.apdu.Transceiver;
+import net.pp3345.ykdroid.apdu.command.iso.SelectFileApdu;
+import net.pp3345.ykdroid.apdu.command.ykoath.CalculateAllApdu;
+import net.pp3345.ykdroid.apdu.command.ykoath.CalculateApdu;
+import net.pp3345.ykdroid.apdu.command.ykoath.ListApdu;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client for the YKOATH applet, which stores OATH (TOTP/HOTP) credentials on the YubiKey.
+ * <p>
+ * Credentials protected by an access code are not supported: the YubiKey refuses to list or
+ * calculate them until the access code was validated.
+ * </p>
+ *
+ * @see <a href="https://developers.yubico.com/OATH/YKOATH_Protocol.html">YKOATH protocol</a>
+ */
+public class OathApplet {
+	/**
+	 * The type of an OATH credential.
+	 */
+	public enum Type {
+		HOTP,
+		TOTP,
+		UNKNOWN
+	}
+
+	/**
+	 * Receives the credentials stored on a YubiKey, in the order they are parsed.
+	 */
+	public interface ListListener {
+		void onCredential(String name, Type type);
+	}
+
+	/**
+	 * Receives the codes calculated by a YubiKey, in the order they are parsed.
+	 */
+	public interface CalculateListener {
+		/**
+		 * @param name The name of the credential.
+		 * @param code The code, zero-padded to the number of digits configured for the credential.
+		 */
+		void onCode(String name, String code);
+
+		/**
+		 * Called for HOTP credentials, which are not calculated by CALCULATE ALL to avoid advancing
+		 * their counters.
+		 *
+		 * @param name The name of the credential.
+		 */
+		void onHotpCredential(String name);
+
+		/**
+		 * Called for credentials that require the user to touch the YubiKey before they can be
+		 * calculated.
+		 *
+		 * @param name The name of the credential.
+		 */
+		void onTouchRequired(String name);
+	}
+
+	/**
+	 * The time step used for calculating TOTP codes. Codes of credentials configured with another
+	 * period must be calculated separately.
+	 */
+	public static final  long   TOTP_PERIOD_MS = 30000;
+	/**
+	 * ISO 7816 Application ID of the OATH applet.
+	 */
+	private static final byte[] OATH_AID       = new byte[]{(byte) 0xa0, 0x00, 0x00, 0x05, 0x27, 0x21, 0x01};
+
+	private static final byte TAG_NAME           = (byte) 0x71;
+	private static final byte TAG_NAME_LIST      = (byte) 0x72;
+	private static final byte TAG_TRUNCATED      = (byte) 0x76;
+	private static final byte TAG_HOTP           = (byte) 0x77;
+	private static final byte TAG_TOUCH_REQUIRED = (byte) 0x7c;
+
+	private static final int TYPE_MASK = 0xf0;
+	private static final int TYPE_HOTP = 0x10;
+	private static final int TYPE_TOTP = 0x20;
+
+	private final NfcYubiKey          yubiKey;
+	private final ResponseChainReader responseReader;
+	private final TlvReader           tlvReader  = new TlvReader();
+	private final char[]              codeBuffer = new char[10];
+
+	/**
+	 * @param yubiKey     Used to encode and send commands to the YubiKey.
+	 * @param transceiver Used to request the remaining data of chained responses.
+	 */
+	OathApplet(final NfcYubiKey yubiKey, final Transceiver transceiver) {
+		this.yubiKey = yubiKey;
+		// The OATH applet uses SEND REMAINING instead of GET RESPONSE for chained responses
+		this.responseReader = new ResponseChainReader(transceiver, ResponseChainReader.INS_SEND_REMAINING);
+	}
+
+	private ResponseApdu send(final CommandApdu apdu) throws IOException, YubiKeyException {
+		final int          length   = this.yubiKey.transceive(apdu, this.responseReader);
+		final ResponseApdu response = apdu.parseResponse(this.responseReader.getBuffer(), length);
+
+		if (!response.isSuccess())
+			throw new FailedOperationException();
+
+		return response;
+	}
+
+	/**
+	 * Selects the OATH applet. Must be called before any other command is sent.
+	 *
+	 * @throws FailedOperationException When the YubiKey does not provide the OATH applet.
+	 */
+	void select() throws IOException, YubiKeyException {
+		this.send(new SelectFileApdu(SelectFileApdu.SelectionControl.DF_NAME_DIRECT, SelectFileApdu.RecordOffset.FIRST_RECORD, OATH_AID));
+	}
+
+	/**
+	 * Lists all credentials stored on the YubiKey.
+	 *
+	 * @param listener Receives the credentials.
+	 */
+	void list(final ListListener listener) throws IOException, YubiKeyException {
+		this.tlvReader.reset(this.send(new ListApdu()));
+
+		try {
+			while (this.tlvReader.next()) {
+				if (this.tlvReader.getTag() != TAG_NAME_LIST || this.tlvReader.getValueLength() < 1)
+					throw new InvalidResponseException();
+
+				final Type type;
+				switch (this.tlvReader.getValueByte(0) & TYPE_MASK) {
+					case TYPE_HOTP:
+						type = Type.HOTP;
+						break;
+					case TYPE_TOTP:
+						type = Type.TOTP;
+						break;
+					default:
+						type = Type.UNKNOWN;
+				}
+
+				listener.onCredential(this.getName(1), type);
+			}
+		} catch (final IllegalArgumentException e) {
+			throw new InvalidResponseException();
+		}
+	}
+
+	/**
+	 * Calculates the codes of all credentials stored on the YubiKey in a single request.
+	 *
+	 * @param timestamp The time to calculate TOTP codes for, in milliseconds since the epoch.
+	 * @param listener  Receives the codes.
+	 */
+	void calculateAll(final long timestamp, final CalculateListener listener) throws IOException, YubiKeyException {
+		this.tlvReader.reset(this.send(new CalculateAllApdu(timeStepChallenge(timestamp))));
+
+		try {
+			while (this.tlvReader.next()) {
+				if (this.tlvReader.getTag() != TAG_NAME)
+					throw new InvalidResponseException();
+
+				final String name = this.getName(0);
+
+				if (!this.tlvReader.next())
+					throw new InvalidResponseException();
+
+				switch (this.tlvReader.getTag()) {
+					case TAG_TRUNCATED:
+						if (this.tlvReader.getValueLength() != 5)
+							throw new InvalidResponseException();
+
+						listener.onCode(name, this.formatCode(this.tlvReader.getValueByte(0), this.tlvReader.getValueInt(1, 4)));
+						break;
+					case TAG_HOTP:
+						listener.onHotpCredential(name);
+						break;
+					case TAG_TOUCH_REQUIRED:
+						listener.onTouchRequired(name);
+						break;
+					default:
+						throw new InvalidResponseException();
+				}
+			}
+		} catch (final IllegalArgumentException e) {
+			throw new InvalidResponseException();
+		}
+	}
+
+	/**
+	 * Calculates the code of a single credential.
+	 *
+	 * @param name      The name of the credential.
+	 * @param timestamp The time to calculate a TOTP code for, in milliseconds since the epoch.
+	 * @return The code, zero-padded to the number of digits configured for the credential.
+	 * @throws FailedOperationException When the credential does not exist.
+	 */
+	String calculate(final String name, final long timestamp) throws IOException, YubiKeyException {
+		this.tlvReader.reset(this.send(new CalculateApdu(name.getBytes(StandardCharsets.UTF_8), timeStepChallenge(timestamp))));
+
+		try {
+			if (!this.tlvReader.next() || this.tlvReader.getTag() != TAG_TRUNCATED || this.tlvReader.getValueLength() != 5)
+				throw new InvalidResponseException();
+
+			return this.formatCode(this.tlvReader.getValueByte(0), this.tlvReader.getValueInt(1, 4));
+		} catch (final IllegalArgumentException e) {
+			throw new InvalidResponseException();
+		}
+	}
+
+	private static byte[] timeStepChallenge(final long timestamp) {
+		final long   timeStep  = timestamp / TOTP_PERIOD_MS;
+		final byte[] challenge = new byte[8];
+
+		for (int i = 0; i < challenge.length; i++)
+			challenge[i] = (byte) (timeStep >>> (56 - 8 * i));
+
+		return challenge;
+	}
+
+	private String getName(final int offset) {
+		return new String(this.tlvReader.getBuffer(), this.tlvReader.getValueOffset() + offset, this.tlvReader.getValueLength() - offset, StandardCharsets.UTF_8);
+	}
+
+	private String formatCode(final int digits, final int truncated) throws InvalidResponseException {
+		if (digits < 1 || digits > this.codeBuffer.length)
+			throw new InvalidResponseException();
+
+		// The truncated response is a 31 bit integer that still has to be reduced to the number of digits
+		long code = (truncated & 0x7fffffffL);
+		for (int i = digits - 1; i >= 0; i--) {
+			this.codeBuffer[i] = (char) ('0' + code % 10);
+			code /= 10;
+		}
+
+		return new String(this.codeBuffer, 0, digits);
+	}
+}
@@ -0,0 +1,9 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Exception thrown when the thread executing a YubiKey operation was interrupted, e.g. because the
+ * {@link java.util.concurrent.Future} of an asynchronous operation was cancelled. The YubiKey was
+ * reset and may be used for further operations immediately.
+ */
+public class OperationCancelledException extends YubiKeyException {
+}
@@ -0,0 +1,59 @@
+package net.pp3345.ykdroid.yubikey;
+
+import android.os.Trace;
+
+/**
+ * Helper for measuring {@link MetricsListener.Phase}s. Opens a named trace section for each phase
+ * and reports its duration to a {@link MetricsListener}. Does not allocate.
+ */
+public final class PhaseTracer {
+	private static final boolean TRACING_AVAILABLE = isTracingAvailable();
+
+	private PhaseTracer() {
+	}
+
+	private static boolean isTracingAvailable() {
+		try {
+			Trace.beginSection("ykDroid");
+			Trace.endSection();
+
+			return true;
+		} catch (final Throwable e) {
+			// Not running on Android, e.g. when the driver is run against a simulator on a plain JVM
+			return false;
+		}
+	}
+
+	/**
+	 * Starts measuring a phase. Each call must be followed by a call to
+	 * {@link #end(MetricsListener, MetricsListener.Phase, long, int, int)} on the same thread.
+	 *
+	 * @param phase The phase that is started.
+	 * @return The start time, to be passed to
+	 * {@link #end(MetricsListener, MetricsListener.Phase, long, int, int)}.
+	 */
+	public static long begin(final MetricsListener.Phase phase) {
+		if (TRACING_AVAILABLE)
+			Trace.beginSection(phase.getTraceSectionName());
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * Stops measuring a phase.
+	 *
+	 * @param listener         The listener to report the phase to.
+	 * @param phase            The phase that is completed.
+	 * @param start            The start time returned by {@link #begin(MetricsListener.Phase)}.
+	 * @param polls            Number of status reports read during the phase.
+	 * @param bytesTransferred Number of bytes sent and received during the phase.
+	 */
+	public static void end(final MetricsListener listener, final MetricsListener.Phase phase, final long start, final int polls, final int bytesTransferred) {
+		final long duration = System.nanoTime() - start;
+
+		if (TRACING_AVAILABLE)
+			Trace.endSection();
+
+		listener.onPhaseCompleted(phase, duration, polls, bytesTransferred);
+	}
+}
@@ -0,0 +1,7 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Thrown when a request is sent to a slot that is not programmed for it on the YubiKey.
+ */
+public class SlotNotProgrammedException extends YubiKeyException {
+}
@@ -0,0 +1,115 @@
+package net.pp3345.ykdroid.yubikey;
+
+/**
+ * Describes which configuration slots of a YubiKey are programmed, as reported in the touch level
+ * of the YubiKey's status.
+ * <p>
+ * The touch level does not tell whether a challenge-response slot requires the user to press the
+ * button, nor whether a slot is programmed for HMAC-SHA1 or Yubico OTP challenge-response: its
+ * touch bits only mark slots that emit an OTP when touched. Such slots are not programmed for
+ * challenge-response at all, but any other programmed slot may wait for the user.
+ * </p>
+ */
+public class SlotProfile {
+	private static final int CONFIG1_VALID = 0x01;
+	private static final int CONFIG2_VALID = 0x02;
+	private static final int CONFIG1_TOUCH = 0x04;
+	private static final int CONFIG2_TOUCH = 0x08;
+
+	private final int     touchLevel;
+	private final boolean programmingStateKnown;
+	private final boolean touchTriggerKnown;
+
+	/**
+	 * @param status       Buffer containing the status structure reported by the YubiKey.
+	 * @param statusOffset Offset of the status structure within the buffer.
+	 */
+	SlotProfile(final byte[] status, final int statusOffset) {
+		final int major = status[statusOffset] & 0xff;
+		final int minor = status[statusOffset + 1] & 0xff;
+
+		this.touchLevel = (status[statusOffset + 4] & 0xff) | ((status[statusOffset + 5] & 0xff) << 8);
+		// The bits describing the slots were introduced in firmware 2.1, the touch bits in 3.0
+		this.programmingStateKnown = major > 2 || (major == 2 && minor >= 1);
+		this.touchTriggerKnown = major >= 3;
+	}
+
+	/**
+	 * Checks whether a slot is programmed.
+	 *
+	 * @param slot The slot.
+	 * @return true, if the slot is programmed or the firmware doesn't report the state.
+	 */
+	public boolean isProgrammed(final Slot slot) {
+		if (!this.programmingStateKnown)
+			return true;
+
+		switch (configuration(slot)) {
+			case 1:
+				return (this.touchLevel & CONFIG1_VALID) != 0;
+			case 2:
+				return (this.touchLevel & CONFIG2_VALID) != 0;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Checks whether a slot emits an OTP when the button is touched, which means that it is not
+	 * programmed for challenge-response.
+	 *
+	 * @param slot The slot.
+	 * @return true, if the slot is programmed and touch-triggered. false, if it isn't or the
+	 * firmware doesn't report it.
+	 */
+	public boolean isTouchTriggered(final Slot slot) {
+		if (!this.touchTriggerKnown || !this.isProgrammed(slot))
+			return false;
+
+		switch (configuration(slot)) {
+			case 1:
+				return (this.touchLevel & CONFIG1_TOUCH) != 0;
+			case 2:
+				return (this.touchLevel & CONFIG2_TOUCH) != 0;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Checks whether a slot may be programmed for challenge-response and throws an exception if
+	 * not. Whether it actually is, and whether it requires touch, is not reported.
+	 *
+	 * @param slot The slot.
+	 * @throws SlotNotProgrammedException When the slot is not programmed or emits an OTP when
+	 *                                    touched.
+	 */
+	public void ensureChallengeResponse(final Slot slot) throws SlotNotProgrammedException {
+		if (!this.isProgrammed(slot) || this.isTouchTriggered(slot))
+			throw new SlotNotProgrammedException();
+	}
+
+	/**
+	 * Gets the configuration a slot belongs to.
+	 *
+	 * @return 1 or 2, or 0 if the slot doesn't belong to a configuration.
+	 */
+	private static int configuration(final Slot slot) {
+		switch (slot) {
+			case CONFIG_1:
+			case UPDATE_1:
+			case NDEF_1:
+			case CHALLENGE_OTP_1:
+			case CHALLENGE_HMAC_1:
+				return 1;
+			case CONFIG_2:
+			case UPDATE_2:
+			case NDEF_2:
+			case CHALLENGE_OTP_2:
+			case CHALLENGE_HMAC_2:
+				return 2;
+			default:
+				return 0;
+		}
+	}
+}
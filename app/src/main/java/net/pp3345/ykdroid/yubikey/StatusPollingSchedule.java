@@ -0,0 +1,281 @@
+package net.pp3345.ykdroid.yubikey;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Schedules the status polls issued while waiting for a YubiKey connected via USB to reach a
+ * certain state.
+ * <p>
+ * The first poll is delayed by the time the device type usually takes to complete the operation
+ * (learned from previous operations), followed by a short phase of back-to-back polls. After
+ * that, the interval between polls grows exponentially, but is capped so that a state change
+ * (e.g. the user pressing the button) is never noticed much later than it happened.
+ * </p>
+ * <p>
+ * The reports of a frame are usually accepted faster than a poll can be scheduled, so they are
+ * awaited by {@link #awaitNextReport(long)} instead, which sleeps for a learned time only if the
+ * YubiKey was found busy.
+ * </p>
+ */
+class StatusPollingSchedule {
+	/**
+	 * Operations that are timed separately for each device type.
+	 */
+	enum Operation {
+		/**
+		 * Waiting for the YubiKey to accept the next write frame.
+		 */
+		WRITE,
+		/**
+		 * Waiting for the YubiKey to provide a response.
+		 */
+		RESPONSE
+	}
+
+	private static final long OPERATION_TIMEOUT_NS                  = TimeUnit.MILLISECONDS.toNanos(6000);
+	private static final long USER_INTERACTION_TIMEOUT_NS           = TimeUnit.MILLISECONDS.toNanos(256000);
+	private static final int  FAST_PHASE_POLLS                      = 3;
+	private static final long MAX_OPERATION_POLL_INTERVAL_MS        = 8;
+	private static final long MAX_USER_INTERACTION_POLL_INTERVAL_MS = 32;
+	private static final long MAX_REPORT_INTERVAL_NS                = TimeUnit.MILLISECONDS.toNanos(MAX_OPERATION_POLL_INTERVAL_MS);
+
+	/**
+	 * Exponential moving averages of the time it took to complete an operation, in nanoseconds,
+	 * indexed by {@link #latencyIndex(UsbYubiKey.Type, Operation)}. Zero if nothing was learned
+	 * yet.
+	 */
+	private static final long[] learnedLatencies = new long[UsbYubiKey.Type.values().length * Operation.values().length];
+	private static final int    OPERATION_COUNT  = Operation.values().length;
+	/**
+	 * Time after writing a report of a frame at which the YubiKey is expected to accept the next
+	 * one, in nanoseconds, indexed by device type. Zero if nothing was learned yet. Guarded by
+	 * {@link #learnedLatencies}.
+	 */
+	private static final long[] reportIntervals  = new long[UsbYubiKey.Type.values().length];
+
+	private final UsbYubiKey.Type type;
+	private       int             latencyIndex;
+	private       long            start;
+	private       long            deadline;
+	private       long            callDeadline;
+	private       boolean         hasCallDeadline;
+	private       boolean         callDeadlineSuspended;
+	private       long            interval;
+	private       int             polls;
+	private       boolean         waitingForUserInteraction;
+
+	/**
+	 * Instances may be reused for any number of consecutive waits, see {@link #begin(Operation)}.
+	 *
+	 * @param type The type of the YubiKey that is polled.
+	 */
+	StatusPollingSchedule(final UsbYubiKey.Type type) {
+		this.type = type;
+	}
+
+	/**
+	 * Starts a new wait. Must be called before the first poll.
+	 *
+	 * @param operation The operation whose completion is awaited.
+	 */
+	void begin(final Operation operation) {
+		this.begin(operation, System.nanoTime());
+	}
+
+	/**
+	 * Starts a new wait for an operation that began earlier. Must be called before the first poll.
+	 *
+	 * @param operation  The operation whose completion is awaited.
+	 * @param startNanos The time the operation began, as returned by {@link System#nanoTime()}.
+	 */
+	void begin(final Operation operation, final long startNanos) {
+		this.latencyIndex = latencyIndex(this.type, operation);
+		this.start = startNanos;
+		this.deadline = this.limitDeadline(this.start + OPERATION_TIMEOUT_NS);
+		this.interval = 1;
+		this.polls = 0;
+		this.waitingForUserInteraction = false;
+	}
+
+	/**
+	 * Sets a deadline for all following waits, in addition to the fixed timeouts for operations and
+	 * user interaction. Waits never end later than this deadline.
+	 *
+	 * @param deadlineNanos The deadline as returned by {@link System#nanoTime()}.
+	 */
+	void setDeadline(final long deadlineNanos) {
+		this.callDeadline = deadlineNanos;
+		this.hasCallDeadline = true;
+	}
+
+	/**
+	 * Removes the deadline set by {@link #setDeadline(long)}.
+	 */
+	void clearDeadline() {
+		this.hasCallDeadline = false;
+	}
+
+	/**
+	 * Makes the following waits ignore the deadline set by {@link #setDeadline(long)}, without
+	 * removing it.
+	 *
+	 * @param suspended false to apply the deadline again.
+	 */
+	void setDeadlineSuspended(final boolean suspended) {
+		this.callDeadlineSuspended = suspended;
+	}
+
+	private long limitDeadline(final long deadline) {
+		// nanoTime() may overflow, so only differences may be compared
+		return this.hasCallDeadline && !this.callDeadlineSuspended && this.callDeadline - deadline < 0 ? this.callDeadline : deadline;
+	}
+
+	private static int latencyIndex(final UsbYubiKey.Type type, final Operation operation) {
+		return type.ordinal() * OPERATION_COUNT + operation.ordinal();
+	}
+
+	/**
+	 * Sleeps until the next status poll is due.
+	 *
+	 * @return false, if the operation timed out and no further polls should be issued.
+	 * @throws InterruptedException When the thread was interrupted before or while sleeping.
+	 */
+	boolean awaitNextPoll() throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+
+		final long remaining = this.deadline - System.nanoTime();
+
+		if (remaining <= 0)
+			return false;
+
+		final long delay;
+		if (this.polls == 0) {
+			// Wake up shortly before the operation is expected to complete
+			synchronized (learnedLatencies) {
+				delay = TimeUnit.NANOSECONDS.toMillis(Math.max(0, learnedLatencies[this.latencyIndex] * 3 / 4 - (System.nanoTime() - this.start)));
+			}
+		} else if (this.polls < FAST_PHASE_POLLS) {
+			delay = 0;
+		} else {
+			delay = this.interval;
+			this.interval = Math.min(this.interval * 2, this.waitingForUserInteraction ? MAX_USER_INTERACTION_POLL_INTERVAL_MS : MAX_OPERATION_POLL_INTERVAL_MS);
+		}
+
+		this.polls++;
+
+		if (delay > 0)
+			Thread.sleep(Math.min(delay, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+
+		return true;
+	}
+
+	/**
+	 * Must be called as soon as the YubiKey indicates that it is waiting for the user to press the
+	 * button. Extends the deadline to allow for user interaction, but not beyond the one set by
+	 * {@link #setDeadline(long)}.
+	 */
+	void enterUserInteraction() {
+		if (this.waitingForUserInteraction)
+			return;
+
+		this.waitingForUserInteraction = true;
+		this.deadline = this.limitDeadline(this.start + USER_INTERACTION_TIMEOUT_NS);
+	}
+
+	/**
+	 * Checks whether the YubiKey indicated that it is waiting for user interaction during this
+	 * wait.
+	 *
+	 * @return true, if {@link #enterUserInteraction()} was called.
+	 */
+	boolean isWaitingForUserInteraction() {
+		return this.waitingForUserInteraction;
+	}
+
+	/**
+	 * Must be called once the awaited status was reached. Updates the learned timing for the
+	 * device type, unless the operation was delayed by user interaction.
+	 */
+	void complete() {
+		if (this.waitingForUserInteraction)
+			return;
+
+		final long elapsed = System.nanoTime() - this.start;
+
+		synchronized (learnedLatencies) {
+			final long learned = learnedLatencies[this.latencyIndex];
+
+			learnedLatencies[this.latencyIndex] = learned == 0 ? elapsed : (learned * 7 + elapsed) / 8;
+		}
+	}
+
+	/**
+	 * Sleeps until the YubiKey is expected to accept the next report of a frame. Unlike
+	 * {@link #awaitNextPoll()}, the sleep is not rounded up to milliseconds, as reports are usually
+	 * accepted faster than that. The status must be read right afterwards and passed to
+	 * {@link #completeNextReport(boolean)}.
+	 *
+	 * @param lastWriteNanos The time the previous report was written, as returned by
+	 *                       {@link System#nanoTime()}.
+	 * @return false, if nothing was learned yet or the expected time passed already, so that
+	 * waiting would not help.
+	 */
+	boolean awaitNextReport(final long lastWriteNanos) {
+		final int  index = this.type.ordinal();
+		final long remaining;
+
+		synchronized (learnedLatencies) {
+			if (reportIntervals[index] == 0)
+				return false;
+
+			remaining = lastWriteNanos + reportIntervals[index] - System.nanoTime();
+
+			// The YubiKey was found busy after the expected time already
+			if (remaining <= 0) {
+				reportIntervals[index] = Math.min(reportIntervals[index] + reportIntervals[index] / 4, MAX_REPORT_INTERVAL_NS);
+				return false;
+			}
+		}
+
+		LockSupport.parkNanos(remaining);
+
+		return true;
+	}
+
+	/**
+	 * Adjusts the time waited by {@link #awaitNextReport(long)}. It shrinks slowly while the YubiKey
+	 * is ready after waiting and grows quickly once it is not, so that it follows the time the
+	 * YubiKey actually takes instead of the time it took to notice that it was ready.
+	 *
+	 * @param ready Whether the status read after waiting showed that the YubiKey accepts the next
+	 *              report.
+	 */
+	void completeNextReport(final boolean ready) {
+		final int index = this.type.ordinal();
+
+		synchronized (learnedLatencies) {
+			final long interval = reportIntervals[index];
+
+			reportIntervals[index] = ready ? interval - interval / 16 : Math.min(interval + interval / 4, MAX_REPORT_INTERVAL_NS);
+		}
+	}
+
+	/**
+	 * Must be called once the YubiKey accepts the next report of a frame after a wait started by
+	 * {@link #begin(Operation, long)}. Provides the initial time waited by
+	 * {@link #awaitNextReport(long)}.
+	 *
+	 * @param lastWriteNanos The time the previous report was written, as returned by
+	 *                       {@link System#nanoTime()}.
+	 */
+	void learnReportInterval(final long lastWriteNanos) {
+		final int index = this.type.ordinal();
+
+		synchronized (learnedLatencies) {
+			if (reportIntervals[index] == 0)
+				reportIntervals[index] = Math.min(System.nanoTime() - lastWriteNanos, MAX_REPORT_INTERVAL_NS);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package net.pp3345.ykdroid.yubikey;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * {@link BulkTransport} implementation using the Android USB host API.
+ */
+public class UsbBulkTransport implements BulkTransport {
+	private static final int CCID_ABORT = 0x1;
+
+	private final UsbDeviceConnection connection;
+	private final UsbInterface        ccidInterface;
+	private final UsbEndpoint         inEndpoint;
+	private final UsbEndpoint         outEndpoint;
+
+	private UsbBulkTransport(final UsbDeviceConnection connection, final UsbInterface ccidInterface, final UsbEndpoint inEndpoint, final UsbEndpoint outEndpoint) {
+		this.connection = connection;
+		this.ccidInterface = ccidInterface;
+		this.inEndpoint = inEndpoint;
+		this.outEndpoint = outEndpoint;
+	}
+
+	/**
+	 * Creates the transport for a CCID interface.
+	 *
+	 * @param connection    UsbConnection instance for the connected YubiKey.
+	 * @param ccidInterface The CCID interface of the YubiKey.
+	 * @return The transport or null, if the interface lacks a bulk endpoint.
+	 */
+	public static UsbBulkTransport create(final UsbDeviceConnection connection, final UsbInterface ccidInterface) {
+		UsbEndpoint inEndpoint  = null;
+		UsbEndpoint outEndpoint = null;
+
+		// The interrupt endpoint (card insertion and removal) is not needed, as the card is built in
+		for (int i = 0; i < ccidInterface.getEndpointCount(); i++) {
+			final UsbEndpoint endpoint = ccidInterface.getEndpoint(i);
+
+			if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK)
+				continue;
+
+			if (endpoint.getDirection() == UsbConstants.USB_DIR_IN)
+				inEndpoint = endpoint;
+			else
+				outEndpoint = endpoint;
+		}
+
+		return inEndpoint == null || outEndpoint == null ? null : new UsbBulkTransport(connection, ccidInterface, inEndpoint, outEndpoint);
+	}
+
+	@Override
+	public boolean claim() {
+		return this.connection.claimInterface(this.ccidInterface, true);
+	}
+
+	@Override
+	public void release() {
+		this.connection.releaseInterface(this.ccidInterface);
+	}
+
+	@Override
+	public int send(final byte[] data, final int length, final int timeoutMillis) {
+		return this.connection.bulkTransfer(this.outEndpoint, data, length, timeoutMillis);
+	}
+
+	@Override
+	public int receive(final byte[] buffer, final int offset, final int length, final int timeoutMillis) {
+		return this.connection.bulkTransfer(this.inEndpoint, buffer, offset, length, timeoutMillis);
+	}
+
+	@Override
+	public int sendAbortRequest(final int slot, final int sequence, final int timeoutMillis) {
+		return this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_OUT | 0x1, CCID_ABORT, (sequence << 8) | slot, this.ccidInterface.getId(), null, 0, timeoutMillis);
+	}
+}
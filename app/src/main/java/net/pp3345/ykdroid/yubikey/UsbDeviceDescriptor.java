@@ -0,0 +1,150 @@
+package net.pp3345.ykdroid.yubikey;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbInterface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes the type and the USB interfaces of an attached YubiKey. Descriptors are computed
+ * once per attached device and cached until the device is detached.
+ */
+public class UsbDeviceDescriptor {
+	private static final int HID_PROTOCOL_NONE     = 0;
+	private static final int HID_PROTOCOL_KEYBOARD = 1;
+
+	private static final Map<String, UsbDeviceDescriptor> descriptors = new HashMap<>();
+
+	private final UsbYubiKey.Type type;
+	private final UsbInterface    otpInterface;
+	private final UsbInterface    ccidInterface;
+	private final UsbInterface    fidoInterface;
+	private       DeviceInfo      deviceInfo;
+
+	private UsbDeviceDescriptor(final UsbDevice device) {
+		UsbInterface otpInterface  = null;
+		UsbInterface ccidInterface = null;
+		UsbInterface fidoInterface = null;
+		UsbInterface hidInterface  = null;
+
+		for (int i = 0; i < device.getInterfaceCount(); i++) {
+			final UsbInterface usbInterface = device.getInterface(i);
+
+			switch (usbInterface.getInterfaceClass()) {
+				case UsbConstants.USB_CLASS_HID:
+					if (usbInterface.getInterfaceSubclass() == UsbConstants.USB_INTERFACE_SUBCLASS_BOOT && usbInterface.getInterfaceProtocol() == HID_PROTOCOL_KEYBOARD) {
+						// The OTP application presents itself as a boot keyboard
+						if (otpInterface == null)
+							otpInterface = usbInterface;
+					} else if (usbInterface.getInterfaceProtocol() == HID_PROTOCOL_NONE) {
+						if (fidoInterface == null)
+							fidoInterface = usbInterface;
+					} else if (hidInterface == null) {
+						hidInterface = usbInterface;
+					}
+
+					break;
+				case UsbConstants.USB_CLASS_CSCID:
+					if (ccidInterface == null)
+						ccidInterface = usbInterface;
+
+					break;
+			}
+		}
+
+		if (otpInterface == null)
+			otpInterface = hidInterface;
+
+		// Fall back to the first interface for keys that don't describe themselves as expected
+		if (otpInterface == null && fidoInterface == null && ccidInterface == null && device.getInterfaceCount() > 0)
+			otpInterface = device.getInterface(0);
+
+		this.type = UsbYubiKey.Type.lookupDeviceType(device);
+		this.otpInterface = otpInterface;
+		this.ccidInterface = ccidInterface;
+		this.fidoInterface = fidoInterface;
+	}
+
+	/**
+	 * Gets the descriptor of an attached device, computing it on first use.
+	 *
+	 * @param device The attached USB device.
+	 * @return The descriptor of the device.
+	 */
+	public static UsbDeviceDescriptor get(final UsbDevice device) {
+		synchronized (descriptors) {
+			UsbDeviceDescriptor descriptor = descriptors.get(device.getDeviceName());
+
+			if (descriptor == null) {
+				descriptor = new UsbDeviceDescriptor(device);
+				descriptors.put(device.getDeviceName(), descriptor);
+			}
+
+			return descriptor;
+		}
+	}
+
+	/**
+	 * Removes the cached descriptor of a device. Must be called when the device is detached, as
+	 * device names may be reused for other devices.
+	 *
+	 * @param device The detached USB device.
+	 */
+	public static void forget(final UsbDevice device) {
+		synchronized (descriptors) {
+			descriptors.remove(device.getDeviceName());
+		}
+	}
+
+	/**
+	 * Gets the type of the YubiKey.
+	 *
+	 * @return The {@link UsbYubiKey.Type} of the YubiKey.
+	 */
+	public UsbYubiKey.Type getType() {
+		return this.type;
+	}
+
+	/**
+	 * Gets the HID interface that provides the OTP application, which is used for
+	 * challenge-response.
+	 *
+	 * @return The OTP HID interface or null, if the YubiKey doesn't provide one.
+	 */
+	public UsbInterface getOtpInterface() {
+		return this.otpInterface;
+	}
+
+	/**
+	 * Gets the CCID (smart card) interface.
+	 *
+	 * @return The CCID interface or null, if the YubiKey doesn't provide one.
+	 */
+	public UsbInterface getCcidInterface() {
+		return this.ccidInterface;
+	}
+
+	/**
+	 * Gets the device information read from the YubiKey while it is attached.
+	 *
+	 * @return The cached device information or null, if it wasn't read yet.
+	 */
+	synchronized DeviceInfo getDeviceInfo() {
+		return this.deviceInfo;
+	}
+
+	synchronized void setDeviceInfo(final DeviceInfo deviceInfo) {
+		this.deviceInfo = deviceInfo;
+	}
+
+	/**
+	 * Gets the FIDO (U2F) HID interface.
+	 *
+	 * @return The FIDO HID interface or null, if the YubiKey doesn't provide one.
+	 */
+	public UsbInterface getFidoInterface() {
+		return this.fidoInterface;
+	}
+}
@@ -0,0 +1,53 @@
+package net.pp3345.ykdroid.yubikey;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * {@link HidTransport} implementation using the Android USB host API.
+ */
+public class UsbHidTransport implements HidTransport {
+	private static final int HID_GET_REPORT      = 0x1;
+	private static final int HID_SET_REPORT      = 0x9;
+	private static final int REPORT_TYPE_FEATURE = 0b11 << 8;
+
+	private final UsbDeviceConnection connection;
+	private final UsbInterface        otpInterface;
+	/**
+	 * HID class requests are addressed to the interface in wIndex, which is not necessarily the
+	 * first one on composite devices.
+	 */
+	private final int                 interfaceNumber;
+
+	/**
+	 * @param connection   UsbConnection instance for the connected YubiKey.
+	 * @param otpInterface The OTP interface of the YubiKey.
+	 */
+	public UsbHidTransport(final UsbDeviceConnection connection, final UsbInterface otpInterface) {
+		this.connection = connection;
+		this.otpInterface = otpInterface;
+		this.interfaceNumber = otpInterface.getId();
+	}
+
+	@Override
+	public boolean claim() {
+		return this.connection.claimInterface(this.otpInterface, true); // We need to detach the kernel driver from the device to get exclusive access
+	}
+
+	@Override
+	public void release() {
+		this.connection.releaseInterface(this.otpInterface); // We probably don't really need to care about errors here
+	}
+
+	@Override
+	public int getFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		return this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, this.interfaceNumber, report, length, timeoutMillis);
+	}
+
+	@Override
+	public int setFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		//noinspection PointlessBitwiseExpression
+		return this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_OUT | 0x1, HID_SET_REPORT, REPORT_TYPE_FEATURE, this.interfaceNumber, report, length, timeoutMillis);
+	}
+}
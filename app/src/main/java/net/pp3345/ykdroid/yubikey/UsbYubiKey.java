@@ -1,17 +1,45 @@
 package net.pp3345.ykdroid.yubikey;
 
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
 
 import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.YubiKeySession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
- * USB YubiKey driver implementation.
+ * USB YubiKey driver implementation. Uses the CCID (smart card) interface of the YubiKey if it has
+ * one, exchanging the same APDUs as {@link NfcYubiKey}. Otherwise, or if the challenge-response
+ * applet is not available via CCID, the OTP HID interface is used.
  */
 public class UsbYubiKey implements YubiKey {
-	private final UsbDeviceConnection connection;
-	private final UsbDevice           device;
+	private final HidTransport          transport;
+	private final NfcYubiKey            ccidYubiKey;
+	private final UsbDeviceDescriptor   descriptor;
+	private final Type                  type;
+	private final StatusPollingSchedule pollingSchedule;
+	private final DeviceExecutor        executor;
+	private final CRC16                 responseCRC        = new CRC16();
+	private final byte[]                frameBuffer        = new byte[WRITE_PAYLOAD_LENGTH + 6];
+	private final byte[]                writeReportBuffer  = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	private final byte[]                statusReportBuffer = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	private final byte[]                responseBuffer     = new byte[REPORT_TYPE_FEATURE_DATA_SIZE * 8];
+	private       int                   claims;
+	private       int                   polls;
+	private       int                   bytesTransferred;
+	private       DeviceInfo            deviceInfo;
+	private       MetricsListener       metricsListener    = MetricsListener.NO_OP;
+	private       TouchListener         touchListener;
+	private       boolean               ccidChecked;
+	private       boolean               ccidAvailable;
 
 	/**
 	 * The USB vendor ID assigned to Yubico.
@@ -19,12 +47,7 @@ public class UsbYubiKey implements YubiKey {
 	@SuppressWarnings("WeakerAccess")
 	public static final  int  YUBICO_USB_VENDOR_ID                = 0x1050;
 	private static final int  YUBIKEY_OPERATION_TIMEOUT_MS        = 6000;
-	private static final int  YUBIKEY_USER_INTERACTION_TIMEOUT_MS = 256000;
-	private static final char YUBIKEY_CRC_16_OK_RESIDUAL          = 0xf0b8;
 
-	private static final int  HID_GET_REPORT                = 0x1;
-	private static final int  HID_SET_REPORT                = 0x9;
-	private static final int  REPORT_TYPE_FEATURE           = 0b11 << 8;
 	private static final int  REPORT_TYPE_FEATURE_DATA_SIZE = 8;
 	private static final byte DUMMY_REPORT                  = (byte) 0x8f;
 
@@ -34,6 +57,9 @@ public class UsbYubiKey implements YubiKey {
 
 	private static final byte WRITE_PAYLOAD_LENGTH = 64;
 
+	private static final byte[] NO_DATA    = new byte[0];
+	private static final byte[] DUMMY_DATA = new byte[]{0, 0, 0, 0, 0, 0, 0, DUMMY_REPORT};
+
 	/**
 	 * An enumeration of all available YubiKey types. (Taken from Yubico's C driver implementation)
 	 */
@@ -64,6 +90,27 @@ public class UsbYubiKey implements YubiKey {
 
 		UNKNOWN(-0x1, -0x1, "Unknown Device", "");
 
+		/**
+		 * Index of all types with a specific product ID, keyed by {@link #id(int, int)}.
+		 */
+		private static final Map<Integer, Type> TYPES_BY_ID     = new HashMap<>();
+		/**
+		 * Index of the types that match any product of a vendor, keyed by vendor ID.
+		 */
+		private static final Map<Integer, Type> TYPES_BY_VENDOR = new HashMap<>();
+
+		static {
+			for (final Type type : Type.values()) {
+				if (type.getVendorID() == -0x1)
+					continue;
+
+				if (type.getProductID() == -0x1)
+					TYPES_BY_VENDOR.put(type.getVendorID(), type);
+				else
+					TYPES_BY_ID.put(id(type.getVendorID(), type.getProductID()), type);
+			}
+		}
+
 		private final int    vendorID;
 		private final int    productID;
 		private final String name;
@@ -76,6 +123,10 @@ public class UsbYubiKey implements YubiKey {
 			this.version = version;
 		}
 
+		private static int id(final int vendorID, final int productID) {
+			return (vendorID << 16) | (productID & 0xffff);
+		}
+
 		/**
 		 * Gets the USB vendor ID of a YubiKey.
 		 *
@@ -112,15 +163,22 @@ public class UsbYubiKey implements YubiKey {
 			return this.version;
 		}
 
+		/**
+		 * Looks up the type of a USB device. Runs in constant time.
+		 *
+		 * @param device The USB device.
+		 * @return The matching type, {@link #YK_UNKNOWN} for unknown devices by Yubico or
+		 * {@link #UNKNOWN} for devices that are not YubiKeys.
+		 */
 		public static Type lookupDeviceType(final UsbDevice device) {
-			for (final Type type : Type.values()) {
-				if (type.getVendorID() == device.getVendorId() &&
-						(type.getProductID() == device.getProductId() || type.getProductID() == -0x1)) {
-					return type;
-				}
-			}
+			final Type type = TYPES_BY_ID.get(id(device.getVendorId(), device.getProductId()));
+
+			if (type != null)
+				return type;
+
+			final Type vendorType = TYPES_BY_VENDOR.get(device.getVendorId());
 
-			return Type.UNKNOWN;
+			return vendorType != null ? vendorType : Type.UNKNOWN;
 		}
 
 		public static boolean isDeviceKnown(final UsbDevice device) {
@@ -140,8 +198,85 @@ public class UsbYubiKey implements YubiKey {
 	 * @param connection UsbConnection instance for the connected YubiKey.
 	 */
 	public UsbYubiKey(final UsbDevice device, final UsbDeviceConnection connection) {
-		this.device = device;
-		this.connection = connection;
+		this(device, createTransport(device, connection), createCcidTransport(device, connection));
+	}
+
+	/**
+	 * Instantiates the driver for a USB device on top of transports wrapping its connection, e.g.
+	 * ones that record a trace.
+	 *
+	 * @param device        UsbDevice instance for the connected YubiKey.
+	 * @param transport     The transport used to exchange feature reports with the YubiKey or null,
+	 *                      if it does not provide an OTP interface.
+	 * @param ccidTransport The transport used to exchange APDUs with the YubiKey or null, if it does
+	 *                      not provide a CCID interface.
+	 */
+	public UsbYubiKey(final UsbDevice device, final HidTransport transport, final NfcTransport ccidTransport) {
+		this.descriptor = UsbDeviceDescriptor.get(device);
+		this.type = this.descriptor.getType();
+		this.transport = transport;
+		this.executor = new DeviceExecutor("UsbYubiKey " + device.getDeviceName());
+		this.ccidYubiKey = ccidTransport == null ? null : new NfcYubiKey(ccidTransport, this.executor);
+		this.pollingSchedule = new StatusPollingSchedule(this.type);
+	}
+
+	/**
+	 * Creates the transport for the OTP interface of a USB device.
+	 *
+	 * @param device     UsbDevice instance for the connected YubiKey.
+	 * @param connection UsbConnection instance for the connected YubiKey.
+	 * @return The transport or null, if the device does not provide an OTP interface.
+	 */
+	public static HidTransport createTransport(final UsbDevice device, final UsbDeviceConnection connection) {
+		final UsbInterface otpInterface = UsbDeviceDescriptor.get(device).getOtpInterface();
+
+		return otpInterface == null ? null : new UsbHidTransport(connection, otpInterface);
+	}
+
+	/**
+	 * Creates the transport for the CCID interface of a USB device.
+	 *
+	 * @param device     UsbDevice instance for the connected YubiKey.
+	 * @param connection UsbConnection instance for the connected YubiKey.
+	 * @return The transport or null, if the device does not provide a usable CCID interface.
+	 */
+	public static NfcTransport createCcidTransport(final UsbDevice device, final UsbDeviceConnection connection) {
+		final UsbInterface ccidInterface = UsbDeviceDescriptor.get(device).getCcidInterface();
+
+		if (ccidInterface == null)
+			return null;
+
+		final BulkTransport bulkTransport = UsbBulkTransport.create(connection, ccidInterface);
+
+		return bulkTransport == null ? null : new CcidTransport(bulkTransport);
+	}
+
+	/**
+	 * Instantiates the driver on top of an arbitrary transport, e.g. a simulator. Does not depend
+	 * on the Android USB host API.
+	 *
+	 * @param type      The type of the YubiKey.
+	 * @param transport The transport used to exchange feature reports with the YubiKey.
+	 */
+	public UsbYubiKey(final Type type, final HidTransport transport) {
+		this(type, transport, null);
+	}
+
+	/**
+	 * Instantiates the driver on top of arbitrary transports, e.g. simulators. Does not depend on
+	 * the Android USB host API.
+	 *
+	 * @param type          The type of the YubiKey.
+	 * @param transport     The transport used to exchange feature reports with the YubiKey or null.
+	 * @param ccidTransport The transport used to exchange APDUs with the YubiKey or null.
+	 */
+	public UsbYubiKey(final Type type, final HidTransport transport, final NfcTransport ccidTransport) {
+		this.descriptor = null;
+		this.type = type;
+		this.transport = transport;
+		this.executor = new DeviceExecutor("UsbYubiKey " + type.getName());
+		this.ccidYubiKey = ccidTransport == null ? null : new NfcYubiKey(ccidTransport, this.executor);
+		this.pollingSchedule = new StatusPollingSchedule(type);
 	}
 
 	/**
@@ -150,165 +285,456 @@ public class UsbYubiKey implements YubiKey {
 	 * @return {@link Type} instance that describes the connected YubiKey
 	 */
 	public Type getType() {
-		return Type.lookupDeviceType(this.device);
+		return this.type;
+	}
+
+	/**
+	 * Sets the listener that receives performance metrics of this driver.
+	 *
+	 * @param listener The listener or null, if metrics should be discarded.
+	 */
+	public void setMetricsListener(final MetricsListener listener) {
+		this.metricsListener = listener == null ? MetricsListener.NO_OP : listener;
+
+		if (this.ccidYubiKey != null)
+			this.ccidYubiKey.setMetricsListener(listener);
 	}
 
 	/**
-	 * Gets the serial number of the connected YubiKey.
+	 * Gets the driver for the CCID interface, which is preferred over the OTP interface: each
+	 * request and its response are exchanged in a single bulk transfer, without polling the
+	 * status.
 	 *
-	 * @return The 32-bit serial number of the connected YubiKey.
+	 * @return The driver or null, if the OTP interface must be used.
 	 */
+	private NfcYubiKey getCcidYubiKey() throws YubiKeyException {
+		if (this.ccidYubiKey == null)
+			return null;
+
+		// Without an OTP interface, there is nothing to fall back to
+		if (this.transport == null)
+			return this.ccidYubiKey;
+
+		if (!this.ccidChecked) {
+			this.ccidChecked = true;
+
+			try {
+				// Not all firmware versions provide the challenge-response applet via USB
+				this.ccidAvailable = this.ccidYubiKey.selectAppletIfAvailable();
+			} catch (final YubiKeyException e) {
+				// E.g. another app holds the CCID interface
+				this.ccidAvailable = false;
+			} finally {
+				this.ccidYubiKey.closeIfIdle();
+			}
+		}
+
+		return this.ccidAvailable ? this.ccidYubiKey : null;
+	}
+
+	@Override
 	public int getSerialNumber() throws YubiKeyException {
+		return this.getDeviceInfo().getSerialNumber();
+	}
+
+	@Override
+	public synchronized DeviceInfo getDeviceInfo() throws YubiKeyException {
+		// Device information is cached per device rather than per driver instance, if possible
+		final DeviceInfo cachedDeviceInfo = this.descriptor != null ? this.descriptor.getDeviceInfo() : this.deviceInfo;
+
+		if (cachedDeviceInfo != null)
+			return cachedDeviceInfo;
+
+		final NfcYubiKey ccidYubiKey = this.getCcidYubiKey();
+		final DeviceInfo deviceInfo  = ccidYubiKey != null ? this.readCcidDeviceInfo(ccidYubiKey) : this.readDeviceInfo();
+
+		if (this.descriptor != null)
+			this.descriptor.setDeviceInfo(deviceInfo);
+		else
+			this.deviceInfo = deviceInfo;
+
+		return deviceInfo;
+	}
+
+	private DeviceInfo readCcidDeviceInfo(final NfcYubiKey ccidYubiKey) throws YubiKeyException {
+		try {
+			return ccidYubiKey.getDeviceInfo();
+		} finally {
+			ccidYubiKey.closeIfIdle();
+		}
+	}
+
+	private DeviceInfo readDeviceInfo() throws YubiKeyException {
 		this.tryClaim();
 
-		final byte[] response;
 		try {
-			this.write(Slot.DEVICE_SERIAL, new byte[REPORT_TYPE_FEATURE_DATA_SIZE * 2]);
+			// Every report contains the status structure when no response is pending
+			final byte[] status = new byte[DeviceInfo.STATUS_LENGTH];
+			this.readReport(this.statusReportBuffer);
+			System.arraycopy(this.statusReportBuffer, 1, status, 0, DeviceInfo.STATUS_LENGTH);
+
+			this.request(Slot.DEVICE_SERIAL, NO_DATA, 0, 0, 4, true);
+
+			final int serialNumber = ((this.responseBuffer[0] & 0xff) << 24) | ((this.responseBuffer[1] & 0xff) << 16) | ((this.responseBuffer[2] & 0xff) << 8) | (this.responseBuffer[3] & 0xff);
 
-			response = this.readResponse(4, true);
+			byte[] capabilities = null;
+			if (DeviceInfo.supportsCapabilities(status, 0)) {
+				// The capabilities are prefixed by their length and not protected by a CRC
+				final int bytesRead = this.request(Slot.YUBIKEY_4_CAPABILITIES, NO_DATA, 0, 0, 0, false);
+				capabilities = Arrays.copyOf(this.responseBuffer, Math.min(bytesRead, (this.responseBuffer[0] & 0xff) + 1));
+			}
+
+			return new DeviceInfo(serialNumber, status, 0, capabilities);
 		} finally {
+			this.clearBuffers();
 			this.release();
 		}
-
-		return (response[0] << 24) + (response[1] << 16) + (response[2] << 8) + (response[3] & 0xff);
 	}
 
 	@Override
 	public byte[] challengeResponse(final Slot slot, final byte[] challenge) throws YubiKeyException {
+		final byte[] response = new byte[CHALLENGE_RESPONSE_LENGTH];
+
+		this.challengeResponse(slot, challenge, 0, challenge.length, response, 0);
+
+		return response;
+	}
+
+	@Override
+	public synchronized int challengeResponse(final Slot slot, final byte[] challenge, final int challengeOffset, final int challengeLength, final byte[] response, final int responseOffset) throws YubiKeyException {
 		slot.ensureChallengeResponseSlot();
 
+		final NfcYubiKey ccidYubiKey = this.getCcidYubiKey();
+		if (ccidYubiKey != null) {
+			try {
+				return ccidYubiKey.challengeResponse(slot, challenge, challengeOffset, challengeLength, response, responseOffset);
+			} finally {
+				ccidYubiKey.closeIfIdle();
+			}
+		}
+
 		this.tryClaim();
 		try {
-			this.write(slot, challenge);
+			// Reading the status costs a single report and avoids running into a timeout when the
+			// slot is not programmed for challenge-response
+			final SlotProfile slotProfile = this.readSlotProfile();
+			slotProfile.ensureChallengeResponse(slot);
 
-			return this.readResponse(CHALLENGE_RESPONSE_LENGTH, true);
+			// Whether the slot requires touch is not reported, so any slot may wait for the user
+			this.request(slot, challenge, challengeOffset, challengeLength, CHALLENGE_RESPONSE_LENGTH, true);
+
+			System.arraycopy(this.responseBuffer, 0, response, responseOffset, CHALLENGE_RESPONSE_LENGTH);
+
+			return CHALLENGE_RESPONSE_LENGTH;
 		} finally {
+			this.clearBuffers();
 			this.release();
 		}
 	}
 
-	private char CRC16(final byte[] buffer, final int bytes) {
-		char crc = 0xffff;
+	@Override
+	public synchronized byte[] challengeResponse(final Slot slot, final byte[] challenge, final long timeoutMillis, final TouchListener touchListener) throws YubiKeyException {
+		final NfcYubiKey ccidYubiKey = this.getCcidYubiKey();
+		if (ccidYubiKey != null) {
+			try {
+				return ccidYubiKey.challengeResponse(slot, challenge, timeoutMillis, touchListener);
+			} finally {
+				ccidYubiKey.closeIfIdle();
+			}
+		}
+
+		if (timeoutMillis > 0)
+			this.pollingSchedule.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+		this.touchListener = touchListener;
+
+		try {
+			return this.challengeResponse(slot, challenge);
+		} finally {
+			this.pollingSchedule.clearDeadline();
+			this.touchListener = null;
+		}
+	}
+
+	/**
+	 * Stops the I/O thread used for asynchronous operations once the queued ones completed. Must
+	 * be called when the driver is no longer used, e.g. after the YubiKey was detached. Operations
+	 * submitted afterwards fail with a {@link ConnectionLostException}.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	@Override
+	public Future<byte[]> challengeResponseAsync(final Slot slot, final byte[] challenge, final ChallengeResponseCallback callback) {
+		return this.executor.challengeResponse(this, slot, challenge, callback);
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final Operation<T> operation, final OperationCallback<T> callback) {
+		return this.executor.submit(this, operation, callback);
+	}
 
-		for (int x = 0; x < bytes; x++) {
-			crc ^= buffer[x] & 0xff;
+	@Override
+	public List<byte[]> challengeResponseBatch(final Slot slot, final List<byte[]> challenges) throws YubiKeyException {
+		slot.ensureChallengeResponseSlot();
 
-			for (int i = 0; i < 8; i++) {
-				final boolean j = (crc & 0b1) == 1;
-				crc >>= 1;
+		final List<byte[]> responses = new ArrayList<>(challenges.size());
 
-				if (j) {
-					crc ^= 0x8408;
+		try (final YubiKeySession session = this.openSession()) {
+			for (final byte[] challenge : challenges)
+				responses.add(session.challengeResponse(slot, challenge));
+		}
+
+		return responses;
+	}
+
+	@Override
+	public synchronized YubiKeySession openSession() throws YubiKeyException {
+		final NfcYubiKey ccidYubiKey = this.getCcidYubiKey();
+		if (ccidYubiKey != null) {
+			final YubiKeySession session = ccidYubiKey.openSession();
+
+			// Operations on the session must still be executed by this driver
+			return new DriverSession(this, new Runnable() {
+				@Override
+				public void run() {
+					session.close();
 				}
-			}
+			});
 		}
 
-		return crc;
+		this.tryClaim();
+
+		return new DriverSession(this, new Runnable() {
+			@Override
+			public void run() {
+				UsbYubiKey.this.closeSession();
+			}
+		});
+	}
+
+	private synchronized void closeSession() {
+		this.release();
+	}
+
+	/**
+	 * Zeroes all buffers that may contain challenges or responses.
+	 */
+	private void clearBuffers() {
+		Arrays.fill(this.frameBuffer, (byte) 0);
+		Arrays.fill(this.writeReportBuffer, (byte) 0);
+		Arrays.fill(this.statusReportBuffer, (byte) 0);
+		Arrays.fill(this.responseBuffer, (byte) 0);
 	}
 
-	private void verifyCRC16(final byte[] buffer, final int bytes) throws CRC16Exception {
-		if (this.CRC16(buffer, bytes) != YUBIKEY_CRC_16_OK_RESIDUAL)
-			throw new CRC16Exception();
+	/**
+	 * Reads the current slot profile from the status report. Requires that the YubiKey was
+	 * already claimed.
+	 */
+	private SlotProfile readSlotProfile() throws YubiKeyException {
+		// Every report contains the status structure when no response is pending
+		this.readReport(this.statusReportBuffer);
+
+		return new SlotProfile(this.statusReportBuffer, 1);
 	}
 
 	private void reset() throws YubiKeyException {
-		final byte[] dummy = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
-		dummy[REPORT_TYPE_FEATURE_DATA_SIZE - 1] = DUMMY_REPORT;
+		// The reset must not be cut short by the deadline of the operation it aborts, but the
+		// deadline still applies to whatever the caller does next
+		this.pollingSchedule.setDeadlineSuspended(true);
 
-		// this requires that the YubiKey was already claimed
-		this.write(Slot.DUMMY, dummy);
+		try {
+			// this requires that the YubiKey was already claimed
+			this.write(Slot.DUMMY, DUMMY_DATA, 0, DUMMY_DATA.length);
+		} finally {
+			this.pollingSchedule.setDeadlineSuspended(false);
+		}
 	}
 
 	private void tryClaim() throws YubiKeyException {
-		if (!this.connection.claimInterface(this.device.getInterface(0), true)) // We need to detach the kernel driver from the device to get exclusive access
-			throw new YubiKeyException("Failed to claim interface");
+		if (this.transport == null)
+			throw new YubiKeyException("YubiKey does not provide an OTP interface");
+
+		// The interface stays claimed while a session is open
+		if (this.claims == 0) {
+			final long start = PhaseTracer.begin(MetricsListener.Phase.CLAIM);
+
+			try {
+				if (!this.transport.claim()) {
+					final YubiKeyException e = new YubiKeyException("Failed to claim interface");
+					this.metricsListener.onError(MetricsListener.Phase.CLAIM, e);
+					throw e;
+				}
+			} finally {
+				PhaseTracer.end(this.metricsListener, MetricsListener.Phase.CLAIM, start, 0, 0);
+			}
+		}
+
+		this.claims++;
 	}
 
 	private void release() {
-		this.connection.releaseInterface(this.device.getInterface(0)); // We probably don't really need to care about errors here
+		if (--this.claims == 0)
+			this.transport.release();
 	}
 
-	private byte[] waitForStatus(final boolean mayBlock, final short mask, final StatusMode mode) throws YubiKeyException {
-		int          waitInterval              = 1;
-		boolean      waitingForUserInteraction = false;
-		final byte[] data                      = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	private void readReport(final byte[] report) throws YubiKeyException {
+		final int bytes = this.transport.getFeatureReport(report, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
 
-		for (int waitTime = 0; waitTime <= (waitingForUserInteraction ? YUBIKEY_USER_INTERACTION_TIMEOUT_MS : YUBIKEY_OPERATION_TIMEOUT_MS); waitTime += waitInterval) {
-			try {
-				Thread.sleep(waitInterval);
-			} catch (final InterruptedException ignored) {
-			}
+		if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
+			throw new YubiKeyException("Failed to read feature report: " + bytes);
 
-			waitInterval *= 2;
+		this.polls++;
+		this.bytesTransferred += bytes;
+	}
 
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, 0, data, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+	private byte[] waitForStatus(final boolean mayBlock, final short mask, final StatusMode mode) throws YubiKeyException {
+		return this.waitForStatus(mayBlock, mask, mode, System.nanoTime());
+	}
 
-			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+	/**
+	 * @param start The time the awaited operation began, as returned by {@link System#nanoTime()}.
+	 */
+	private byte[] waitForStatus(final boolean mayBlock, final short mask, final StatusMode mode, final long start) throws YubiKeyException {
+		final byte[] data           = this.statusReportBuffer;
+		long         touchWaitStart = 0;
+		int          touchWaitPolls = 0;
+		boolean      interrupted    = false;
 
-			switch (mode) {
-				case SET:
-					if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == mask) {
-						return data;
-					}
+		this.pollingSchedule.begin(mask == STATUS_FLAG_WRITE ? StatusPollingSchedule.Operation.WRITE : StatusPollingSchedule.Operation.RESPONSE, start);
 
-					break;
-				case CLEAR:
-					if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == 0) {
-						return data;
-					}
+		try {
+			while (this.pollingSchedule.awaitNextPoll()) {
+				this.readReport(data);
+
+				switch (mode) {
+					case SET:
+						if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == mask) {
+							this.pollingSchedule.complete();
+							return data;
+						}
+
+						break;
+					case CLEAR:
+						if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == 0) {
+							this.pollingSchedule.complete();
+							return data;
+						}
+
+						break;
+				}
 
-					break;
+				if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WAITING) == STATUS_FLAG_WAITING) {
+					if (mayBlock) {
+						if (!this.pollingSchedule.isWaitingForUserInteraction()) {
+							touchWaitStart = PhaseTracer.begin(MetricsListener.Phase.TOUCH_WAIT);
+							touchWaitPolls = this.polls;
+							this.pollingSchedule.enterUserInteraction();
+
+							if (this.touchListener != null)
+								this.touchListener.onTouchPending();
+						}
+					} else {
+						this.reset();
+						throw new BlockingOperationException();
+					}
+				} else if (this.pollingSchedule.isWaitingForUserInteraction()) {
+					// User interaction timed out
+					throw new TimeoutException();
+				}
 			}
+		} catch (final InterruptedException e) {
+			interrupted = true;
+		} finally {
+			if (this.pollingSchedule.isWaitingForUserInteraction())
+				PhaseTracer.end(this.metricsListener, MetricsListener.Phase.TOUCH_WAIT, touchWaitStart, this.polls - touchWaitPolls, 0);
+		}
 
-			if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WAITING) == STATUS_FLAG_WAITING) {
-				if (mayBlock) {
-					waitingForUserInteraction = true;
-				} else {
-					this.reset();
-					throw new BlockingOperationException();
-				}
-			} else if (waitingForUserInteraction) {
-				// User interaction timed out
-				throw new TimeoutException();
+		if (interrupted) {
+			try {
+				// Abort the operation, so that the YubiKey does not keep waiting for a touch nobody expects
+				this.reset();
+			} catch (final YubiKeyException ignored) {
+				// The cancellation is what the caller needs to know about
+			} finally {
+				// Let the caller notice the interruption as well
+				Thread.currentThread().interrupt();
 			}
+
+			throw new OperationCancelledException();
 		}
 
+		// Likewise abort the operation the YubiKey did not finish in time
 		this.reset();
+
 		throw new TimeoutException();
 	}
 
-	private byte[] readResponse(final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
-		final byte[] response  = new byte[Math.max(REPORT_TYPE_FEATURE_DATA_SIZE * (expectedBytes / REPORT_TYPE_FEATURE_DATA_SIZE + 1), REPORT_TYPE_FEATURE_DATA_SIZE * 8)];
+	/**
+	 * Writes a frame and reads the response into {@link #responseBuffer}.
+	 *
+	 * @param expectedBytes Number of bytes expected (excluding the CRC), 0 if unknown.
+	 * @param mayBlock      Whether the operation may wait for user interaction.
+	 * @return The number of bytes read into the response buffer.
+	 */
+	private int request(final Slot slot, final byte[] data, final int offset, final int length, final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		this.write(slot, data, offset, length);
+
+		return this.readResponse(expectedBytes, mayBlock);
+	}
+
+	/**
+	 * Reads a response into {@link #responseBuffer}.
+	 *
+	 * @param expectedBytes Number of bytes expected (excluding the CRC), 0 if unknown.
+	 * @param mayBlock      Whether the operation may wait for user interaction.
+	 * @return The number of bytes read into the response buffer.
+	 */
+	private int readResponse(final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		final long start            = PhaseTracer.begin(MetricsListener.Phase.READ_RESPONSE);
+		final int  polls            = this.polls;
+		final int  bytesTransferred = this.bytesTransferred;
+
+		try {
+			return this.readResponseReports(expectedBytes, mayBlock);
+		} catch (final YubiKeyException e) {
+			this.metricsListener.onError(MetricsListener.Phase.READ_RESPONSE, e);
+			throw e;
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.READ_RESPONSE, start, this.polls - polls, this.bytesTransferred - bytesTransferred);
+		}
+	}
+
+	private int readResponseReports(final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		final byte[] response  = this.responseBuffer;
+		final int    crcBytes  = expectedBytes + 2;
 		int          bytesRead = REPORT_TYPE_FEATURE_DATA_SIZE - 1;
 
 		System.arraycopy(this.waitForStatus(mayBlock, STATUS_FLAG_RESPONSE_PENDING, StatusMode.SET), 0, response, 0, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
 
-		while (bytesRead + REPORT_TYPE_FEATURE_DATA_SIZE <= response.length || expectedBytes == 0) {
-			final byte[] data = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+		// The CRC is verified while the response is streamed in
+		this.responseCRC.reset();
+		this.responseCRC.update(response, 0, Math.min(bytesRead, crcBytes));
 
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, 0, data, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+		while (bytesRead + REPORT_TYPE_FEATURE_DATA_SIZE <= response.length) {
+			final byte[] data = this.statusReportBuffer;
 
-			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+			this.readReport(data);
 
 			if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_RESPONSE_PENDING) == STATUS_FLAG_RESPONSE_PENDING) {
 				if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & 0b11111) == 0) {
-					if (expectedBytes > 0) {
-						this.verifyCRC16(response, expectedBytes + 2);
-					}
-
-					if (response.length > expectedBytes) {
-						final byte[] result = new byte[expectedBytes];
-						System.arraycopy(response, 0, result, 0, expectedBytes);
-
-						return result;
-					}
+					if (expectedBytes > 0)
+						this.verifyCRC16();
 
-					return response;
+					return bytesRead;
 				}
 
 				System.arraycopy(data, 0, response, bytesRead, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
+
+				if (bytesRead < crcBytes)
+					this.responseCRC.update(response, bytesRead, Math.min(REPORT_TYPE_FEATURE_DATA_SIZE - 1, crcBytes - bytesRead));
+
 				bytesRead += REPORT_TYPE_FEATURE_DATA_SIZE - 1;
 			} else {
 				this.reset();
@@ -321,25 +747,57 @@ public class UsbYubiKey implements YubiKey {
 		throw new InvalidResponseException();
 	}
 
-	private void write(final Slot slot, final byte[] data) throws YubiKeyException {
-		final byte[] payload = new byte[WRITE_PAYLOAD_LENGTH];
-		final byte[] frame   = new byte[WRITE_PAYLOAD_LENGTH + 6];
+	private void verifyCRC16() throws CRC16Exception {
+		final long start = PhaseTracer.begin(MetricsListener.Phase.CRC_CHECK);
+
+		try {
+			if (!this.responseCRC.isResidualOk()) {
+				final CRC16Exception e = new CRC16Exception();
+				this.metricsListener.onError(MetricsListener.Phase.CRC_CHECK, e);
+				throw e;
+			}
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.CRC_CHECK, start, 0, 0);
+		}
+	}
+
+	private void write(final Slot slot, final byte[] data, final int offset, final int length) throws YubiKeyException {
+		final long start            = PhaseTracer.begin(MetricsListener.Phase.WRITE);
+		final int  polls            = this.polls;
+		final int  bytesTransferred = this.bytesTransferred;
+
+		try {
+			this.writeFrame(slot, data, offset, length);
+		} catch (final YubiKeyException e) {
+			this.metricsListener.onError(MetricsListener.Phase.WRITE, e);
+			throw e;
+		} finally {
+			PhaseTracer.end(this.metricsListener, MetricsListener.Phase.WRITE, start, this.polls - polls, this.bytesTransferred - bytesTransferred);
+		}
+	}
+
+	private void writeFrame(final Slot slot, final byte[] data, final int offset, final int length) throws YubiKeyException {
+		if (length > WRITE_PAYLOAD_LENGTH)
+			throw new IllegalArgumentException("Payload exceeds " + WRITE_PAYLOAD_LENGTH + " bytes");
 
-		System.arraycopy(data, 0, payload, 0, data.length);
-		System.arraycopy(payload, 0, frame, 0, WRITE_PAYLOAD_LENGTH);
+		final byte[] frame        = this.frameBuffer;
+		final byte[] sequenceData = this.writeReportBuffer;
 
-		final char crc = this.CRC16(payload, payload.length);
+		// The payload is zero-padded
+		Arrays.fill(frame, (byte) 0);
+		System.arraycopy(data, offset, frame, 0, length);
+
+		final char crc = CRC16.compute(frame, 0, WRITE_PAYLOAD_LENGTH);
 		frame[WRITE_PAYLOAD_LENGTH] = slot.getAddress();
 		frame[WRITE_PAYLOAD_LENGTH + 1] = (byte) (crc & 0xff);
 		frame[WRITE_PAYLOAD_LENGTH + 2] = (byte) (crc >> 8);
 
-		int offset = 0;
-
-		for (int sequence = 0; offset != frame.length; sequence++) {
-			final byte[] sequenceData = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+		int  frameOffset = 0;
+		long lastWrite   = 0;
 
-			System.arraycopy(frame, offset, sequenceData, 0, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
-			offset += REPORT_TYPE_FEATURE_DATA_SIZE - 1;
+		for (int sequence = 0; frameOffset != frame.length; sequence++) {
+			System.arraycopy(frame, frameOffset, sequenceData, 0, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
+			frameOffset += REPORT_TYPE_FEATURE_DATA_SIZE - 1;
 
 			boolean hasData = false;
 
@@ -350,18 +808,58 @@ public class UsbYubiKey implements YubiKey {
 				}
 			}
 
-			if (!hasData && sequence != 0 && offset != frame.length)
+			if (!hasData && sequence != 0 && frameOffset != frame.length)
 				continue;
 
 			sequenceData[REPORT_TYPE_FEATURE_DATA_SIZE - 1] = (byte) (sequence | STATUS_FLAG_WRITE);
 
-			this.waitForStatus(false, STATUS_FLAG_WRITE, StatusMode.CLEAR);
+			this.awaitWriteReady(lastWrite);
 
-			//noinspection PointlessBitwiseExpression
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_OUT | 0x1, HID_SET_REPORT, REPORT_TYPE_FEATURE, 0, sequenceData, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+			final int bytes = this.transport.setFeatureReport(sequenceData, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+			lastWrite = System.nanoTime();
 
 			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+				throw new YubiKeyException("Failed to write feature report: " + bytes);
+
+			this.bytesTransferred += bytes;
 		}
+
+	}
+
+	/**
+	 * Waits until the YubiKey accepts the next report of a frame. The status is read right away and,
+	 * if the YubiKey is busy, once more when it is expected to be ready. Only a YubiKey that is still
+	 * busy then, e.g. because of slow firmware, is polled according to the regular schedule.
+	 *
+	 * @param lastWrite The time the previous report of the frame was written, 0 for the first one.
+	 */
+	private void awaitWriteReady(final long lastWrite) throws YubiKeyException {
+		final byte[] status = this.statusReportBuffer;
+
+		// The regular wait takes care of cancelling the operation
+		if (!Thread.currentThread().isInterrupted()) {
+			this.readReport(status);
+
+			if ((status[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WRITE) == 0)
+				return;
+
+			if (lastWrite != 0 && this.pollingSchedule.awaitNextReport(lastWrite)) {
+				this.readReport(status);
+
+				final boolean ready = (status[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WRITE) == 0;
+				this.pollingSchedule.completeNextReport(ready);
+
+				if (ready)
+					return;
+			}
+		}
+
+		if (lastWrite == 0) {
+			this.waitForStatus(false, STATUS_FLAG_WRITE, StatusMode.CLEAR);
+			return;
+		}
+
+		this.waitForStatus(false, STATUS_FLAG_WRITE, StatusMode.CLEAR, lastWrite);
+		this.pollingSchedule.learnReportInterval(lastWrite);
 	}
 }
@@ -0,0 +1,31 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+
+/**
+ * Implemented by {@link NfcTransport}s over which the YubiKey may wait for the user to press the
+ * button while processing a command, i.e. by the {@link CcidTransport}. Via NFC, holding the
+ * YubiKey to the reader counts as user presence already.
+ */
+public interface UserInteractionTransport {
+	/**
+	 * Sets the listener that is notified when the YubiKey starts waiting for the user. The
+	 * listener is notified at most once and discarded afterwards.
+	 *
+	 * @param touchListener The listener or null.
+	 */
+	void setTouchListener(YubiKey.TouchListener touchListener);
+
+	/**
+	 * Sets a deadline for all following commands, including the time the YubiKey waits for the
+	 * user. Commands that don't complete until then are aborted.
+	 *
+	 * @param deadlineNanos The deadline as returned by {@link System#nanoTime()}.
+	 */
+	void setDeadline(long deadlineNanos);
+
+	/**
+	 * Removes the deadline set by {@link #setDeadline(long)}.
+	 */
+	void clearDeadline();
+}
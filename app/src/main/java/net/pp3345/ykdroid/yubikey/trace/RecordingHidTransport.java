@@ -0,0 +1,65 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import net.pp3345.ykdroid.yubikey.HidTransport;
+
+/**
+ * {@link HidTransport} that passes all calls on to another transport and records them, including
+ * their timing, with a {@link TraceWriter}.
+ */
+public class RecordingHidTransport implements HidTransport {
+	private final HidTransport transport;
+	private final TraceWriter  writer;
+
+	/**
+	 * @param transport The transport to record, e.g. a
+	 *                  {@link net.pp3345.ykdroid.yubikey.UsbHidTransport}.
+	 * @param writer    Writer for a trace of kind {@link Trace.Kind#HID}.
+	 */
+	public RecordingHidTransport(final HidTransport transport, final TraceWriter writer) {
+		if (writer.getKind() != Trace.Kind.HID)
+			throw new IllegalArgumentException("Trace kind must be " + Trace.Kind.HID);
+
+		this.transport = transport;
+		this.writer = writer;
+	}
+
+	@Override
+	public boolean claim() {
+		final long    start   = System.nanoTime();
+		final boolean claimed = this.transport.claim();
+
+		this.writer.record(TraceRecord.CLAIM, start, System.nanoTime(), claimed ? 1 : 0, null, 0, null, 0);
+
+		return claimed;
+	}
+
+	@Override
+	public void release() {
+		final long start = System.nanoTime();
+
+		this.transport.release();
+
+		this.writer.record(TraceRecord.RELEASE, start, System.nanoTime(), 0, null, 0, null, 0);
+		this.writer.flushQuietly();
+	}
+
+	@Override
+	public int getFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		final long start = System.nanoTime();
+		final int  bytes = this.transport.getFeatureReport(report, length, timeoutMillis);
+
+		this.writer.record(TraceRecord.GET_FEATURE_REPORT, start, System.nanoTime(), bytes, report, Math.max(bytes, 0), null, 0);
+
+		return bytes;
+	}
+
+	@Override
+	public int setFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		final long start = System.nanoTime();
+		final int  bytes = this.transport.setFeatureReport(report, length, timeoutMillis);
+
+		this.writer.record(TraceRecord.SET_FEATURE_REPORT, start, System.nanoTime(), bytes, report, length, null, 0);
+
+		return bytes;
+	}
+}
@@ -0,0 +1,109 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.yubikey.NfcTransport;
+import net.pp3345.ykdroid.yubikey.UserInteractionTransport;
+
+import java.io.IOException;
+
+/**
+ * {@link NfcTransport} that passes all calls on to another transport and records the connects,
+ * closes and transceives, including their timing, with a {@link TraceWriter}. Calls of
+ * {@link UserInteractionTransport} are passed on if the other transport implements it.
+ */
+public class RecordingNfcTransport implements NfcTransport, UserInteractionTransport {
+	private final NfcTransport transport;
+	private final TraceWriter  writer;
+
+	/**
+	 * @param transport The transport to record, e.g. an
+	 *                  {@link net.pp3345.ykdroid.yubikey.IsoDepTransport}.
+	 * @param writer    Writer for a trace of kind {@link Trace.Kind#NFC}.
+	 */
+	public RecordingNfcTransport(final NfcTransport transport, final TraceWriter writer) {
+		if (writer.getKind() != Trace.Kind.NFC)
+			throw new IllegalArgumentException("Trace kind must be " + Trace.Kind.NFC);
+
+		this.transport = transport;
+		this.writer = writer;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.transport.isConnected();
+	}
+
+	@Override
+	public void connect() throws IOException {
+		final long start  = System.nanoTime();
+		int        result = -1;
+
+		try {
+			this.transport.connect();
+			result = 0;
+		} finally {
+			this.writer.record(TraceRecord.CONNECT, start, System.nanoTime(), result, null, 0, null, 0);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		final long start  = System.nanoTime();
+		int        result = -1;
+
+		try {
+			this.transport.close();
+			result = 0;
+		} finally {
+			this.writer.record(TraceRecord.CLOSE, start, System.nanoTime(), result, null, 0, null, 0);
+			this.writer.flushQuietly();
+		}
+	}
+
+	@Override
+	public void setTimeout(final int timeoutMillis) {
+		this.transport.setTimeout(timeoutMillis);
+	}
+
+	@Override
+	public byte[] transceive(final byte[] command) throws IOException {
+		final long start    = System.nanoTime();
+		byte[]     response = null;
+
+		try {
+			response = this.transport.transceive(command);
+
+			return response;
+		} finally {
+			this.writer.record(TraceRecord.TRANSCEIVE, start, System.nanoTime(), response == null ? -1 : 0, command, command.length, response, response == null ? 0 : response.length);
+		}
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return this.transport.isExtendedLengthApduSupported();
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return this.transport.getMaxTransceiveLength();
+	}
+
+	@Override
+	public void setTouchListener(final YubiKey.TouchListener touchListener) {
+		if (this.transport instanceof UserInteractionTransport)
+			((UserInteractionTransport) this.transport).setTouchListener(touchListener);
+	}
+
+	@Override
+	public void setDeadline(final long deadlineNanos) {
+		if (this.transport instanceof UserInteractionTransport)
+			((UserInteractionTransport) this.transport).setDeadline(deadlineNanos);
+	}
+
+	@Override
+	public void clearDeadline() {
+		if (this.transport instanceof UserInteractionTransport)
+			((UserInteractionTransport) this.transport).clearDeadline();
+	}
+}
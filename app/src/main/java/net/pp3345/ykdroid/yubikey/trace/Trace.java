@@ -0,0 +1,166 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recording of the calls a driver made to its transport, see {@link TraceWriter}.
+ * <p>
+ * Traces are stored in a compact binary format: the magic bytes <code>YKTR</code>, a version byte
+ * and the {@link Kind}, followed by the records. Each record consists of the type, the time since
+ * the start of the previous record and the duration of the call in nanoseconds, the result and the
+ * length-prefixed data (plus the length-prefixed response for transceives). Numbers are stored as
+ * variable length quantities, the result is zigzag encoded.
+ * </p>
+ */
+public class Trace {
+	/**
+	 * The transport a trace was recorded from.
+	 */
+	public enum Kind {
+		/**
+		 * Feature reports exchanged via USB, see {@link net.pp3345.ykdroid.yubikey.HidTransport}.
+		 */
+		HID,
+		/**
+		 * APDUs exchanged via NFC, see {@link net.pp3345.ykdroid.yubikey.NfcTransport}.
+		 */
+		NFC
+	}
+
+	private static final byte[] MAGIC   = new byte[]{'Y', 'K', 'T', 'R'};
+	private static final int    VERSION = 1;
+
+	private final Kind              kind;
+	private final List<TraceRecord> records;
+
+	private Trace(final Kind kind, final List<TraceRecord> records) {
+		this.kind = kind;
+		this.records = Collections.unmodifiableList(records);
+	}
+
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	public List<TraceRecord> getRecords() {
+		return this.records;
+	}
+
+	/**
+	 * Reads a complete trace. A trace that ends within a record, e.g. because the app was killed
+	 * while recording, is truncated to the last complete record.
+	 *
+	 * @param in Stream to read the trace from. Is not closed.
+	 * @return The trace.
+	 * @throws IOException When reading failed or the stream does not contain a trace.
+	 */
+	public static Trace read(final InputStream in) throws IOException {
+		for (final byte b : MAGIC) {
+			if (in.read() != b)
+				throw new IOException("Not a trace");
+		}
+
+		if (in.read() != VERSION)
+			throw new IOException("Unsupported trace version");
+
+		final int kind = in.read();
+		if (kind < 0 || kind >= Kind.values().length)
+			throw new IOException("Unsupported trace kind");
+
+		final List<TraceRecord> records = new ArrayList<>();
+		long                    start   = 0;
+
+		try {
+			int type;
+
+			while ((type = in.read()) != -1) {
+				start += readVarLong(in);
+
+				final long   duration = readVarLong(in);
+				final long   result   = readVarLong(in);
+				final byte[] data     = readData(in);
+				final byte[] response = type == TraceRecord.TRANSCEIVE ? readData(in) : null;
+
+				records.add(new TraceRecord((byte) type, start, duration, (int) ((result >>> 1) ^ -(result & 1)), data, response));
+			}
+		} catch (final EOFException ignored) {
+		}
+
+		return new Trace(Kind.values()[kind], records);
+	}
+
+	static void writeHeader(final OutputStream out, final Kind kind) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(kind.ordinal());
+	}
+
+	static void writeRecord(final OutputStream out, final byte type, final long startDelta, final long duration, final int result, final byte[] data, final int dataLength, final byte[] response, final int responseLength) throws IOException {
+		out.write(type);
+		writeVarLong(out, startDelta);
+		writeVarLong(out, duration);
+		writeVarLong(out, ((long) result << 1) ^ (result >> 31));
+		writeVarLong(out, dataLength);
+		if (dataLength > 0)
+			out.write(data, 0, dataLength);
+
+		if (type == TraceRecord.TRANSCEIVE) {
+			writeVarLong(out, responseLength);
+			if (responseLength > 0)
+				out.write(response, 0, responseLength);
+		}
+	}
+
+	private static void writeVarLong(final OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	private static long readVarLong(final InputStream in) throws IOException {
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.read();
+
+			if (b == -1)
+				throw new EOFException();
+
+			value |= (long) (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed trace");
+	}
+
+	private static byte[] readData(final InputStream in) throws IOException {
+		final long length = readVarLong(in);
+
+		if (length > 0x10000 + 2)
+			throw new IOException("Malformed trace");
+
+		final byte[] data = new byte[(int) length];
+
+		for (int offset = 0; offset < data.length; ) {
+			final int read = in.read(data, offset, data.length - offset);
+
+			if (read == -1)
+				throw new EOFException();
+
+			offset += read;
+		}
+
+		return data;
+	}
+}
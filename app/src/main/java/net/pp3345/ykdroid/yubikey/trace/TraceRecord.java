@@ -0,0 +1,94 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+/**
+ * A single call to a transport as recorded in a {@link Trace}.
+ */
+public class TraceRecord {
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.HidTransport#claim()}, the result is 1 on success.
+	 */
+	public static final byte CLAIM              = 1;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.HidTransport#release()}.
+	 */
+	public static final byte RELEASE            = 2;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.HidTransport#getFeatureReport(byte[], int, int)}, the data
+	 * is the report that was read.
+	 */
+	public static final byte GET_FEATURE_REPORT = 3;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.HidTransport#setFeatureReport(byte[], int, int)}, the data
+	 * is the report that was written.
+	 */
+	public static final byte SET_FEATURE_REPORT = 4;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.NfcTransport#connect()}, the result is -1 on failure.
+	 */
+	public static final byte CONNECT            = 5;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.NfcTransport#close()}, the result is -1 on failure.
+	 */
+	public static final byte CLOSE              = 6;
+	/**
+	 * {@link net.pp3345.ykdroid.yubikey.NfcTransport#transceive(byte[])}, the data is the command
+	 * and the response data is the response. The result is -1 on failure.
+	 */
+	public static final byte TRANSCEIVE         = 7;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final byte   type;
+	private final long   startNanos;
+	private final long   durationNanos;
+	private final int    result;
+	private final byte[] data;
+	private final byte[] responseData;
+
+	/**
+	 * @param type          Type of the call, e.g. {@link #TRANSCEIVE}.
+	 * @param startNanos    Time the call started, relative to the start of the trace.
+	 * @param durationNanos Duration of the call.
+	 * @param result        Return value of the call, see the types.
+	 * @param data          Data passed to or returned by the call or null.
+	 * @param responseData  Response of a {@link #TRANSCEIVE} call or null.
+	 */
+	public TraceRecord(final byte type, final long startNanos, final long durationNanos, final int result, final byte[] data, final byte[] responseData) {
+		this.type = type;
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+		this.result = result;
+		this.data = data == null ? NO_DATA : data;
+		this.responseData = responseData == null ? NO_DATA : responseData;
+	}
+
+	public byte getType() {
+		return this.type;
+	}
+
+	public long getStartNanos() {
+		return this.startNanos;
+	}
+
+	public long getDurationNanos() {
+		return this.durationNanos;
+	}
+
+	public int getResult() {
+		return this.result;
+	}
+
+	/**
+	 * @return The data of the call, must not be modified.
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * @return The response of a {@link #TRANSCEIVE} call, must not be modified.
+	 */
+	public byte[] getResponseData() {
+		return this.responseData;
+	}
+}
@@ -0,0 +1,108 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the calls made to a transport to a {@link Trace}, see {@link RecordingHidTransport} and
+ * {@link RecordingNfcTransport}.
+ * <p>
+ * Failing to write the trace never affects the recorded driver: the first error stops the
+ * recording and is available via {@link #getError()}. Note that traces contain all data exchanged
+ * with the YubiKey, including challenges and responses, so only YubiKeys programmed with secrets
+ * meant for testing should be recorded.
+ * </p>
+ */
+public class TraceWriter implements Closeable {
+	private final OutputStream out;
+	private final Trace.Kind   kind;
+	private final long         origin;
+	private       long         previousStart;
+	private       IOException  error;
+	private       boolean      closed;
+
+	/**
+	 * Writes the header of the trace and starts its clock.
+	 *
+	 * @param out  Stream to write the trace to. Is closed by {@link #close()}.
+	 * @param kind The transport that is recorded.
+	 */
+	public TraceWriter(final OutputStream out, final Trace.Kind kind) throws IOException {
+		this.out = new BufferedOutputStream(out);
+		this.kind = kind;
+
+		Trace.writeHeader(this.out, kind);
+
+		this.origin = System.nanoTime();
+		this.previousStart = this.origin;
+	}
+
+	public Trace.Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * @return The error that stopped the recording or null, if there was none.
+	 */
+	public synchronized IOException getError() {
+		return this.error;
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @param type           Type of the call, e.g. {@link TraceRecord#TRANSCEIVE}.
+	 * @param start          Value of {@link System#nanoTime()} when the call started.
+	 * @param end            Value of {@link System#nanoTime()} when the call returned.
+	 * @param result         Return value of the call.
+	 * @param data           Data passed to or returned by the call or null.
+	 * @param dataLength     Length of the data.
+	 * @param response       Response of a transceive or null.
+	 * @param responseLength Length of the response.
+	 */
+	synchronized void record(final byte type, final long start, final long end, final int result, final byte[] data, final int dataLength, final byte[] response, final int responseLength) {
+		if (this.closed || this.error != null)
+			return;
+
+		try {
+			Trace.writeRecord(this.out, type, start - this.previousStart, end - start, result, data, data == null ? 0 : dataLength, response, response == null ? 0 : responseLength);
+			this.previousStart = start;
+		} catch (final IOException e) {
+			this.error = e;
+		}
+	}
+
+	/**
+	 * Writes all buffered records, stopping the recording on failure. Called by the recording
+	 * transports whenever the driver is done with the YubiKey for now.
+	 */
+	synchronized void flushQuietly() {
+		if (this.closed || this.error != null)
+			return;
+
+		try {
+			this.out.flush();
+		} catch (final IOException e) {
+			this.error = e;
+		}
+	}
+
+	/**
+	 * Writes all buffered records.
+	 */
+	public synchronized void flush() throws IOException {
+		if (!this.closed)
+			this.out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed)
+			return;
+
+		this.closed = true;
+		this.out.close();
+	}
+}
@@ -0,0 +1,192 @@
+package net.pp3345.ykdroid.apdu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseChainReaderTest {
+	/**
+	 * Returns a response in chunks of a fixed length, expecting the remaining data to be requested
+	 * with a specific instruction.
+	 */
+	private static class ChunkingTransceiver implements Transceiver {
+		private final byte         instruction;
+		private final int          chunkLength;
+		private final List<byte[]> commands = new ArrayList<>();
+		private       byte[]       data;
+		private       int          offset;
+
+		ChunkingTransceiver(final byte instruction, final int chunkLength) {
+			this.instruction = instruction;
+			this.chunkLength = chunkLength;
+		}
+
+		/**
+		 * @return The first chunk of the response, as returned for the initial command.
+		 */
+		byte[] respond(final byte[] data) {
+			this.data = data;
+			this.offset = 0;
+
+			return this.nextChunk();
+		}
+
+		@Override
+		public byte[] transceive(final byte[] command) {
+			this.commands.add(command.clone());
+
+			if (command[1] != this.instruction)
+				return new byte[]{0x6d, 0x00};
+
+			return this.nextChunk();
+		}
+
+		private byte[] nextChunk() {
+			final int    length   = Math.min(this.chunkLength, this.data.length - this.offset);
+			final byte[] response = Arrays.copyOfRange(this.data, this.offset, this.offset + length + 2);
+
+			this.offset += length;
+
+			final int remaining = this.data.length - this.offset;
+			if (remaining > 0) {
+				response[length] = ResponseApdu.SW1_MORE_DATA_AVAILABLE;
+				response[length + 1] = (byte) Math.min(remaining, 0x100);
+			} else {
+				response[length] = (byte) 0x90;
+				response[length + 1] = 0x00;
+			}
+
+			return response;
+		}
+	}
+
+	private static byte[] randomData(final int length) {
+		final byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+
+		return data;
+	}
+
+	private static void assertResponse(final byte[] expectedData, final ResponseChainReader reader, final int length) {
+		assertEquals(expectedData.length + 2, length);
+		assertArrayEquals(expectedData, Arrays.copyOf(reader.getBuffer(), expectedData.length));
+
+		final ResponseApdu response = new ResponseApdu(reader.getBuffer(), length);
+		assertTrue(response.isSuccess());
+		assertEquals(expectedData.length, response.getDataLength());
+	}
+
+	@Test
+	public void readsUnchainedResponseWithoutTransceiving() throws IOException {
+		final ChunkingTransceiver transceiver = new ChunkingTransceiver(ResponseChainReader.INS_GET_RESPONSE, 256);
+		final ResponseChainReader reader      = new ResponseChainReader(transceiver);
+		final byte[]              data        = randomData(20);
+
+		assertResponse(data, reader, reader.read(transceiver.respond(data)));
+		assertEquals(0, transceiver.commands.size());
+	}
+
+	@Test
+	public void followsGetResponseChain() throws IOException {
+		final ChunkingTransceiver transceiver = new ChunkingTransceiver(ResponseChainReader.INS_GET_RESPONSE, 50);
+		final ResponseChainReader reader      = new ResponseChainReader(transceiver);
+		final byte[]              data        = randomData(1000);
+
+		assertResponse(data, reader, reader.read(transceiver.respond(data)));
+		assertEquals(19, transceiver.commands.size());
+
+		for (final byte[] command : transceiver.commands) {
+			assertEquals(5, command.length);
+			assertEquals(ResponseChainReader.INS_GET_RESPONSE, command[1]);
+		}
+
+		// Le is set to the number of bytes the card reported as remaining
+		assertEquals(0, transceiver.commands.get(0)[4]);
+		assertEquals((byte) 200, transceiver.commands.get(15)[4]);
+		assertEquals(50, transceiver.commands.get(18)[4]);
+	}
+
+	@Test
+	public void followsSendRemainingChain() throws IOException {
+		final ChunkingTransceiver transceiver = new ChunkingTransceiver(ResponseChainReader.INS_SEND_REMAINING, 100);
+		final ResponseChainReader reader      = new ResponseChainReader(transceiver, ResponseChainReader.INS_SEND_REMAINING);
+		final byte[]              data        = randomData(350);
+
+		assertResponse(data, reader, reader.read(transceiver.respond(data)));
+		assertEquals(3, transceiver.commands.size());
+	}
+
+	@Test
+	public void reusesBuffer() throws IOException {
+		final ChunkingTransceiver transceiver = new ChunkingTransceiver(ResponseChainReader.INS_GET_RESPONSE, 7);
+		final ResponseChainReader reader      = new ResponseChainReader(transceiver);
+
+		reader.read(transceiver.respond(randomData(100)));
+		final byte[] buffer = reader.getBuffer();
+
+		final byte[] data = randomData(64);
+		assertResponse(data, reader, reader.read(transceiver.respond(data)));
+		assertSame(buffer, reader.getBuffer());
+	}
+
+	@Test
+	public void keepsFinalStatusWord() throws IOException {
+		final ResponseChainReader reader = new ResponseChainReader(new Transceiver() {
+			@Override
+			public byte[] transceive(final byte[] command) {
+				return new byte[]{0x03, 0x04, 0x6a, (byte) 0x80};
+			}
+		});
+
+		final int length = reader.read(new byte[]{0x01, 0x02, 0x61, 0x02});
+
+		assertEquals(6, length);
+		assertEquals(0x6a80, new ResponseApdu(reader.getBuffer(), length).getStatusWord());
+		assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04}, Arrays.copyOf(reader.getBuffer(), 4));
+	}
+
+	@Test
+	public void rejectsInvalidResponse() {
+		final ResponseChainReader reader = new ResponseChainReader(new Transceiver() {
+			@Override
+			public byte[] transceive(final byte[] command) {
+				return new byte[]{0x01};
+			}
+		});
+
+		try {
+			reader.read(new byte[]{0x61, 0x01});
+			fail();
+		} catch (final IOException expected) {
+		}
+	}
+
+	@Test
+	public void rejectsEndlessChain() {
+		final ResponseChainReader reader = new ResponseChainReader(new Transceiver() {
+			@Override
+			public byte[] transceive(final byte[] command) {
+				final byte[] response = new byte[0x102];
+				response[0x100] = ResponseApdu.SW1_MORE_DATA_AVAILABLE;
+
+				return response;
+			}
+		});
+
+		try {
+			reader.read(new byte[]{0x61, 0x00});
+			fail();
+		} catch (final IOException expected) {
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package net.pp3345.ykdroid.apdu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses and encodes YKOATH CALCULATE ALL responses with many entries (a name followed by a
+ * truncated code each), comparing the {@link TlvReader} cursor with a parser that copies every
+ * value into an array of its own.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.apdu.TlvBenchmark</code>
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlvBenchmark {
+	private static final byte TAG_NAME      = (byte) 0x71;
+	private static final byte TAG_TRUNCATED = (byte) 0x76;
+
+	@Param({"10", "100", "500"})
+	public int entries;
+
+	private final TlvReader  reader = new TlvReader();
+	private       byte[][]   names;
+	private       byte[]     code;
+	private       byte[]     response;
+	private       ByteBuffer encodeBuffer;
+
+	@Setup
+	public void setUp() {
+		this.names = new byte[this.entries][];
+		this.code = new byte[]{6, 0x12, 0x34, 0x56, 0x78};
+
+		int length = 0;
+		for (int i = 0; i < this.entries; i++) {
+			this.names[i] = ("Issuer " + i + ":user" + i + "@example.com").getBytes();
+			length += TlvWriter.getEncodedLength(this.names[i].length) + TlvWriter.getEncodedLength(this.code.length);
+		}
+
+		this.encodeBuffer = ByteBuffer.allocate(length + 2);
+		this.encode();
+		this.response = Arrays.copyOf(this.encodeBuffer.array(), this.encodeBuffer.position());
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		this.encodeBuffer.clear();
+
+		for (final byte[] name : this.names) {
+			TlvWriter.put(this.encodeBuffer, TAG_NAME, name, 0, name.length);
+			TlvWriter.put(this.encodeBuffer, TAG_TRUNCATED, this.code, 0, this.code.length);
+		}
+
+		this.encodeBuffer.put((byte) 0x90);
+		this.encodeBuffer.put((byte) 0x00);
+
+		return this.encodeBuffer;
+	}
+
+	@Benchmark
+	public long parseWithCursor() {
+		long checksum = 0;
+
+		this.reader.reset(new ResponseApdu(this.response));
+
+		while (this.reader.next()) {
+			if (this.reader.getTag() == TAG_NAME)
+				checksum += this.reader.getValueLength();
+			else
+				checksum += this.reader.getValueInt(1, 4);
+		}
+
+		return checksum;
+	}
+
+	@Benchmark
+	public List<byte[]> parseWithCopies() {
+		final List<byte[]> values = new ArrayList<>();
+		final byte[]       data   = new ResponseApdu(this.response).getData();
+		int                offset = 0;
+
+		while (offset < data.length) {
+			offset++;
+
+			int length = data[offset++] & 0xff;
+			if (length == 0x81)
+				length = data[offset++] & 0xff;
+
+			values.add(Arrays.copyOfRange(data, offset, offset + length));
+			offset += length;
+		}
+
+		return values;
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TlvBenchmark.class.getName()).addProfiler("gc").build()).run();
+	}
+}
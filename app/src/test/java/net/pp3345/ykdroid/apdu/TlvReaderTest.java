@@ -0,0 +1,80 @@
+package net.pp3345.ykdroid.apdu;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TlvReaderTest {
+	@Test
+	public void readsWhatWasWritten() {
+		final int[] lengths = new int[]{0, 1, 0x7f, 0x80, 0xff, 0x100, 0x1234};
+		int         total   = 0;
+
+		for (final int length : lengths)
+			total += TlvWriter.getEncodedLength(length);
+
+		final ByteBuffer buffer = ByteBuffer.allocate(total + 1);
+		buffer.put((byte) 0xee);
+
+		for (int i = 0; i < lengths.length; i++) {
+			final byte[] value = new byte[lengths[i]];
+			if (value.length > 0)
+				value[value.length - 1] = (byte) i;
+
+			TlvWriter.put(buffer, (byte) (0x70 + i), value, 0, value.length);
+		}
+
+		assertEquals(buffer.capacity(), buffer.position());
+
+		final TlvReader reader = new TlvReader(buffer.array(), 1, total);
+
+		for (int i = 0; i < lengths.length; i++) {
+			assertTrue(reader.next());
+			assertEquals((byte) (0x70 + i), reader.getTag());
+			assertEquals(lengths[i], reader.getValueLength());
+
+			if (lengths[i] > 0)
+				assertEquals((byte) i, reader.getValueByte(lengths[i] - 1));
+		}
+
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void readsDataFieldOfResponse() {
+		final TlvReader reader = new TlvReader();
+		reader.reset(new ResponseApdu(new byte[]{0x76, 0x05, 0x06, 0x12, 0x34, 0x56, 0x78, (byte) 0x90, 0x00}));
+
+		assertTrue(reader.next());
+		assertEquals(6, reader.getValueByte(0));
+		assertEquals(0x12345678, reader.getValueInt(1, 4));
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void rejectsTruncatedDataObject() {
+		final TlvReader reader = new TlvReader(new byte[]{0x71, 0x03, 0x01, 0x02}, 0, 4);
+
+		try {
+			reader.next();
+			fail();
+		} catch (final IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void rejectsUnsupportedLengthForm() {
+		final TlvReader reader = new TlvReader(new byte[]{0x71, (byte) 0x83, 0x00, 0x00, 0x01, 0x00}, 0, 6);
+
+		try {
+			reader.next();
+			fail();
+		} catch (final IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package net.pp3345.ykdroid.yubikey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the table-driven {@link CRC16} against the bitwise loop it replaced, both over a whole
+ * buffer and updated incrementally with the 7 byte chunks carried by each feature report.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.CRC16Benchmark</code>
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRC16Benchmark {
+	private static final int CHUNK_LENGTH = 7;
+
+	/**
+	 * 64 bytes is the payload of a written frame, 22 bytes a response with its CRC.
+	 */
+	@Param({"22", "64"})
+	public int length;
+
+	private final CRC16  crc = new CRC16();
+	private       byte[] buffer;
+
+	@Setup
+	public void setUp() {
+		this.buffer = new byte[this.length];
+		new Random(0).nextBytes(this.buffer);
+	}
+
+	/**
+	 * The implementation that used to be part of {@link UsbYubiKey}.
+	 */
+	static char computeBitwise(final byte[] buffer, final int offset, final int length) {
+		char crc = 0xffff;
+
+		for (int x = offset; x < offset + length; x++) {
+			crc ^= buffer[x] & 0xff;
+
+			for (int i = 0; i < 8; i++) {
+				final boolean j = (crc & 0b1) == 1;
+				crc >>= 1;
+
+				if (j) {
+					crc ^= 0x8408;
+				}
+			}
+		}
+
+		return crc;
+	}
+
+	@Benchmark
+	public char bitwise() {
+		return computeBitwise(this.buffer, 0, this.buffer.length);
+	}
+
+	@Benchmark
+	public char table() {
+		return CRC16.compute(this.buffer, 0, this.buffer.length);
+	}
+
+	@Benchmark
+	public char tableIncremental() {
+		this.crc.reset();
+
+		for (int offset = 0; offset < this.buffer.length; offset += CHUNK_LENGTH)
+			this.crc.update(this.buffer, offset, Math.min(CHUNK_LENGTH, this.buffer.length - offset));
+
+		return this.crc.getValue();
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(CRC16Benchmark.class.getName()).build()).run();
+	}
+}
@@ -0,0 +1,55 @@
+package net.pp3345.ykdroid.yubikey;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CRC16Test {
+	@Test
+	public void matchesBitwiseImplementation() {
+		final Random random = new Random(0);
+
+		for (int length = 0; length <= 70; length++) {
+			final byte[] buffer = new byte[length];
+			random.nextBytes(buffer);
+
+			assertEquals(CRC16Benchmark.computeBitwise(buffer, 0, length), CRC16.compute(buffer, 0, length));
+		}
+	}
+
+	@Test
+	public void incrementalUpdateMatchesSingleComputation() {
+		final byte[] buffer = new byte[64];
+		new Random(1).nextBytes(buffer);
+
+		final CRC16 crc = new CRC16();
+		for (int offset = 0; offset < buffer.length; offset += 7)
+			crc.update(buffer, offset, Math.min(7, buffer.length - offset));
+
+		assertEquals(CRC16.compute(buffer, 0, buffer.length), crc.getValue());
+	}
+
+	@Test
+	public void residualOfDataFollowedByItsCRC() {
+		final byte[] response = new byte[22];
+		new Random(2).nextBytes(response);
+
+		// YubiKeys append the complement of the CRC in little endian byte order
+		final char crc = (char) ~CRC16.compute(response, 0, 20);
+		response[20] = (byte) crc;
+		response[21] = (byte) (crc >> 8);
+
+		final CRC16 residual = new CRC16();
+		residual.update(response, 0, response.length);
+		assertTrue(residual.isResidualOk());
+
+		response[3] ^= 0x10;
+		residual.reset();
+		residual.update(response, 0, response.length);
+		assertFalse(residual.isResidualOk());
+	}
+}
@@ -0,0 +1,118 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.YubiKeySession;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedCcidYubiKey;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedFirmware;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CcidTransportTest {
+	private static final byte[] SECRET    = "0123456789abcdefghij".getBytes();
+	private static final byte[] CHALLENGE = "ykDroid".getBytes();
+
+	/**
+	 * SELECT of the challenge-response applet.
+	 */
+	private static final byte[] SELECT = new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x07, (byte) 0xa0, 0x00, 0x00, 0x05, 0x27, 0x20, 0x01};
+
+	private SimulatedCcidYubiKey simulator;
+	private UsbYubiKey           yubiKey;
+
+	@Before
+	public void setUp() {
+		final SimulatedFirmware firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, true);
+
+		this.simulator = new SimulatedCcidYubiKey(firmware);
+		this.yubiKey = new UsbYubiKey(UsbYubiKey.Type.YK4_CCID, null, new CcidTransport(this.simulator));
+	}
+
+	@Test
+	public void releasesInterfaceAfterEachOperation() throws YubiKeyException {
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		assertFalse(this.simulator.isClaimed());
+
+		this.yubiKey.getDeviceInfo();
+		assertFalse(this.simulator.isClaimed());
+	}
+
+	@Test
+	public void sessionKeepsInterfaceClaimed() throws YubiKeyException {
+		try (final YubiKeySession session = this.yubiKey.openSession()) {
+			session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			assertTrue(this.simulator.isClaimed());
+		}
+
+		assertFalse(this.simulator.isClaimed());
+	}
+
+	@Test
+	public void touchWaitIsNotLimitedByTransceiveTimeout() throws IOException {
+		final CcidTransport transport = new CcidTransport(this.simulator);
+
+		transport.connect();
+		transport.setTimeout(20);
+
+		// The YubiKey keeps requesting time extensions for longer than the timeout
+		this.simulator.setTimeExtensions(20);
+		this.simulator.setTransferLatency(5, TimeUnit.MILLISECONDS);
+
+		final byte[] response = transport.transceive(SELECT);
+		assertEquals((byte) 0x90, response[response.length - 2]);
+		assertEquals(0, this.simulator.getAborts());
+
+		transport.close();
+	}
+
+	@Test
+	public void deadlineAbortsTouchWait() throws YubiKeyException {
+		this.simulator.setTimeExtensions(Integer.MAX_VALUE);
+		this.simulator.setTransferLatency(1, TimeUnit.MILLISECONDS);
+
+		try {
+			this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 100, null);
+			fail();
+		} catch (final TimeoutException expected) {
+		}
+
+		assertEquals(1, this.simulator.getAborts());
+		assertFalse(this.simulator.isClaimed());
+	}
+
+	@Test
+	public void cancellationAbortsTouchWait() throws YubiKeyException {
+		this.simulator.setTimeExtensions(Integer.MAX_VALUE);
+		this.simulator.setTransferLatency(1, TimeUnit.MILLISECONDS);
+
+		try {
+			this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 0, new YubiKey.TouchListener() {
+				@Override
+				public void onTouchPending() {
+					Thread.currentThread().interrupt();
+				}
+			});
+			fail();
+		} catch (final OperationCancelledException expected) {
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals(1, this.simulator.getAborts());
+		assertFalse(this.simulator.isClaimed());
+
+		// The aborted YubiKey accepts the next command
+		this.simulator.setTimeExtensions(0);
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+	}
+}
@@ -0,0 +1,52 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceExecutorTest {
+	private final YubiKey.Operation<String> operation = new YubiKey.Operation<String>() {
+		@Override
+		public String execute(final YubiKey yubiKey) {
+			return Thread.currentThread().getName();
+		}
+	};
+
+	@Test
+	public void queuedOperationsCompleteAfterShutdown() throws InterruptedException, ExecutionException {
+		final DeviceExecutor executor = new DeviceExecutor("DeviceExecutorTest");
+		final Future<String> future   = executor.submit(null, this.operation, null);
+
+		executor.shutdown();
+
+		assertEquals("DeviceExecutorTest", future.get());
+	}
+
+	@Test
+	public void operationsFailAfterShutdown() {
+		final DeviceExecutor     executor = new DeviceExecutor("DeviceExecutorTest");
+		final YubiKeyException[] error    = new YubiKeyException[1];
+
+		executor.shutdown();
+
+		final Future<String> future = executor.submit(null, this.operation, new YubiKey.OperationCallback<String>() {
+			@Override
+			public void onSuccess(final String result) {
+			}
+
+			@Override
+			public void onError(final YubiKeyException e) {
+				error[0] = e;
+			}
+		});
+
+		assertTrue(future.isCancelled());
+		assertTrue(error[0] instanceof ConnectionLostException);
+	}
+}
@@ -0,0 +1,196 @@
+package net.pp3345.ykdroid.yubikey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scriptable stand-in for an ISO-DEP tag that answers SELECT for the challenge-response applet and
+ * PUT requests, optionally splitting responses into chunks that must be retrieved with
+ * GET RESPONSE. Records all commands it receives.
+ */
+class FakeNfcTransport implements NfcTransport {
+	static final byte INS_SELECT       = (byte) 0xa4;
+	static final byte INS_PUT          = 0x01;
+	static final byte INS_GET_RESPONSE = (byte) 0xc0;
+
+	/**
+	 * Firmware 4.3.7, programming sequence 1, both slots programmed.
+	 */
+	static final byte[] STATUS = new byte[]{4, 3, 7, 1, 0x03, 0x00};
+
+	private final List<byte[]> commands = new ArrayList<>();
+
+	private boolean connected;
+	private int     connects;
+	private boolean appletAvailable = true;
+	private boolean selected;
+	private int     lostSelectionStatusWord = 0x6d00;
+	private int     chunkLength;
+	private byte[]  remaining;
+	private int     timeoutMillis;
+	private boolean failPuts;
+	private boolean failPutsAfterTimeout;
+
+	/**
+	 * Computes the response of the fake applet to a challenge.
+	 */
+	static byte[] responseFor(final byte[] challenge) {
+		final byte[] response = new byte[20];
+
+		for (int i = 0; i < response.length; i++)
+			response[i] = (byte) (challenge[i % challenge.length] ^ 0x5a ^ i);
+
+		return response;
+	}
+
+	/**
+	 * Makes the tag forget the applet selection, as if another app selected a different applet.
+	 *
+	 * @param statusWord The status word returned for PUT requests until the applet is selected
+	 *                   again.
+	 */
+	void loseSelection(final int statusWord) {
+		this.selected = false;
+		this.lostSelectionStatusWord = statusWord;
+	}
+
+	/**
+	 * @param appletAvailable Whether SELECT succeeds, true by default.
+	 */
+	void setAppletAvailable(final boolean appletAvailable) {
+		this.appletAvailable = appletAvailable;
+	}
+
+	/**
+	 * @param chunkLength Maximum number of data bytes per response, 0 for no limit.
+	 */
+	void setChunkLength(final int chunkLength) {
+		this.chunkLength = chunkLength;
+	}
+
+	/**
+	 * Makes PUT requests fail with a plain {@link IOException}, which is also how IsoDep reports a
+	 * transceive timeout.
+	 *
+	 * @param afterTimeout Whether the failure is only reported once the transceive timeout elapsed.
+	 */
+	void failPuts(final boolean afterTimeout) {
+		this.failPuts = true;
+		this.failPutsAfterTimeout = afterTimeout;
+	}
+
+	List<byte[]> getCommands() {
+		return this.commands;
+	}
+
+	int countCommands(final byte instruction) {
+		int count = 0;
+
+		for (final byte[] command : this.commands) {
+			if (command[1] == instruction)
+				count++;
+		}
+
+		return count;
+	}
+
+	int getConnects() {
+		return this.connects;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public void connect() {
+		this.connected = true;
+		this.connects++;
+		this.selected = false;
+	}
+
+	@Override
+	public void close() {
+		this.connected = false;
+		this.selected = false;
+	}
+
+	@Override
+	public void setTimeout(final int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return false;
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return 261;
+	}
+
+	@Override
+	public byte[] transceive(final byte[] command) throws IOException {
+		if (!this.connected)
+			throw new IOException("Tag is not connected");
+
+		this.commands.add(command.clone());
+
+		switch (command[1]) {
+			case INS_SELECT:
+				if (!this.appletAvailable)
+					return statusWord(0x6a82);
+
+				this.selected = true;
+				return this.respond(STATUS);
+			case INS_PUT:
+				if (!this.selected)
+					return statusWord(this.lostSelectionStatusWord);
+
+				if (this.failPuts) {
+					if (this.failPutsAfterTimeout) {
+						try {
+							Thread.sleep(this.timeoutMillis);
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					throw new IOException("Transceive failed");
+				}
+
+				return this.respond(responseFor(Arrays.copyOfRange(command, 5, 5 + (command[4] & 0xff))));
+			case INS_GET_RESPONSE:
+				if (this.remaining == null)
+					return statusWord(0x6985);
+
+				return this.respond(this.remaining);
+			default:
+				return statusWord(0x6d00);
+		}
+	}
+
+	private byte[] respond(final byte[] data) {
+		final int    length   = this.chunkLength > 0 ? Math.min(this.chunkLength, data.length) : data.length;
+		final byte[] response = Arrays.copyOf(data, length + 2);
+
+		if (length < data.length) {
+			this.remaining = Arrays.copyOfRange(data, length, data.length);
+			response[length] = 0x61;
+			response[length + 1] = (byte) Math.min(this.remaining.length, 0xff);
+		} else {
+			this.remaining = null;
+			response[length] = (byte) 0x90;
+		}
+
+		return response;
+	}
+
+	private static byte[] statusWord(final int statusWord) {
+		return new byte[]{(byte) (statusWord >> 8), (byte) statusWord};
+	}
+}
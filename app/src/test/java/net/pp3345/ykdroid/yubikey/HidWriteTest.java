@@ -0,0 +1,81 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.yubikey.simulator.ReferenceHmacSha1;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedFirmware;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedYubiKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writing frames whose reports are accepted at different speeds. Each test uses its own device
+ * type, as the timing is learned per device type.
+ */
+public class HidWriteTest {
+	private static final byte[] SECRET    = "0123456789abcdefghij".getBytes();
+	private static final byte[] CHALLENGE = "ykDroid HID write test challenge".getBytes();
+
+	private SimulatedFirmware firmware;
+	private byte[]            expectedResponse;
+
+	@Before
+	public void setUp() {
+		this.firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		this.firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+		this.expectedResponse = new ReferenceHmacSha1(SECRET, true).challengeResponse(CHALLENGE);
+	}
+
+	@Test
+	public void readsStatusOncePerReportIfReady() throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		final UsbYubiKey       yubiKey   = new UsbYubiKey(UsbYubiKey.Type.NEO_OTP, simulator);
+
+		assertArrayEquals(this.expectedResponse, yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		final int reportsRead    = simulator.getFeatureReportsRead();
+		final int reportsWritten = simulator.getFeatureReportsWritten();
+
+		assertArrayEquals(this.expectedResponse, yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		// The slot profile, one status per written report and the 4 reports of the response followed
+		// by the one that ends it
+		assertEquals(1 + (simulator.getFeatureReportsWritten() - reportsWritten) + 5, simulator.getFeatureReportsRead() - reportsRead);
+	}
+
+	@Test
+	public void busyYubiKeyIsNeverWrittenTo() throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setWriteLatency(500, TimeUnit.MICROSECONDS);
+
+		final UsbYubiKey yubiKey = new UsbYubiKey(UsbYubiKey.Type.NEO_OTP_CCID, simulator);
+
+		for (int i = 0; i < 20; i++)
+			assertArrayEquals(this.expectedResponse, yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		assertEquals(0, simulator.getDroppedReports());
+	}
+
+	@Test
+	public void slowerYubiKeyIsStillWaitedFor() throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setWriteLatency(200, TimeUnit.MICROSECONDS);
+
+		final UsbYubiKey yubiKey = new UsbYubiKey(UsbYubiKey.Type.NEO_OTP_U2F, simulator);
+
+		for (int i = 0; i < 10; i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		// Firmware that takes far longer than learned, and even longer than a learned wait may take
+		simulator.setWriteLatency(12, TimeUnit.MILLISECONDS);
+
+		for (int i = 0; i < 3; i++)
+			assertArrayEquals(this.expectedResponse, yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		assertEquals(0, simulator.getDroppedReports());
+	}
+}
@@ -0,0 +1,170 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKeySession;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NfcYubiKeyTest {
+	private static final byte[] CHALLENGE = "ykDroid".getBytes();
+
+	private FakeNfcTransport transport;
+	private NfcYubiKey       yubiKey;
+
+	@Before
+	public void setUp() {
+		this.transport = new FakeNfcTransport();
+		this.yubiKey = new NfcYubiKey(this.transport);
+	}
+
+	@Test
+	public void selectsAppletOncePerConnection() throws YubiKeyException {
+		for (int i = 0; i < 3; i++)
+			assertArrayEquals(FakeNfcTransport.responseFor(CHALLENGE), this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		assertEquals(1, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(3, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+		assertEquals(4, this.transport.getCommands().size());
+	}
+
+	@Test
+	public void sessionSharesSelection() throws YubiKeyException {
+		try (final YubiKeySession session = this.yubiKey.openSession()) {
+			session.challengeResponse(Slot.CHALLENGE_HMAC_1, CHALLENGE);
+			session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		}
+
+		assertEquals(1, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+	}
+
+	@Test
+	public void reselectsAfterFileNotFound() throws YubiKeyException {
+		this.assertReselectsAfter(0x6a82);
+	}
+
+	@Test
+	public void reselectsAfterInstructionNotSupported() throws YubiKeyException {
+		this.assertReselectsAfter(0x6d00);
+	}
+
+	@Test
+	public void reselectsAfterClassNotSupported() throws YubiKeyException {
+		this.assertReselectsAfter(0x6e00);
+	}
+
+	private void assertReselectsAfter(final int statusWord) throws YubiKeyException {
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		this.transport.loseSelection(statusWord);
+
+		assertArrayEquals(FakeNfcTransport.responseFor(CHALLENGE), this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		// SELECT, PUT, rejected PUT, SELECT, repeated PUT
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(3, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+		assertEquals(FakeNfcTransport.INS_SELECT, this.transport.getCommands().get(3)[1]);
+
+		// The new selection is cached again
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+	}
+
+	@Test
+	public void otherErrorsDoNotTriggerReselection() throws YubiKeyException {
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		this.transport.loseSelection(0x6a80);
+
+		try {
+			this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			fail();
+		} catch (final FailedOperationException expected) {
+		}
+
+		assertEquals(1, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void transceiveFailureAfterDeadlineIsTimeout() throws YubiKeyException {
+		this.transport.failPuts(true);
+
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 50, null);
+	}
+
+	@Test(expected = ConnectionLostException.class)
+	public void transceiveFailureBeforeDeadlineIsConnectionLoss() throws YubiKeyException {
+		this.transport.failPuts(false);
+
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 5000, null);
+	}
+
+	@Test
+	public void followsChainedResponses() throws YubiKeyException {
+		this.transport.setChunkLength(3);
+
+		assertArrayEquals(FakeNfcTransport.responseFor(CHALLENGE), this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		// The 6 byte status is returned in 2 chunks, the 20 byte response in 7 chunks
+		assertEquals(1 + 6, this.transport.countCommands(FakeNfcTransport.INS_GET_RESPONSE));
+		assertEquals(1, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(1, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+	}
+
+	@Test
+	public void reselectsWhenChainedResponseReportsLostSelection() throws YubiKeyException {
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		this.transport.setChunkLength(7);
+		this.transport.loseSelection(0x6a82);
+
+		assertArrayEquals(FakeNfcTransport.responseFor(CHALLENGE), this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(3, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+	}
+
+	@Test
+	public void selectsAgainAfterReconnect() throws Exception {
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		this.transport.close();
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		assertEquals(2, this.transport.getConnects());
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_SELECT));
+		assertEquals(2, this.transport.countCommands(FakeNfcTransport.INS_PUT));
+	}
+
+	@Test
+	public void unavailableAppletDoesNotAffectSessions() throws YubiKeyException {
+		this.transport.setAppletAvailable(false);
+		assertFalse(this.yubiKey.selectAppletIfAvailable());
+		assertFalse(this.transport.isConnected());
+
+		this.transport.setAppletAvailable(true);
+
+		try (final YubiKeySession session = this.yubiKey.openSession()) {
+			session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			assertTrue(this.transport.isConnected());
+		}
+
+		// The session connected, so closing it disconnects again
+		assertFalse(this.transport.isConnected());
+	}
+
+	@Test
+	public void closeIfIdleKeepsSessionsConnected() throws YubiKeyException {
+		try (final YubiKeySession session = this.yubiKey.openSession()) {
+			session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			this.yubiKey.closeIfIdle();
+			assertTrue(this.transport.isConnected());
+		}
+
+		this.yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		this.yubiKey.closeIfIdle();
+		assertFalse(this.transport.isConnected());
+	}
+}
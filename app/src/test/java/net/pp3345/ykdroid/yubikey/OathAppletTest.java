@@ -0,0 +1,132 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedOathApplet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class OathAppletTest {
+	/**
+	 * RFC 6238 appendix B: the SHA1 seed and the 8 digit code at T = 59 s.
+	 */
+	private static final byte[] RFC_6238_SECRET = "12345678901234567890".getBytes();
+	private static final long   RFC_6238_TIME   = 59000;
+	private static final String RFC_6238_CODE   = "94287082";
+
+	private SimulatedOathApplet applet;
+	private NfcYubiKey          yubiKey;
+
+	@Before
+	public void setUp() {
+		this.applet = new SimulatedOathApplet();
+		this.yubiKey = new NfcYubiKey(this.applet);
+	}
+
+	@Test
+	public void calculatesRfc6238TestVector() throws YubiKeyException {
+		this.applet.addTotpCredential("rfc6238", RFC_6238_SECRET, 8);
+
+		assertEquals(RFC_6238_CODE, this.yubiKey.calculateOathCode("rfc6238", RFC_6238_TIME));
+		assertEquals(RFC_6238_CODE, this.calculateAll(RFC_6238_TIME).get("rfc6238"));
+	}
+
+	@Test
+	public void calculateAllMatchesSingleCalculations() throws YubiKeyException {
+		// Enough credentials to require several SEND REMAINING requests for both LIST and CALCULATE ALL
+		for (int i = 0; i < 40; i++)
+			this.applet.addTotpCredential("issuer" + i + ":user@example.com", ("secret" + i).getBytes(), 6 + i % 3);
+
+		final List<String> names = new ArrayList<>();
+		this.yubiKey.listOathCredentials(new OathApplet.ListListener() {
+			@Override
+			public void onCredential(final String name, final OathApplet.Type type) {
+				assertEquals(OathApplet.Type.TOTP, type);
+				names.add(name);
+			}
+		});
+
+		final Map<String, String> codes = this.calculateAll(RFC_6238_TIME);
+
+		assertEquals(40, names.size());
+		assertEquals(names, new ArrayList<>(codes.keySet()));
+
+		for (final String name : names)
+			assertEquals(codes.get(name), this.yubiKey.calculateOathCode(name, RFC_6238_TIME));
+	}
+
+	@Test
+	public void hotpCredentialsAreCalculatedSeparately() throws YubiKeyException {
+		this.applet.addHotpCredential("hotp", RFC_6238_SECRET, 6);
+
+		this.yubiKey.calculateAllOathCodes(RFC_6238_TIME, new OathApplet.CalculateListener() {
+			@Override
+			public void onCode(final String name, final String code) {
+				fail();
+			}
+
+			@Override
+			public void onHotpCredential(final String name) {
+				assertEquals("hotp", name);
+			}
+
+			@Override
+			public void onTouchRequired(final String name) {
+				fail();
+			}
+		});
+
+		assertEquals(6, this.yubiKey.calculateOathCode("hotp", RFC_6238_TIME).length());
+	}
+
+	@Test(expected = FailedOperationException.class)
+	public void unknownCredentialFails() throws YubiKeyException {
+		this.yubiKey.calculateOathCode("missing", RFC_6238_TIME);
+	}
+
+	@Test
+	public void commandExceedingTransceiveLengthIsNotSent() throws YubiKeyException {
+		final StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			name.append('x');
+
+		try {
+			this.yubiKey.calculateOathCode(name.toString(), RFC_6238_TIME);
+			fail();
+		} catch (final FailedOperationException expected) {
+		}
+
+		// Only the SELECT of the applet
+		assertEquals(1, this.applet.getCommandsReceived());
+	}
+
+	private Map<String, String> calculateAll(final long timestamp) throws YubiKeyException {
+		final Map<String, String> codes = new LinkedHashMap<>();
+
+		this.yubiKey.calculateAllOathCodes(timestamp, new OathApplet.CalculateListener() {
+			@Override
+			public void onCode(final String name, final String code) {
+				codes.put(name, code);
+			}
+
+			@Override
+			public void onHotpCredential(final String name) {
+				fail();
+			}
+
+			@Override
+			public void onTouchRequired(final String name) {
+				fail();
+			}
+		});
+
+		return codes;
+	}
+}
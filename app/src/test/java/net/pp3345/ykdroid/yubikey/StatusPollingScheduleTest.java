@@ -0,0 +1,32 @@
+package net.pp3345.ykdroid.yubikey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatusPollingScheduleTest {
+	@Test
+	public void suspendedDeadlineAppliesAgainAfterwards() throws InterruptedException {
+		final StatusPollingSchedule schedule = new StatusPollingSchedule(UsbYubiKey.Type.YK4_OTP);
+		schedule.setDeadline(System.nanoTime() - 1);
+
+		schedule.setDeadlineSuspended(true);
+		schedule.begin(StatusPollingSchedule.Operation.WRITE);
+		assertTrue(schedule.awaitNextPoll());
+
+		schedule.setDeadlineSuspended(false);
+		schedule.begin(StatusPollingSchedule.Operation.WRITE);
+		assertFalse(schedule.awaitNextPoll());
+	}
+
+	@Test
+	public void clearedDeadlineNoLongerApplies() throws InterruptedException {
+		final StatusPollingSchedule schedule = new StatusPollingSchedule(UsbYubiKey.Type.YK4_OTP);
+		schedule.setDeadline(System.nanoTime() - 1);
+		schedule.clearDeadline();
+
+		schedule.begin(StatusPollingSchedule.Operation.WRITE);
+		assertTrue(schedule.awaitNextPoll());
+	}
+}
@@ -0,0 +1,159 @@
+package net.pp3345.ykdroid.yubikey;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.yubikey.simulator.ReferenceHmacSha1;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedCcidYubiKey;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedFirmware;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedNfcYubiKey;
+import net.pp3345.ykdroid.yubikey.simulator.SimulatedYubiKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Requests to challenge-response slots that require touch, whose touch requirement is not
+ * reported in the status of the YubiKey, and to slots that emit an OTP when touched, which is
+ * reported.
+ */
+public class TouchTest {
+	private static final byte[] SECRET    = "0123456789abcdefghij".getBytes();
+	private static final byte[] CHALLENGE = "ykDroid".getBytes();
+
+	private SimulatedFirmware firmware;
+	private int               touchesPending;
+
+	private final YubiKey.TouchListener touchListener = new YubiKey.TouchListener() {
+		@Override
+		public void onTouchPending() {
+			TouchTest.this.touchesPending++;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		this.firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		this.firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, true);
+	}
+
+	@Test
+	public void hidWaitsForTouch() throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setTouchDelay(50, TimeUnit.MILLISECONDS);
+
+		final UsbYubiKey yubiKey = new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, simulator);
+
+		assertArrayEquals(new ReferenceHmacSha1(SECRET, true).challengeResponse(CHALLENGE), yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 5000, this.touchListener));
+		assertEquals(1, this.touchesPending);
+	}
+
+	@Test
+	public void ccidReportsTimeExtensionsAsPendingTouch() throws YubiKeyException {
+		final SimulatedCcidYubiKey simulator = new SimulatedCcidYubiKey(this.firmware);
+		simulator.setTimeExtensions(3);
+
+		final UsbYubiKey yubiKey = new UsbYubiKey(UsbYubiKey.Type.YK4_OTP_CCID, null, new CcidTransport(simulator));
+
+		assertArrayEquals(new ReferenceHmacSha1(SECRET, true).challengeResponse(CHALLENGE), yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 5000, this.touchListener));
+		assertEquals(1, this.touchesPending);
+	}
+
+	@Test
+	public void ccidWithoutTimeExtensionsDoesNotReportPendingTouch() throws YubiKeyException {
+		final UsbYubiKey yubiKey = new UsbYubiKey(UsbYubiKey.Type.YK4_OTP_CCID, null, new CcidTransport(new SimulatedCcidYubiKey(this.firmware)));
+
+		yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 5000, this.touchListener);
+		assertEquals(0, this.touchesPending);
+	}
+
+	@Test
+	public void cancellingTouchWaitResetsYubiKey() throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setTouchDelay(-1, TimeUnit.MILLISECONDS);
+
+		this.assertCancelled(new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, simulator));
+
+		// The reset aborted the pending request, so the YubiKey is usable again
+		this.firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+		assertArrayEquals(new ReferenceHmacSha1(SECRET, true).challengeResponse(CHALLENGE), new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, simulator).challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@Test
+	public void cancellationSurvivesFailedReset() {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setTouchDelay(-1, TimeUnit.MILLISECONDS);
+
+		// Writing the reset frame fails once the YubiKey waits for the user
+		final HidTransport transport = new HidTransport() {
+			@Override
+			public boolean claim() {
+				return simulator.claim();
+			}
+
+			@Override
+			public void release() {
+				simulator.release();
+			}
+
+			@Override
+			public int getFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+				return simulator.getFeatureReport(report, length, timeoutMillis);
+			}
+
+			@Override
+			public int setFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+				return TouchTest.this.touchesPending > 0 ? -1 : simulator.setFeatureReport(report, length, timeoutMillis);
+			}
+		};
+
+		this.assertCancelled(new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, transport));
+	}
+
+	@Test(expected = SlotNotProgrammedException.class)
+	public void hidRejectsTouchTriggeredSlot() throws YubiKeyException {
+		this.firmware.programOtpSlot(Slot.CHALLENGE_HMAC_1);
+
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(this.firmware);
+		simulator.setTouchDelay(-1, TimeUnit.MILLISECONDS);
+
+		new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, simulator).challengeResponse(Slot.CHALLENGE_HMAC_1, CHALLENGE, 5000, this.touchListener);
+	}
+
+	@Test(expected = SlotNotProgrammedException.class)
+	public void nfcRejectsTouchTriggeredSlot() throws YubiKeyException {
+		this.firmware.programOtpSlot(Slot.CHALLENGE_HMAC_1);
+
+		new NfcYubiKey(new SimulatedNfcYubiKey(this.firmware)).challengeResponse(Slot.CHALLENGE_HMAC_1, CHALLENGE);
+	}
+
+	/**
+	 * Sends a request that is cancelled as soon as the YubiKey waits for the user.
+	 */
+	private void assertCancelled(final UsbYubiKey yubiKey) {
+		final YubiKey.TouchListener cancellingTouchListener = new YubiKey.TouchListener() {
+			@Override
+			public void onTouchPending() {
+				TouchTest.this.touchesPending++;
+				Thread.currentThread().interrupt();
+			}
+		};
+
+		try {
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, 5000, cancellingTouchListener);
+			fail();
+		} catch (final OperationCancelledException expected) {
+		} catch (final YubiKeyException e) {
+			throw new AssertionError(e);
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals(1, this.touchesPending);
+	}
+}
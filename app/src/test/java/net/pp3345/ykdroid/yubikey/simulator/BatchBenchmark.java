@@ -0,0 +1,80 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link YubiKey#challengeResponseBatch(Slot, List)} in responses per
+ * second against the simulators, compared to sending the same challenges one by one.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.simulator.BatchBenchmark
+ * -PbenchmarkArgs="[batches] [batch size] [claim latency &micro;s] [response latency &micro;s]"</code>
+ * </p>
+ */
+public final class BatchBenchmark {
+	private static final byte[] SECRET = "0123456789abcdefghij".getBytes();
+
+	private BatchBenchmark() {
+	}
+
+	public static void main(final String[] args) throws YubiKeyException {
+		final int  batches         = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final int  batchSize       = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final long claimLatency    = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		final long responseLatency = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+
+		final SimulatedFirmware firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+
+		final Random       random     = new Random(0);
+		final List<byte[]> challenges = new ArrayList<>(batchSize);
+
+		for (int i = 0; i < batchSize; i++) {
+			final byte[] challenge = new byte[32];
+			random.nextBytes(challenge);
+			challenges.add(challenge);
+		}
+
+		final SimulatedYubiKey hidSimulator = new SimulatedYubiKey(firmware);
+		hidSimulator.setClaimLatency(claimLatency, TimeUnit.MICROSECONDS);
+		hidSimulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		benchmark("UsbYubiKey", new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, hidSimulator), challenges, batches);
+
+		final SimulatedNfcYubiKey nfcSimulator = new SimulatedNfcYubiKey(firmware);
+		nfcSimulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		benchmark("NfcYubiKey", new NfcYubiKey(nfcSimulator), challenges, batches);
+	}
+
+	private static void benchmark(final String name, final YubiKey yubiKey, final List<byte[]> challenges, final int batches) throws YubiKeyException {
+		// Warm up the JIT and let the polling schedule learn the latencies of the simulator
+		for (int i = 0; i < Math.min(batches, 10); i++)
+			yubiKey.challengeResponseBatch(Slot.CHALLENGE_HMAC_2, challenges);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < batches; i++) {
+			for (final byte[] challenge : challenges)
+				yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, challenge);
+		}
+
+		final long single = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		for (int i = 0; i < batches; i++)
+			yubiKey.challengeResponseBatch(Slot.CHALLENGE_HMAC_2, challenges);
+
+		final long batched = System.nanoTime() - start;
+		final long responses = (long) batches * challenges.size();
+
+		System.out.printf("%-10s one by one %8.1f responses/s, batched %8.1f responses/s%n", name, responses * 1e9 / single, responses * 1e9 / batched);
+	}
+}
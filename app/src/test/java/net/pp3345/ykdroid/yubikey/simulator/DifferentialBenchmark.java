@@ -0,0 +1,127 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.yubikey.CcidTransport;
+import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Sends random challenges to the {@link UsbYubiKey} (via HID and via CCID) and {@link NfcYubiKey}
+ * drivers running on top of simulated transports and compares their responses with those of the
+ * {@link ReferenceHmacSha1} engine. Also prints the time per request of each driver and its
+ * overhead over the pure software computation.
+ * <p>
+ * Challenges of random length are sent to a slot configured for variable length challenges as well
+ * as to one configured for fixed length challenges. Some of them end with zeroes or with a repeated
+ * byte to exercise the padding rules. The simulators have no latency, so the measured overhead is
+ * that of the drivers themselves (framing, polling, CRC and APDU handling).
+ * </p>
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.simulator.DifferentialBenchmark
+ * -PbenchmarkArgs="[challenges] [seed]"</code>. Exits with status 1 if any response differs.
+ * </p>
+ */
+public final class DifferentialBenchmark {
+	private static final byte[] SECRET_1 = "0123456789abcdefghij".getBytes();
+	private static final byte[] SECRET_2 = "jihgfedcba9876543210".getBytes();
+
+	private DifferentialBenchmark() {
+	}
+
+	private static class Candidate {
+		private final String  name;
+		private final YubiKey yubiKey;
+		private       long    durationNanos;
+		private       int     mismatches;
+
+		Candidate(final String name, final YubiKey yubiKey) {
+			this.name = name;
+			this.yubiKey = yubiKey;
+		}
+	}
+
+	public static void main(final String[] args) throws YubiKeyException {
+		final int    count  = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		final Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 0);
+
+		final SimulatedFirmware firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_1, SECRET_1, false, false);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET_2, false, true);
+
+		final ReferenceHmacSha1[] references = new ReferenceHmacSha1[]{new ReferenceHmacSha1(SECRET_1, false), new ReferenceHmacSha1(SECRET_2, true)};
+		final Slot[]              slots      = new Slot[]{Slot.CHALLENGE_HMAC_1, Slot.CHALLENGE_HMAC_2};
+		final Candidate[]         candidates = new Candidate[]{
+				new Candidate("UsbYubiKey", new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, new SimulatedYubiKey(firmware))),
+				new Candidate("UsbYubiKey (CCID)", new UsbYubiKey(UsbYubiKey.Type.YK4_OTP_CCID, new SimulatedYubiKey(firmware), new CcidTransport(new SimulatedCcidYubiKey(firmware)))),
+				new Candidate("NfcYubiKey", new NfcYubiKey(new SimulatedNfcYubiKey(firmware)))
+		};
+
+		final byte[] expected = new byte[ReferenceHmacSha1.RESPONSE_LENGTH];
+		final byte[] response = new byte[ReferenceHmacSha1.RESPONSE_LENGTH];
+		long         baselineNanos = 0;
+
+		for (int i = 0; i < count; i++) {
+			final int    index     = i & 1;
+			final byte[] challenge = randomChallenge(random);
+
+			long start = System.nanoTime();
+			references[index].challengeResponse(challenge, 0, challenge.length, expected, 0);
+			baselineNanos += System.nanoTime() - start;
+
+			for (final Candidate candidate : candidates) {
+				start = System.nanoTime();
+				candidate.yubiKey.challengeResponse(slots[index], challenge, 0, challenge.length, response, 0);
+				candidate.durationNanos += System.nanoTime() - start;
+
+				if (!Arrays.equals(expected, response)) {
+					candidate.mismatches++;
+					System.err.println(candidate.name + " mismatch for " + slots[index] + " challenge " + toHex(challenge));
+				}
+			}
+		}
+
+		System.out.printf("%d challenges%n", count);
+		System.out.printf("%-18s %10.2f us/request%n", "ReferenceHmacSha1", baselineNanos / 1000.0 / count);
+
+		boolean failed = false;
+
+		for (final Candidate candidate : candidates) {
+			System.out.printf("%-18s %10.2f us/request, overhead %10.2f us/request, %d mismatches%n", candidate.name, candidate.durationNanos / 1000.0 / count, (candidate.durationNanos - baselineNanos) / 1000.0 / count, candidate.mismatches);
+			failed |= candidate.mismatches != 0;
+		}
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static byte[] randomChallenge(final Random random) {
+		final byte[] challenge = new byte[1 + random.nextInt(ReferenceHmacSha1.CHALLENGE_LENGTH)];
+		random.nextBytes(challenge);
+
+		switch (random.nextInt(4)) {
+			case 0:
+				// Trailing zeroes are indistinguishable from the padding
+				Arrays.fill(challenge, challenge.length - 1 - random.nextInt(challenge.length), challenge.length, (byte) 0);
+				break;
+			case 1:
+				// A repeated last byte is stripped from 64 byte challenges
+				Arrays.fill(challenge, challenge.length - 1 - random.nextInt(challenge.length), challenge.length, challenge[challenge.length - 1]);
+				break;
+		}
+
+		return challenge;
+	}
+
+	private static String toHex(final byte[] data) {
+		final StringBuilder builder = new StringBuilder(data.length * 2);
+
+		for (final byte b : data)
+			builder.append(String.format("%02x", b));
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,127 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.OathApplet;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to obtain the codes of all OATH credentials with a single
+ * CALCULATE ALL request, compared to listing the credentials and calculating each code separately,
+ * against {@link SimulatedOathApplet}. Both strategies are checked to produce the same codes.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.simulator.OathBenchmark
+ * -PbenchmarkArgs="[iterations] [response latency &micro;s] [credentials...]"</code>
+ * </p>
+ */
+public final class OathBenchmark {
+	private OathBenchmark() {
+	}
+
+	public static void main(final String[] args) throws YubiKeyException {
+		final int  iterations      = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final long responseLatency = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		final int[] credentials;
+
+		if (args.length > 2) {
+			credentials = new int[args.length - 2];
+
+			for (int i = 0; i < credentials.length; i++)
+				credentials[i] = Integer.parseInt(args[i + 2]);
+		} else {
+			credentials = new int[]{5, 20, 50};
+		}
+
+		for (final int count : credentials)
+			benchmark(count, iterations, responseLatency);
+	}
+
+	private static void benchmark(final int count, final int iterations, final long responseLatency) throws YubiKeyException {
+		final SimulatedOathApplet applet = new SimulatedOathApplet();
+
+		for (int i = 0; i < count; i++)
+			applet.addTotpCredential("Example" + i + ":user" + i + "@example.com", ("secret" + i).getBytes(), 6);
+
+		applet.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+
+		final NfcYubiKey yubiKey   = new NfcYubiKey(applet);
+		final long       timestamp = System.currentTimeMillis();
+
+		if (!calculateAll(yubiKey, timestamp).equals(calculateEach(yubiKey, timestamp)))
+			throw new IllegalStateException("CALCULATE ALL and CALCULATE disagree");
+
+		// Warm up the JIT
+		for (int i = 0; i < Math.min(iterations, 20); i++) {
+			calculateAll(yubiKey, timestamp);
+			calculateEach(yubiKey, timestamp);
+		}
+
+		int  commands = applet.getCommandsReceived();
+		long start    = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			calculateAll(yubiKey, timestamp);
+
+		final long all         = System.nanoTime() - start;
+		final int  allCommands = applet.getCommandsReceived() - commands;
+
+		commands = applet.getCommandsReceived();
+		start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			calculateEach(yubiKey, timestamp);
+
+		final long each         = System.nanoTime() - start;
+		final int  eachCommands = applet.getCommandsReceived() - commands;
+
+		System.out.printf("%3d credentials: CALCULATE ALL %8.1f us/op (%5.1f APDUs), LIST + CALCULATE %8.1f us/op (%5.1f APDUs)%n",
+		                  count,
+		                  all / 1e3 / iterations, (double) allCommands / iterations,
+		                  each / 1e3 / iterations, (double) eachCommands / iterations);
+	}
+
+	private static Map<String, String> calculateAll(final NfcYubiKey yubiKey, final long timestamp) throws YubiKeyException {
+		final Map<String, String> codes = new HashMap<>();
+
+		yubiKey.calculateAllOathCodes(timestamp, new OathApplet.CalculateListener() {
+			@Override
+			public void onCode(final String name, final String code) {
+				codes.put(name, code);
+			}
+
+			@Override
+			public void onHotpCredential(final String name) {
+			}
+
+			@Override
+			public void onTouchRequired(final String name) {
+			}
+		});
+
+		return codes;
+	}
+
+	private static Map<String, String> calculateEach(final NfcYubiKey yubiKey, final long timestamp) throws YubiKeyException {
+		final List<String> names = new ArrayList<>();
+
+		yubiKey.listOathCredentials(new OathApplet.ListListener() {
+			@Override
+			public void onCredential(final String name, final OathApplet.Type type) {
+				if (type == OathApplet.Type.TOTP)
+					names.add(name);
+			}
+		});
+
+		final Map<String, String> codes = new HashMap<>();
+
+		for (final String name : names)
+			codes.put(name, yubiKey.calculateOathCode(name, timestamp));
+
+		return codes;
+	}
+}
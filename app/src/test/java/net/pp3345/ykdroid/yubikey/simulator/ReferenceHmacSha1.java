@@ -0,0 +1,123 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Software implementation of the HMAC-SHA1 challenge-response of a YubiKey slot, producing the
+ * same responses as a YubiKey would for the challenges sent by the drivers.
+ * <p>
+ * The YubiKey always receives a 64 byte challenge; the drivers pad shorter challenges with zeroes.
+ * Slots that are configured for fixed length challenges compute the HMAC over all 64 bytes.
+ * Slots configured for variable length challenges (HMAC_LT64, the default of most tools) strip
+ * all trailing bytes that equal the last byte of the padded challenge. As a consequence, trailing
+ * zeroes of shorter challenges are stripped as well, and so is the last byte (and its repetitions)
+ * of a 64 byte challenge.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class ReferenceHmacSha1 {
+	/**
+	 * Length of the challenges processed by a YubiKey.
+	 */
+	public static final int CHALLENGE_LENGTH = 64;
+	/**
+	 * Length of the HMAC-SHA1 responses.
+	 */
+	public static final int RESPONSE_LENGTH  = 20;
+
+	private final Mac     mac;
+	private final boolean variableLength;
+	private final byte[]  paddedChallenge = new byte[CHALLENGE_LENGTH];
+
+	/**
+	 * @param secret         The HMAC key the slot is programmed with, usually 20 bytes.
+	 * @param variableLength Whether the slot is configured for variable length challenges.
+	 */
+	public ReferenceHmacSha1(final byte[] secret, final boolean variableLength) {
+		this.variableLength = variableLength;
+
+		try {
+			this.mac = Mac.getInstance("HmacSHA1");
+			this.mac.init(new SecretKeySpec(secret, "HmacSHA1"));
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Whether the slot is configured for variable length challenges.
+	 */
+	public boolean isVariableLength() {
+		return this.variableLength;
+	}
+
+	/**
+	 * Computes the response a YubiKey returns for a challenge sent by the drivers.
+	 *
+	 * @param challenge The challenge, at most 64 bytes.
+	 * @return The 20 byte response.
+	 */
+	public byte[] challengeResponse(final byte[] challenge) {
+		final byte[] response = new byte[RESPONSE_LENGTH];
+
+		this.challengeResponse(challenge, 0, challenge.length, response, 0);
+
+		return response;
+	}
+
+	/**
+	 * Computes the response a YubiKey returns for a challenge sent by the drivers.
+	 *
+	 * @param challenge       Buffer containing the challenge.
+	 * @param challengeOffset Offset of the challenge within the buffer.
+	 * @param challengeLength Length of the challenge, at most 64 bytes.
+	 * @param response        Buffer to write the 20 byte response to.
+	 * @param responseOffset  Offset within the response buffer.
+	 */
+	public void challengeResponse(final byte[] challenge, final int challengeOffset, final int challengeLength, final byte[] response, final int responseOffset) {
+		if (challengeLength > CHALLENGE_LENGTH)
+			throw new IllegalArgumentException("Challenge exceeds " + CHALLENGE_LENGTH + " bytes");
+
+		System.arraycopy(challenge, challengeOffset, this.paddedChallenge, 0, challengeLength);
+		Arrays.fill(this.paddedChallenge, challengeLength, CHALLENGE_LENGTH, (byte) 0);
+
+		this.compute(this.paddedChallenge, 0, response, responseOffset);
+
+		Arrays.fill(this.paddedChallenge, (byte) 0);
+	}
+
+	/**
+	 * Computes the response for a challenge as received by a YubiKey, i.e. already padded to 64
+	 * bytes.
+	 *
+	 * @param paddedChallenge       Buffer containing the padded challenge.
+	 * @param paddedChallengeOffset Offset of the challenge within the buffer.
+	 * @param response              Buffer to write the 20 byte response to.
+	 * @param responseOffset        Offset within the response buffer.
+	 */
+	public void compute(final byte[] paddedChallenge, final int paddedChallengeOffset, final byte[] response, final int responseOffset) {
+		int length = CHALLENGE_LENGTH;
+
+		if (this.variableLength) {
+			final byte padding = paddedChallenge[paddedChallengeOffset + CHALLENGE_LENGTH - 1];
+
+			while (length > 0 && paddedChallenge[paddedChallengeOffset + length - 1] == padding)
+				length--;
+		}
+
+		this.mac.update(paddedChallenge, paddedChallengeOffset, length);
+
+		try {
+			this.mac.doFinal(response, responseOffset);
+		} catch (final ShortBufferException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
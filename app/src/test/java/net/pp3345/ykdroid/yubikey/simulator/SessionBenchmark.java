@@ -0,0 +1,78 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.YubiKeySession;
+import net.pp3345.ykdroid.yubikey.CcidTransport;
+import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a challenge-response request with and without a {@link YubiKeySession}.
+ * Without a session, the {@link UsbYubiKey} driver claims and releases the OTP interface for every
+ * request, which is simulated to take the given claim latency each. Via CCID, it additionally
+ * powers the card on, selects the applet and powers the card off again. The {@link NfcYubiKey}
+ * driver keeps the tag connected and the applet selected in both cases, so the difference is that
+ * of the session bookkeeping only.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.simulator.SessionBenchmark
+ * -PbenchmarkArgs="[iterations] [claim latency &micro;s] [response latency &micro;s]"</code>
+ * </p>
+ */
+public final class SessionBenchmark {
+	private static final byte[] SECRET    = "0123456789abcdefghij".getBytes();
+	private static final byte[] CHALLENGE = "ykDroid session benchmark".getBytes();
+
+	private SessionBenchmark() {
+	}
+
+	public static void main(final String[] args) throws YubiKeyException {
+		final int  iterations      = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		final long claimLatency    = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		final long responseLatency = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+		final SimulatedFirmware firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+
+		final SimulatedYubiKey hidSimulator = new SimulatedYubiKey(firmware);
+		hidSimulator.setClaimLatency(claimLatency, TimeUnit.MICROSECONDS);
+		hidSimulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		benchmark("UsbYubiKey", new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, hidSimulator), iterations);
+
+		final SimulatedCcidYubiKey ccidSimulator = new SimulatedCcidYubiKey(firmware);
+		ccidSimulator.setClaimLatency(claimLatency, TimeUnit.MICROSECONDS);
+		ccidSimulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		benchmark("UsbYubiKey (CCID)", new UsbYubiKey(UsbYubiKey.Type.YK4_CCID, null, new CcidTransport(ccidSimulator)), iterations);
+
+		final SimulatedNfcYubiKey nfcSimulator = new SimulatedNfcYubiKey(firmware);
+		nfcSimulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		benchmark("NfcYubiKey", new NfcYubiKey(nfcSimulator), iterations);
+	}
+
+	private static void benchmark(final String name, final YubiKey yubiKey, final int iterations) throws YubiKeyException {
+		// Warm up the JIT and let the polling schedule learn the latencies of the simulator
+		for (int i = 0; i < Math.min(iterations, 100); i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		final long withoutSession = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		try (final YubiKeySession session = yubiKey.openSession()) {
+			for (int i = 0; i < iterations; i++)
+				session.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+		}
+
+		final long withSession = System.nanoTime() - start;
+
+		System.out.printf("%-17s without session %8.1f us/op, with session %8.1f us/op%n", name, withoutSession / 1000.0 / iterations, withSession / 1000.0 / iterations);
+	}
+}
@@ -0,0 +1,256 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.BulkTransport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the CCID (smart card) interface of a YubiKey attached via USB on the JVM, so that the
+ * {@link net.pp3345.ykdroid.yubikey.CcidTransport} can be exercised and benchmarked without a
+ * device or the Android USB host API.
+ * <p>
+ * The simulator answers the power on, power off and XfrBlock messages of the host. The APDUs are
+ * processed by a {@link SimulatedNfcYubiKey} sharing the same {@link SimulatedFirmware}.
+ * Responses may optionally be preceded by time extension requests, like a YubiKey waiting for the
+ * user to press the button sends them, until the command is aborted.
+ * </p>
+ */
+public class SimulatedCcidYubiKey implements BulkTransport {
+	private static final int HEADER_LENGTH = 10;
+
+	private static final byte PC_TO_RDR_ICC_POWER_ON  = 0x62;
+	private static final byte PC_TO_RDR_ICC_POWER_OFF = 0x63;
+	private static final byte PC_TO_RDR_XFR_BLOCK     = 0x6f;
+	private static final byte PC_TO_RDR_ABORT         = 0x72;
+	private static final byte RDR_TO_PC_DATA_BLOCK    = (byte) 0x80;
+	private static final byte RDR_TO_PC_SLOT_STATUS   = (byte) 0x81;
+
+	private static final byte COMMAND_STATUS_FAILED         = 0x40;
+	private static final byte COMMAND_STATUS_TIME_EXTENSION = (byte) 0x80;
+	private static final byte ERROR_CMD_NOT_SUPPORTED       = 0x00;
+	private static final byte ERROR_ICC_MUTE                = (byte) 0xfe;
+
+	private static final byte[] ATR = new byte[]{0x3b, (byte) 0xfc, 0x13, 0x00, 0x00, (byte) 0x81, 0x31, (byte) 0xfe, 0x15, 0x59, 0x75, 0x62, 0x69, 0x6b, 0x65, 0x79, 0x4e, 0x45, 0x4f, 0x72, 0x33, (byte) 0xe1};
+
+	private final SimulatedNfcYubiKey applets;
+
+	private       boolean claimed;
+	private       byte[]  pending;
+	private       int     pendingOffset;
+	private       int     timeExtensions;
+	private       int     pendingTimeExtensions;
+	private       byte    pendingSequence;
+	private       long    transferLatencyNanos;
+	private       long    claimLatencyNanos;
+	private       int     transfers;
+	private       int     abortRequestSequence = -1;
+	private       int     aborts;
+
+	/**
+	 * @param firmware The simulated YubiKey, may be shared with other simulators.
+	 */
+	public SimulatedCcidYubiKey(final SimulatedFirmware firmware) {
+		this.applets = new SimulatedNfcYubiKey(firmware);
+	}
+
+	/**
+	 * Sets how long each bulk transfer takes, e.g. to account for the USB frame interval. The
+	 * calling thread is blocked for that time.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setTransferLatency(final long latency, final TimeUnit unit) {
+		this.transferLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long claiming and releasing the interface takes each. The calling thread is blocked
+	 * for that time.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setClaimLatency(final long latency, final TimeUnit unit) {
+		this.claimLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long each APDU takes to be processed. The thread sending the APDU is blocked for
+	 * that time.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setResponseLatency(final long latency, final TimeUnit unit) {
+		this.applets.setResponseLatency(latency, unit);
+	}
+
+	/**
+	 * @param timeExtensions Number of time extension requests sent before each response to an APDU,
+	 *                       like a YubiKey waiting for the user to press the button. 0 by default.
+	 */
+	public synchronized void setTimeExtensions(final int timeExtensions) {
+		this.timeExtensions = timeExtensions;
+	}
+
+	/**
+	 * @return Number of bulk transfers in either direction so far.
+	 */
+	public synchronized int getTransfers() {
+		return this.transfers;
+	}
+
+	/**
+	 * @return Number of command APDUs received so far.
+	 */
+	public int getCommandsReceived() {
+		return this.applets.getCommandsReceived();
+	}
+
+	/**
+	 * @return Number of commands aborted so far.
+	 */
+	public synchronized int getAborts() {
+		return this.aborts;
+	}
+
+	/**
+	 * @return Whether the interface is currently claimed by the host.
+	 */
+	public synchronized boolean isClaimed() {
+		return this.claimed;
+	}
+
+	@Override
+	public synchronized boolean claim() {
+		if (this.claimed)
+			return false;
+
+		if (this.claimLatencyNanos > 0)
+			LockSupport.parkNanos(this.claimLatencyNanos);
+
+		this.claimed = true;
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+		if (this.claimLatencyNanos > 0)
+			LockSupport.parkNanos(this.claimLatencyNanos);
+
+		this.claimed = false;
+		this.pending = null;
+	}
+
+	@Override
+	public synchronized int send(final byte[] data, final int length, final int timeoutMillis) {
+		if (!this.claimed || length < HEADER_LENGTH)
+			return -1;
+
+		this.transfer();
+
+		final int messageLength = (data[1] & 0xff) | ((data[2] & 0xff) << 8) | ((data[3] & 0xff) << 16) | ((data[4] & 0xff) << 24);
+		if (messageLength != length - HEADER_LENGTH)
+			return -1;
+
+		this.pendingSequence = data[6];
+		this.pendingTimeExtensions = 0;
+
+		switch (data[0]) {
+			case PC_TO_RDR_ICC_POWER_ON:
+				this.applets.connect();
+				this.respond(RDR_TO_PC_DATA_BLOCK, (byte) 0, (byte) 0, ATR);
+				break;
+			case PC_TO_RDR_ICC_POWER_OFF:
+				this.applets.close();
+				this.respond(RDR_TO_PC_SLOT_STATUS, (byte) 0, (byte) 0, null);
+				break;
+			case PC_TO_RDR_ABORT:
+				// Only valid after the ABORT control request for the same command
+				if (this.abortRequestSequence != (data[6] & 0xff)) {
+					this.respond(RDR_TO_PC_SLOT_STATUS, COMMAND_STATUS_FAILED, ERROR_CMD_NOT_SUPPORTED, null);
+					break;
+				}
+
+				this.abortRequestSequence = -1;
+				this.aborts++;
+				this.respond(RDR_TO_PC_SLOT_STATUS, (byte) 0, (byte) 0, null);
+				break;
+			case PC_TO_RDR_XFR_BLOCK:
+				try {
+					this.respond(RDR_TO_PC_DATA_BLOCK, (byte) 0, (byte) 0, this.applets.transceive(Arrays.copyOfRange(data, HEADER_LENGTH, length)));
+					this.pendingTimeExtensions = this.timeExtensions;
+				} catch (final IOException e) {
+					// The card was not powered on
+					this.respond(RDR_TO_PC_DATA_BLOCK, COMMAND_STATUS_FAILED, ERROR_ICC_MUTE, null);
+				}
+				break;
+			default:
+				this.respond(RDR_TO_PC_SLOT_STATUS, COMMAND_STATUS_FAILED, ERROR_CMD_NOT_SUPPORTED, null);
+				break;
+		}
+
+		return length;
+	}
+
+	@Override
+	public synchronized int sendAbortRequest(final int slot, final int sequence, final int timeoutMillis) {
+		if (!this.claimed || slot != 0)
+			return -1;
+
+		this.abortRequestSequence = sequence;
+
+		return 0;
+	}
+
+	@Override
+	public synchronized int receive(final byte[] buffer, final int offset, final int length, final int timeoutMillis) {
+		if (!this.claimed || this.pending == null)
+			return -1;
+
+		this.transfer();
+
+		if (this.pendingTimeExtensions > 0) {
+			this.pendingTimeExtensions--;
+
+			final byte[] timeExtension = header(RDR_TO_PC_DATA_BLOCK, 0, this.pendingSequence, COMMAND_STATUS_TIME_EXTENSION, (byte) 1);
+			System.arraycopy(timeExtension, 0, buffer, offset, Math.min(length, HEADER_LENGTH));
+
+			return Math.min(length, HEADER_LENGTH);
+		}
+
+		final int bytes = Math.min(length, this.pending.length - this.pendingOffset);
+		System.arraycopy(this.pending, this.pendingOffset, buffer, offset, bytes);
+		this.pendingOffset += bytes;
+
+		if (this.pendingOffset == this.pending.length)
+			this.pending = null;
+
+		return bytes;
+	}
+
+	private void transfer() {
+		this.transfers++;
+
+		if (this.transferLatencyNanos > 0)
+			LockSupport.parkNanos(this.transferLatencyNanos);
+	}
+
+	private void respond(final byte type, final byte status, final byte error, final byte[] data) {
+		final int length = data == null ? 0 : data.length;
+
+		this.pending = Arrays.copyOf(header(type, length, this.pendingSequence, status, error), HEADER_LENGTH + length);
+		this.pendingOffset = 0;
+
+		if (data != null)
+			System.arraycopy(data, 0, this.pending, HEADER_LENGTH, length);
+	}
+
+	private static byte[] header(final byte type, final int length, final byte sequence, final byte status, final byte error) {
+		return new byte[]{type, (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24), 0, sequence, status, error, 0};
+	}
+}
@@ -0,0 +1,194 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.Slot;
+
+/**
+ * Configuration and state of a simulated YubiKey that is shared by its interfaces, i.e. the
+ * {@link SimulatedYubiKey} (USB) and the {@link SimulatedNfcYubiKey} (NFC): serial number,
+ * firmware version, capabilities and the programming of the challenge-response slots.
+ */
+public class SimulatedFirmware {
+	private static final int CONFIG1_VALID = 0x01;
+	private static final int CONFIG2_VALID = 0x02;
+	private static final int CONFIG1_TOUCH = 0x04;
+	private static final int CONFIG2_TOUCH = 0x08;
+
+	private static final byte[] DEFAULT_CAPABILITIES = new byte[]{0x03, 0x01, 0x01, 0x3f};
+
+	private final int    serialNumber;
+	private final byte[] version;
+
+	private final ReferenceHmacSha1[] engines       = new ReferenceHmacSha1[2];
+	private final boolean[]           requiresTouch = new boolean[2];
+	private final boolean[]           otp           = new boolean[2];
+
+	private       byte[] capabilities = DEFAULT_CAPABILITIES;
+	private       int    programmingSequence;
+
+	/**
+	 * @param serialNumber Serial number reported by the simulated YubiKey.
+	 * @param major        Major firmware version.
+	 * @param minor        Minor firmware version.
+	 * @param build        Build number of the firmware.
+	 */
+	public SimulatedFirmware(final int serialNumber, final int major, final int minor, final int build) {
+		this.serialNumber = serialNumber;
+		this.version = new byte[]{(byte) major, (byte) minor, (byte) build};
+	}
+
+	/**
+	 * Programs a slot for HMAC-SHA1 challenge-response with variable length challenges.
+	 * Increments the programming sequence.
+	 *
+	 * @param slot          {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param secret        The HMAC key, usually 20 bytes.
+	 * @param requiresTouch Whether the button must be pressed before the response is computed.
+	 */
+	public void programHmacSlot(final Slot slot, final byte[] secret, final boolean requiresTouch) {
+		this.programHmacSlot(slot, secret, requiresTouch, true);
+	}
+
+	/**
+	 * Programs a slot for HMAC-SHA1 challenge-response. Increments the programming sequence.
+	 *
+	 * @param slot           {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param secret         The HMAC key, usually 20 bytes.
+	 * @param requiresTouch  Whether the button must be pressed before the response is computed.
+	 * @param variableLength Whether challenges have a variable length, see
+	 *                       {@link ReferenceHmacSha1}.
+	 */
+	public synchronized void programHmacSlot(final Slot slot, final byte[] secret, final boolean requiresTouch, final boolean variableLength) {
+		final int index = slotIndex(slot);
+
+		this.engines[index] = new ReferenceHmacSha1(secret, variableLength);
+		this.requiresTouch[index] = requiresTouch;
+		this.otp[index] = false;
+		this.programmingSequence++;
+	}
+
+	/**
+	 * Programs a slot to emit an OTP when the button is touched. The slot doesn't answer
+	 * challenge-response requests. Increments the programming sequence.
+	 *
+	 * @param slot {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 */
+	public synchronized void programOtpSlot(final Slot slot) {
+		final int index = slotIndex(slot);
+
+		this.engines[index] = null;
+		this.requiresTouch[index] = false;
+		this.otp[index] = true;
+		this.programmingSequence++;
+	}
+
+	/**
+	 * Erases the configuration of a slot. Increments the programming sequence.
+	 *
+	 * @param slot {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 */
+	public synchronized void eraseSlot(final Slot slot) {
+		final int index = slotIndex(slot);
+
+		this.engines[index] = null;
+		this.requiresTouch[index] = false;
+		this.otp[index] = false;
+		this.programmingSequence++;
+	}
+
+	/**
+	 * Sets the capabilities returned for {@link Slot#YUBIKEY_4_CAPABILITIES}, including the
+	 * leading length byte. Only firmware 4.1 and newer answers this request.
+	 *
+	 * @param capabilities The raw capabilities.
+	 */
+	public synchronized void setCapabilities(final byte[] capabilities) {
+		this.capabilities = capabilities.clone();
+	}
+
+	/**
+	 * Writes the status structure (version, programming sequence and touch level).
+	 *
+	 * @param buffer Buffer to write the 6 byte structure to.
+	 * @param offset Offset within the buffer.
+	 */
+	synchronized void writeStatus(final byte[] buffer, final int offset) {
+		int touchLevel = 0;
+
+		// Like a YubiKey, the touch bits are only set for slots that emit an OTP when touched, not
+		// for challenge-response slots that require touch
+		if (this.engines[0] != null)
+			touchLevel |= CONFIG1_VALID;
+		if (this.engines[1] != null)
+			touchLevel |= CONFIG2_VALID;
+		if (this.otp[0])
+			touchLevel |= CONFIG1_VALID | CONFIG1_TOUCH;
+		if (this.otp[1])
+			touchLevel |= CONFIG2_VALID | CONFIG2_TOUCH;
+
+		System.arraycopy(this.version, 0, buffer, offset, this.version.length);
+		buffer[offset + 3] = (byte) this.programmingSequence;
+		buffer[offset + 4] = (byte) touchLevel;
+		buffer[offset + 5] = (byte) (touchLevel >> 8);
+	}
+
+	/**
+	 * Checks whether a slot requires the button to be pressed.
+	 *
+	 * @param slotAddress Address of the slot as sent by the host.
+	 * @return true, if the slot is programmed for challenge-response with touch.
+	 */
+	synchronized boolean requiresTouch(final byte slotAddress) {
+		final int index = challengeResponseSlotIndex(slotAddress);
+
+		return index != -1 && this.engines[index] != null && this.requiresTouch[index];
+	}
+
+	/**
+	 * Processes a request for a slot.
+	 *
+	 * @param slotAddress     Address of the slot as sent by the host.
+	 * @param payload         Buffer containing the 64 byte payload of the request.
+	 * @param payloadOffset   Offset of the payload within the buffer.
+	 * @return The response, or null if the YubiKey does not respond to the request.
+	 */
+	synchronized byte[] process(final byte slotAddress, final byte[] payload, final int payloadOffset) {
+		if (slotAddress == Slot.DEVICE_SERIAL.getAddress())
+			return new byte[]{(byte) (this.serialNumber >> 24), (byte) (this.serialNumber >> 16), (byte) (this.serialNumber >> 8), (byte) this.serialNumber};
+
+		if (slotAddress == Slot.YUBIKEY_4_CAPABILITIES.getAddress()) {
+			final int major = this.version[0] & 0xff;
+
+			return major > 4 || (major == 4 && (this.version[1] & 0xff) >= 1) ? this.capabilities.clone() : null;
+		}
+
+		final int index = challengeResponseSlotIndex(slotAddress);
+
+		if (index == -1 || this.engines[index] == null)
+			return null;
+
+		final byte[] response = new byte[ReferenceHmacSha1.RESPONSE_LENGTH];
+		this.engines[index].compute(payload, payloadOffset, response, 0);
+
+		return response;
+	}
+
+	private static int challengeResponseSlotIndex(final byte slotAddress) {
+		if (slotAddress == Slot.CHALLENGE_HMAC_1.getAddress())
+			return 0;
+		if (slotAddress == Slot.CHALLENGE_HMAC_2.getAddress())
+			return 1;
+
+		return -1;
+	}
+
+	private static int slotIndex(final Slot slot) {
+		switch (slot) {
+			case CHALLENGE_HMAC_1:
+				return 0;
+			case CHALLENGE_HMAC_2:
+				return 1;
+			default:
+				throw new IllegalArgumentException("Not a challenge-response slot: " + slot);
+		}
+	}
+}
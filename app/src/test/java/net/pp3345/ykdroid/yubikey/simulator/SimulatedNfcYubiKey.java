@@ -0,0 +1,221 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.NfcTransport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the challenge-response applet of a YubiKey connected via NFC on the JVM, so that the
+ * {@link net.pp3345.ykdroid.yubikey.NfcYubiKey} driver can be exercised and benchmarked without a
+ * device or the Android NFC API.
+ * <p>
+ * The simulator answers SELECT for the challenge-response applet with the status structure of the
+ * {@link SimulatedFirmware} and PUT requests for the serial number, the capabilities and
+ * HMAC-SHA1 challenge-response. Like a YubiKey, it pads challenges to 64 bytes before computing
+ * the response and does not wait for touch, as presenting the YubiKey counts as user presence.
+ * Other applets, e.g. OATH, are not simulated.
+ * </p>
+ */
+public class SimulatedNfcYubiKey implements NfcTransport {
+	private static final byte[] CHALLENGE_AID = new byte[]{(byte) 0xa0, 0x00, 0x00, 0x05, 0x27, 0x20, 0x01};
+
+	private static final byte INS_SELECT = (byte) 0xa4;
+	private static final byte INS_PUT    = 0x01;
+	private static final byte P1_DF_NAME = 0x04;
+
+	private static final int SW_SUCCESS                   = 0x9000;
+	private static final int SW_WRONG_LENGTH              = 0x6700;
+	private static final int SW_WRONG_DATA                = 0x6a80;
+	private static final int SW_FILE_NOT_FOUND            = 0x6a82;
+	private static final int SW_INSTRUCTION_NOT_SUPPORTED = 0x6d00;
+	private static final int SW_CLASS_NOT_SUPPORTED       = 0x6e00;
+
+	private static final int STATUS_LENGTH = 6;
+
+	private final SimulatedFirmware firmware;
+	private final byte[]            challenge = new byte[ReferenceHmacSha1.CHALLENGE_LENGTH];
+
+	private       boolean connected;
+	private       boolean appletSelected;
+	private       boolean extendedLengthApduSupported;
+	private       int     maxTransceiveLength = 261;
+	private       int     timeoutMillis;
+	private       long    responseLatencyNanos;
+	private       int     commandsReceived;
+
+	/**
+	 * @param firmware The simulated YubiKey, may be shared with a {@link SimulatedYubiKey}.
+	 */
+	public SimulatedNfcYubiKey(final SimulatedFirmware firmware) {
+		this.firmware = firmware;
+	}
+
+	/**
+	 * Sets how long each command takes to be answered. Unlike the USB simulator, the calling
+	 * thread is actually blocked for that time, as there is no status to poll.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setResponseLatency(final long latency, final TimeUnit unit) {
+		this.responseLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * @param supported Whether the simulated NFC controller supports extended length APDUs. False
+	 *                  by default.
+	 */
+	public synchronized void setExtendedLengthApduSupported(final boolean supported) {
+		this.extendedLengthApduSupported = supported;
+	}
+
+	/**
+	 * @param maxTransceiveLength The maximum length of a command APDU accepted by the simulated NFC
+	 *                            controller, 261 by default.
+	 */
+	public synchronized void setMaxTransceiveLength(final int maxTransceiveLength) {
+		this.maxTransceiveLength = maxTransceiveLength;
+	}
+
+	/**
+	 * @return Number of command APDUs received so far.
+	 */
+	public synchronized int getCommandsReceived() {
+		return this.commandsReceived;
+	}
+
+	/**
+	 * @return The timeout most recently set by the driver, in milliseconds.
+	 */
+	public synchronized int getTimeout() {
+		return this.timeoutMillis;
+	}
+
+	@Override
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public synchronized void connect() {
+		this.connected = true;
+		this.appletSelected = false;
+	}
+
+	@Override
+	public synchronized void close() {
+		this.connected = false;
+		this.appletSelected = false;
+	}
+
+	@Override
+	public synchronized void setTimeout(final int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public synchronized boolean isExtendedLengthApduSupported() {
+		return this.extendedLengthApduSupported;
+	}
+
+	@Override
+	public synchronized int getMaxTransceiveLength() {
+		return this.maxTransceiveLength;
+	}
+
+	@Override
+	public synchronized byte[] transceive(final byte[] command) throws IOException {
+		if (!this.connected)
+			throw new IOException("Tag is not connected");
+
+		if (command.length > this.maxTransceiveLength)
+			throw new IOException("Transceive length exceeds supported maximum");
+
+		this.commandsReceived++;
+
+		if (this.responseLatencyNanos > 0)
+			LockSupport.parkNanos(this.responseLatencyNanos);
+
+		if (command.length < 4)
+			return statusWord(SW_WRONG_LENGTH);
+
+		if (command[0] != 0x00)
+			return statusWord(SW_CLASS_NOT_SUPPORTED);
+
+		// Decode the body of short and extended APDUs, the expected length is ignored
+		int dataOffset = 5;
+		int dataLength = 0;
+
+		if (command.length > 5 && command[4] != 0) {
+			dataLength = command[4] & 0xff;
+		} else if (command.length > 5) {
+			if (!this.extendedLengthApduSupported || command.length < 7)
+				return statusWord(SW_WRONG_LENGTH);
+
+			dataOffset = 7;
+			dataLength = ((command[5] & 0xff) << 8) | (command[6] & 0xff);
+		}
+
+		if (dataOffset + dataLength > command.length)
+			return statusWord(SW_WRONG_LENGTH);
+
+		switch (command[1]) {
+			case INS_SELECT:
+				return this.select(command, dataOffset, dataLength);
+			case INS_PUT:
+				if (!this.appletSelected)
+					return statusWord(SW_INSTRUCTION_NOT_SUPPORTED);
+
+				return this.put(command[2], command, dataOffset, dataLength);
+			default:
+				return statusWord(SW_INSTRUCTION_NOT_SUPPORTED);
+		}
+	}
+
+	private byte[] select(final byte[] command, final int dataOffset, final int dataLength) {
+		this.appletSelected = command[2] == P1_DF_NAME && dataLength == CHALLENGE_AID.length
+				&& Arrays.equals(Arrays.copyOfRange(command, dataOffset, dataOffset + dataLength), CHALLENGE_AID);
+
+		if (!this.appletSelected)
+			return statusWord(SW_FILE_NOT_FOUND);
+
+		final byte[] response = new byte[STATUS_LENGTH + 2];
+		this.firmware.writeStatus(response, 0);
+		writeStatusWord(response, SW_SUCCESS);
+
+		return response;
+	}
+
+	private byte[] put(final byte slotAddress, final byte[] command, final int dataOffset, final int dataLength) {
+		if (dataLength > this.challenge.length)
+			return statusWord(SW_WRONG_LENGTH);
+
+		System.arraycopy(command, dataOffset, this.challenge, 0, dataLength);
+		Arrays.fill(this.challenge, dataLength, this.challenge.length, (byte) 0);
+
+		final byte[] data = this.firmware.process(slotAddress, this.challenge, 0);
+
+		if (data == null)
+			return statusWord(SW_WRONG_DATA);
+
+		final byte[] response = Arrays.copyOf(data, data.length + 2);
+		writeStatusWord(response, SW_SUCCESS);
+
+		return response;
+	}
+
+	private static byte[] statusWord(final int statusWord) {
+		final byte[] response = new byte[2];
+		writeStatusWord(response, statusWord);
+
+		return response;
+	}
+
+	private static void writeStatusWord(final byte[] response, final int statusWord) {
+		response[response.length - 2] = (byte) (statusWord >> 8);
+		response[response.length - 1] = (byte) statusWord;
+	}
+}
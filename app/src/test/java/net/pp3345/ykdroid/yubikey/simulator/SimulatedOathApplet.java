@@ -0,0 +1,296 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.NfcTransport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Simulates the YKOATH applet of a YubiKey connected via NFC on the JVM, so that the OATH support
+ * of the {@link net.pp3345.ykdroid.yubikey.NfcYubiKey} driver can be exercised and benchmarked
+ * without a device.
+ * <p>
+ * The simulator answers SELECT, LIST, CALCULATE and CALCULATE ALL (truncated responses only) for
+ * HMAC-SHA1 credentials without an access code. Like a YubiKey, it splits responses that exceed
+ * a short APDU into chunks that must be retrieved with SEND REMAINING, and does not calculate
+ * HOTP credentials as part of CALCULATE ALL.
+ * </p>
+ */
+public class SimulatedOathApplet implements NfcTransport {
+	private static final byte[] OATH_AID = new byte[]{(byte) 0xa0, 0x00, 0x00, 0x05, 0x27, 0x21, 0x01};
+
+	private static final byte INS_SELECT         = (byte) 0xa4;
+	private static final byte INS_CALCULATE_ALL  = (byte) 0xa4;
+	private static final byte INS_LIST           = (byte) 0xa1;
+	private static final byte INS_CALCULATE      = (byte) 0xa2;
+	private static final byte INS_SEND_REMAINING = (byte) 0xa5;
+	private static final byte P1_DF_NAME         = 0x04;
+
+	private static final byte TAG_NAME      = (byte) 0x71;
+	private static final byte TAG_NAME_LIST = (byte) 0x72;
+	private static final byte TAG_CHALLENGE = (byte) 0x74;
+	private static final byte TAG_TRUNCATED = (byte) 0x76;
+	private static final byte TAG_HOTP      = (byte) 0x77;
+	private static final byte TAG_VERSION   = (byte) 0x79;
+
+	private static final int TYPE_HOTP    = 0x10;
+	private static final int TYPE_TOTP    = 0x20;
+	private static final int ALGORITHM_SHA1 = 0x01;
+
+	private static final int SW_SUCCESS                   = 0x9000;
+	private static final int SW_WRONG_DATA                = 0x6a80;
+	private static final int SW_NO_SUCH_OBJECT            = 0x6984;
+	private static final int SW_FILE_NOT_FOUND            = 0x6a82;
+	private static final int SW_INSTRUCTION_NOT_SUPPORTED = 0x6d00;
+	private static final int SW1_MORE_DATA_AVAILABLE      = 0x61;
+
+	private static final int MAX_CHUNK_LENGTH = 0xff;
+
+	private static class Credential {
+		private final byte[]  name;
+		private final byte[]  secret;
+		private final int     digits;
+		private final boolean hotp;
+
+		Credential(final String name, final byte[] secret, final int digits, final boolean hotp) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.secret = secret.clone();
+			this.digits = digits;
+			this.hotp = hotp;
+		}
+	}
+
+	private final List<Credential> credentials = new ArrayList<>();
+
+	private       boolean connected;
+	private       boolean selected;
+	private       byte[]  remaining;
+	private       long    responseLatencyNanos;
+	private       int     commandsReceived;
+
+	/**
+	 * Adds a TOTP credential with a period of 30 seconds.
+	 *
+	 * @param name   The name of the credential.
+	 * @param secret The HMAC-SHA1 key.
+	 * @param digits The number of digits of the codes.
+	 */
+	public synchronized void addTotpCredential(final String name, final byte[] secret, final int digits) {
+		this.credentials.add(new Credential(name, secret, digits, false));
+	}
+
+	/**
+	 * Adds a HOTP credential. Its counter is not simulated, codes are always calculated for the
+	 * challenge sent by the host.
+	 *
+	 * @param name   The name of the credential.
+	 * @param secret The HMAC-SHA1 key.
+	 * @param digits The number of digits of the codes.
+	 */
+	public synchronized void addHotpCredential(final String name, final byte[] secret, final int digits) {
+		this.credentials.add(new Credential(name, secret, digits, true));
+	}
+
+	/**
+	 * Sets how long each command takes to be answered. The calling thread is blocked for that
+	 * time.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setResponseLatency(final long latency, final TimeUnit unit) {
+		this.responseLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * @return Number of command APDUs received so far, including SEND REMAINING.
+	 */
+	public synchronized int getCommandsReceived() {
+		return this.commandsReceived;
+	}
+
+	@Override
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public synchronized void connect() {
+		this.connected = true;
+		this.selected = false;
+	}
+
+	@Override
+	public synchronized void close() {
+		this.connected = false;
+		this.selected = false;
+	}
+
+	@Override
+	public void setTimeout(final int timeoutMillis) {
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return false;
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return 261;
+	}
+
+	@Override
+	public synchronized byte[] transceive(final byte[] command) throws IOException {
+		if (!this.connected)
+			throw new IOException("Tag is not connected");
+
+		this.commandsReceived++;
+
+		if (this.responseLatencyNanos > 0)
+			LockSupport.parkNanos(this.responseLatencyNanos);
+
+		final int dataLength = command.length > 5 ? command[4] & 0xff : 0;
+
+		if (command[1] == INS_SEND_REMAINING) {
+			if (this.remaining == null)
+				return statusWord(SW_INSTRUCTION_NOT_SUPPORTED);
+
+			return this.respond(this.remaining);
+		}
+
+		this.remaining = null;
+
+		if (command[1] == INS_SELECT && command[2] == P1_DF_NAME) {
+			this.selected = Arrays.equals(Arrays.copyOfRange(command, 5, 5 + dataLength), OATH_AID);
+
+			return this.selected ? this.respond(new byte[]{TAG_VERSION, 3, 4, 3, 7}) : statusWord(SW_FILE_NOT_FOUND);
+		}
+
+		if (!this.selected)
+			return statusWord(SW_INSTRUCTION_NOT_SUPPORTED);
+
+		switch (command[1]) {
+			case INS_LIST:
+				return this.list();
+			case INS_CALCULATE_ALL:
+				return this.calculateAll(command, dataLength);
+			case INS_CALCULATE:
+				return this.calculate(command, dataLength);
+			default:
+				return statusWord(SW_INSTRUCTION_NOT_SUPPORTED);
+		}
+	}
+
+	private byte[] list() {
+		final ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+
+		for (final Credential credential : this.credentials) {
+			buffer.put(TAG_NAME_LIST);
+			buffer.put((byte) (credential.name.length + 1));
+			buffer.put((byte) ((credential.hotp ? TYPE_HOTP : TYPE_TOTP) | ALGORITHM_SHA1));
+			buffer.put(credential.name);
+		}
+
+		return this.respond(Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+
+	private byte[] calculateAll(final byte[] command, final int dataLength) {
+		if (dataLength < 2 || command[5] != TAG_CHALLENGE)
+			return statusWord(SW_WRONG_DATA);
+
+		final byte[]     challenge = Arrays.copyOfRange(command, 7, 7 + (command[6] & 0xff));
+		final ByteBuffer buffer    = ByteBuffer.allocate(0x10000);
+
+		for (final Credential credential : this.credentials) {
+			buffer.put(TAG_NAME);
+			buffer.put((byte) credential.name.length);
+			buffer.put(credential.name);
+
+			if (credential.hotp) {
+				buffer.put(TAG_HOTP);
+				buffer.put((byte) 0);
+			} else {
+				putTruncated(buffer, credential, challenge);
+			}
+		}
+
+		return this.respond(Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+
+	private byte[] calculate(final byte[] command, final int dataLength) {
+		if (dataLength < 2 || command[5] != TAG_NAME)
+			return statusWord(SW_WRONG_DATA);
+
+		final byte[] name            = Arrays.copyOfRange(command, 7, 7 + (command[6] & 0xff));
+		final int    challengeOffset = 7 + name.length;
+
+		if (challengeOffset + 2 > 5 + dataLength || command[challengeOffset] != TAG_CHALLENGE)
+			return statusWord(SW_WRONG_DATA);
+
+		final byte[] challenge = Arrays.copyOfRange(command, challengeOffset + 2, challengeOffset + 2 + (command[challengeOffset + 1] & 0xff));
+
+		for (final Credential credential : this.credentials) {
+			if (Arrays.equals(credential.name, name)) {
+				final ByteBuffer buffer = ByteBuffer.allocate(7);
+				putTruncated(buffer, credential, challenge);
+
+				return this.respond(buffer.array());
+			}
+		}
+
+		return statusWord(SW_NO_SUCH_OBJECT);
+	}
+
+	private static void putTruncated(final ByteBuffer buffer, final Credential credential, final byte[] challenge) {
+		final byte[] hmac;
+
+		try {
+			final Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(credential.secret, "HmacSHA1"));
+			hmac = mac.doFinal(challenge);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// RFC 4226 5.3 dynamic truncation
+		final int offset = hmac[hmac.length - 1] & 0xf;
+
+		buffer.put(TAG_TRUNCATED);
+		buffer.put((byte) 5);
+		buffer.put((byte) credential.digits);
+		buffer.put((byte) (hmac[offset] & 0x7f));
+		buffer.put(hmac, offset + 1, 3);
+	}
+
+	private byte[] respond(final byte[] data) {
+		final int    length   = Math.min(data.length, MAX_CHUNK_LENGTH);
+		final byte[] response = Arrays.copyOf(data, length + 2);
+
+		if (length < data.length) {
+			this.remaining = Arrays.copyOfRange(data, length, data.length);
+			response[length] = (byte) SW1_MORE_DATA_AVAILABLE;
+			response[length + 1] = (byte) Math.min(this.remaining.length, MAX_CHUNK_LENGTH);
+		} else {
+			this.remaining = null;
+			response[length] = (byte) (SW_SUCCESS >> 8);
+			response[length + 1] = (byte) SW_SUCCESS;
+		}
+
+		return response;
+	}
+
+	private static byte[] statusWord(final int statusWord) {
+		return new byte[]{(byte) (statusWord >> 8), (byte) statusWord};
+	}
+}
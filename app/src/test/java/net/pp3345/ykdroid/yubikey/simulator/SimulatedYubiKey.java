@@ -0,0 +1,315 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.CRC16;
+import net.pp3345.ykdroid.yubikey.HidTransport;
+import net.pp3345.ykdroid.yubikey.Slot;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the OTP interface of a YubiKey connected via USB on the JVM, so that the
+ * {@link net.pp3345.ykdroid.yubikey.UsbYubiKey} driver can be exercised and benchmarked without
+ * a device or the Android USB host API.
+ * <p>
+ * The simulator models the status report, the WRITE, RESPONSE_PENDING and WAITING flags, the
+ * sequence numbers of written and read reports, the CRC of frames and responses, and HMAC-SHA1
+ * challenge-response as well as the serial number and capabilities requests of the
+ * {@link SimulatedFirmware}. Writes keep the WRITE flag set for a configurable time, responses
+ * become available after a configurable processing latency and slots that require touch wait for
+ * a simulated button press. The behavior only depends on the configuration and on the time that
+ * passed between the reports, so identical latencies yield identical report sequences.
+ * </p>
+ */
+public class SimulatedYubiKey implements HidTransport {
+	private static final int REPORT_LENGTH         = 8;
+	private static final int PAYLOAD_LENGTH        = 64;
+	private static final int FRAME_LENGTH          = 70;
+	private static final int LAST_SEQUENCE         = FRAME_LENGTH / (REPORT_LENGTH - 1) - 1;
+	private static final int SLOT_OFFSET           = PAYLOAD_LENGTH;
+	private static final int CRC_OFFSET            = PAYLOAD_LENGTH + 1;
+	private static final int SEQUENCE_MASK         = 0b11111;
+	private static final int FLAG_WAITING          = 0x20;
+	private static final int FLAG_RESPONSE_PENDING = 0x40;
+	private static final int FLAG_WRITE            = 0x80;
+
+	/**
+	 * Time after which a YubiKey gives up waiting for the button to be pressed.
+	 */
+	private static final long TOUCH_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(15);
+
+	private final SimulatedFirmware firmware;
+	private final byte[]            frame = new byte[FRAME_LENGTH];
+
+	private       long    writeLatencyNanos;
+	private       long    responseLatencyNanos;
+	private       long    touchDelayNanos;
+	private       long    transferLatencyNanos;
+	private       long    claimLatencyNanos;
+	private       boolean claimed;
+	private       long    busyUntil;
+	private       long    touchUntil;
+	private       boolean touchTimedOut;
+	private       long    responseAt;
+	private       byte[]  response;
+	private       int     responseSequence;
+	private       int     featureReportsRead;
+	private       int     featureReportsWritten;
+	private       int     droppedReports;
+	private       int     corruptFrames;
+
+	/**
+	 * @param firmware The simulated YubiKey, may be shared with a {@link SimulatedNfcYubiKey}.
+	 */
+	public SimulatedYubiKey(final SimulatedFirmware firmware) {
+		this.firmware = firmware;
+	}
+
+	/**
+	 * Sets how long the WRITE flag stays set after each written report. Reports written while the
+	 * flag is set are dropped, just like a YubiKey does.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setWriteLatency(final long latency, final TimeUnit unit) {
+		this.writeLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long it takes to compute a response once a frame was received (and the button was
+	 * pressed, if necessary).
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setResponseLatency(final long latency, final TimeUnit unit) {
+		this.responseLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long each feature report transfer takes, e.g. to account for the USB frame interval.
+	 * The calling thread is blocked for that time before the report is processed.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setTransferLatency(final long latency, final TimeUnit unit) {
+		this.transferLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long claiming and releasing the interface takes, e.g. to account for detaching and
+	 * re-attaching the kernel HID driver. The calling thread is blocked for that time.
+	 *
+	 * @param latency Latency, 0 by default.
+	 * @param unit    Unit of the latency.
+	 */
+	public synchronized void setClaimLatency(final long latency, final TimeUnit unit) {
+		this.claimLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets how long the simulated user takes to press the button when a slot requires touch.
+	 *
+	 * @param delay Delay, 0 by default. A negative value means that the button is never pressed,
+	 *              in which case the simulated YubiKey gives up after 15 seconds.
+	 * @param unit  Unit of the delay.
+	 */
+	public synchronized void setTouchDelay(final long delay, final TimeUnit unit) {
+		this.touchDelayNanos = delay < 0 ? -1 : unit.toNanos(delay);
+	}
+
+	/**
+	 * @return Number of feature reports read so far.
+	 */
+	public synchronized int getFeatureReportsRead() {
+		return this.featureReportsRead;
+	}
+
+	/**
+	 * @return Number of feature reports written so far, including dropped ones.
+	 */
+	public synchronized int getFeatureReportsWritten() {
+		return this.featureReportsWritten;
+	}
+
+	/**
+	 * @return Number of feature reports that were dropped because they were written while the
+	 * WRITE flag was set.
+	 */
+	public synchronized int getDroppedReports() {
+		return this.droppedReports;
+	}
+
+	/**
+	 * @return Number of frames that were ignored because of a CRC mismatch.
+	 */
+	public synchronized int getCorruptFrames() {
+		return this.corruptFrames;
+	}
+
+	@Override
+	public synchronized boolean claim() {
+		if (this.claimed)
+			return false;
+
+		if (this.claimLatencyNanos > 0)
+			LockSupport.parkNanos(this.claimLatencyNanos);
+
+		this.claimed = true;
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+		if (this.claimLatencyNanos > 0)
+			LockSupport.parkNanos(this.claimLatencyNanos);
+
+		this.claimed = false;
+	}
+
+	@Override
+	public synchronized int getFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		if (length != REPORT_LENGTH)
+			return -1;
+
+		this.transfer();
+
+		final long now = System.nanoTime();
+
+		this.featureReportsRead++;
+		Arrays.fill(report, 0, REPORT_LENGTH, (byte) 0);
+
+		if (now - this.busyUntil < 0) {
+			this.writeStatus(report, FLAG_WRITE);
+			return REPORT_LENGTH;
+		}
+
+		if (this.response != null && now - this.touchUntil < 0) {
+			this.writeStatus(report, FLAG_WAITING);
+			return REPORT_LENGTH;
+		}
+
+		if (this.response != null && this.touchTimedOut) {
+			// Nobody pressed the button
+			this.response = null;
+			this.touchTimedOut = false;
+		}
+
+		if (this.response == null || now - this.responseAt < 0) {
+			this.writeStatus(report, 0);
+			return REPORT_LENGTH;
+		}
+
+		final int offset = this.responseSequence * (REPORT_LENGTH - 1);
+
+		if (offset >= this.response.length) {
+			// Sequence number 0 signals the end of the response
+			report[REPORT_LENGTH - 1] = (byte) FLAG_RESPONSE_PENDING;
+			this.response = null;
+			return REPORT_LENGTH;
+		}
+
+		System.arraycopy(this.response, offset, report, 0, Math.min(REPORT_LENGTH - 1, this.response.length - offset));
+		report[REPORT_LENGTH - 1] = (byte) (FLAG_RESPONSE_PENDING | this.responseSequence++);
+
+		return REPORT_LENGTH;
+	}
+
+	@Override
+	public synchronized int setFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		if (length != REPORT_LENGTH)
+			return -1;
+
+		this.transfer();
+
+		final long now = System.nanoTime();
+
+		this.featureReportsWritten++;
+
+		if (now - this.busyUntil < 0) {
+			this.droppedReports++;
+			return REPORT_LENGTH;
+		}
+
+		if ((report[REPORT_LENGTH - 1] & FLAG_WRITE) == 0)
+			return REPORT_LENGTH;
+
+		final int sequence = report[REPORT_LENGTH - 1] & SEQUENCE_MASK;
+		if (sequence > LAST_SEQUENCE)
+			return REPORT_LENGTH;
+
+		// Sequences consisting of zeroes only may be skipped by the host
+		if (sequence == 0)
+			Arrays.fill(this.frame, (byte) 0);
+
+		System.arraycopy(report, 0, this.frame, sequence * (REPORT_LENGTH - 1), REPORT_LENGTH - 1);
+		this.busyUntil = now + this.writeLatencyNanos;
+
+		if (sequence == LAST_SEQUENCE)
+			this.processFrame(now);
+
+		return REPORT_LENGTH;
+	}
+
+	private void transfer() {
+		if (this.transferLatencyNanos > 0)
+			LockSupport.parkNanos(this.transferLatencyNanos);
+	}
+
+	private void writeStatus(final byte[] report, final int flags) {
+		this.firmware.writeStatus(report, 1);
+		report[REPORT_LENGTH - 1] = (byte) flags;
+	}
+
+	private void processFrame(final long now) {
+		// Any new frame discards a pending response
+		this.response = null;
+		this.touchUntil = now;
+		this.touchTimedOut = false;
+
+		final char crc = (char) ((this.frame[CRC_OFFSET] & 0xff) | ((this.frame[CRC_OFFSET + 1] & 0xff) << 8));
+		if (CRC16.compute(this.frame, 0, PAYLOAD_LENGTH) != crc) {
+			this.corruptFrames++;
+			return;
+		}
+
+		final byte   slot = this.frame[SLOT_OFFSET];
+		final byte[] data = this.firmware.process(slot, this.frame, 0);
+
+		// No response at all, e.g. to the dummy frame used to reset the YubiKey, leaves it idle
+		if (data == null)
+			return;
+
+		final boolean requiresTouch = this.firmware.requiresTouch(slot);
+		long          start         = now;
+
+		if (requiresTouch) {
+			this.touchTimedOut = this.touchDelayNanos < 0;
+			start += this.touchTimedOut ? TOUCH_TIMEOUT_NS : this.touchDelayNanos;
+		}
+
+		// The capabilities are prefixed by their length and not protected by a CRC
+		this.respond(data, start, slot != Slot.YUBIKEY_4_CAPABILITIES.getAddress());
+
+		// The WAITING flag is only cleared once the response is available
+		if (requiresTouch)
+			this.touchUntil = this.responseAt;
+	}
+
+	private void respond(final byte[] data, final long start, final boolean appendCRC) {
+		this.response = Arrays.copyOf(data, data.length + (appendCRC ? 2 : 0));
+
+		if (appendCRC) {
+			final char crc = (char) ~CRC16.compute(data, 0, data.length);
+			this.response[data.length] = (byte) crc;
+			this.response[data.length + 1] = (byte) (crc >> 8);
+		}
+
+		this.responseSequence = 0;
+		this.responseAt = start + this.responseLatencyNanos;
+	}
+
+}
@@ -0,0 +1,151 @@
+package net.pp3345.ykdroid.yubikey.simulator;
+
+import net.pp3345.ykdroid.yubikey.CcidTransport;
+import net.pp3345.ykdroid.yubikey.MetricsListener;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs challenge-response requests of the {@link UsbYubiKey} driver against a
+ * {@link SimulatedYubiKey} on the JVM and prints the throughput, the end-to-end latency and the
+ * time spent in each {@link MetricsListener.Phase}. Then runs the same requests via the CCID
+ * interface against a {@link SimulatedCcidYubiKey} with the same latencies for comparison.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.simulator.SimulatorBenchmark
+ * -PbenchmarkArgs="[iterations] [write latency &micro;s] [response latency &micro;s] [transfer latency &micro;s]"</code>
+ * </p>
+ */
+public final class SimulatorBenchmark {
+	private static final byte[] SECRET    = "0123456789abcdefghij".getBytes();
+	private static final byte[] CHALLENGE = "ykDroid simulator benchmark".getBytes();
+
+	private SimulatorBenchmark() {
+	}
+
+	private static class PhaseStatistics implements MetricsListener {
+		private final Map<Phase, long[]> statistics = new EnumMap<>(Phase.class);
+
+		@Override
+		public void onPhaseCompleted(final Phase phase, final long durationNanos, final int polls, final int bytesTransferred) {
+			long[] values = this.statistics.get(phase);
+
+			if (values == null) {
+				values = new long[3];
+				this.statistics.put(phase, values);
+			}
+
+			values[0]++;
+			values[1] += durationNanos;
+			values[2] += polls;
+		}
+
+		@Override
+		public void onError(final Phase phase, final Exception cause) {
+			System.err.println(phase + " failed: " + cause);
+		}
+
+		void clear() {
+			this.statistics.clear();
+		}
+
+		long getDuration(final Phase phase) {
+			final long[] values = this.statistics.get(phase);
+
+			return values != null ? values[1] : 0;
+		}
+
+		void print(final int operations) {
+			for (final Map.Entry<Phase, long[]> entry : this.statistics.entrySet()) {
+				final long[] values = entry.getValue();
+
+				System.out.printf("%-14s %8.1f us/op %8.2f polls/op%n", entry.getKey(), values[1] / 1000.0 / operations, (double) values[2] / operations);
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws YubiKeyException {
+		final int  iterations      = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final long writeLatency    = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		final long responseLatency = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+		final long transferLatency = args.length > 3 ? Long.parseLong(args[3]) : 125;
+
+		final SimulatedFirmware firmware = new SimulatedFirmware(1234567, 4, 3, 7);
+		firmware.programHmacSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+
+		benchmarkHid(firmware, iterations, writeLatency, responseLatency, transferLatency);
+		benchmarkCcid(firmware, iterations, responseLatency, transferLatency);
+	}
+
+	private static void benchmarkHid(final SimulatedFirmware firmware, final int iterations, final long writeLatency, final long responseLatency, final long transferLatency) throws YubiKeyException {
+		final SimulatedYubiKey simulator = new SimulatedYubiKey(firmware);
+		simulator.setWriteLatency(writeLatency, TimeUnit.MICROSECONDS);
+		simulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		simulator.setTransferLatency(transferLatency, TimeUnit.MICROSECONDS);
+
+		final UsbYubiKey      yubiKey    = new UsbYubiKey(UsbYubiKey.Type.YK4_OTP, simulator);
+		final PhaseStatistics statistics = new PhaseStatistics();
+		yubiKey.setMetricsListener(statistics);
+
+		// Let the polling schedule learn the latencies of the simulator first
+		for (int i = 0; i < Math.min(iterations, 100); i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		statistics.clear();
+		final long[] latencies      = new long[iterations];
+		final int    reportsRead    = simulator.getFeatureReportsRead();
+		final int    reportsWritten = simulator.getFeatureReportsWritten();
+		final long   start          = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			final long requestStart = System.nanoTime();
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			latencies[i] = System.nanoTime() - requestStart;
+		}
+
+		final long duration = System.nanoTime() - start;
+
+		System.out.printf("HID: %d requests in %.1f ms, %.1f requests/s%n", iterations, duration / 1e6, iterations * 1e9 / duration);
+		System.out.printf("%.1f frames/s written, latency %.2f ms median, %.2f ms 99th percentile%n", iterations * 1e9 / statistics.getDuration(MetricsListener.Phase.WRITE), percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6);
+		System.out.printf("%.2f reports read/op, %.2f reports written/op, %d dropped, %d corrupt frames%n", (double) (simulator.getFeatureReportsRead() - reportsRead) / iterations, (double) (simulator.getFeatureReportsWritten() - reportsWritten) / iterations, simulator.getDroppedReports(), simulator.getCorruptFrames());
+		statistics.print(iterations);
+	}
+
+	private static long percentile(final long[] values, final int percentile) {
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+
+		return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+	}
+
+	private static void benchmarkCcid(final SimulatedFirmware firmware, final int iterations, final long responseLatency, final long transferLatency) throws YubiKeyException {
+		final SimulatedCcidYubiKey simulator = new SimulatedCcidYubiKey(firmware);
+		simulator.setResponseLatency(responseLatency, TimeUnit.MICROSECONDS);
+		simulator.setTransferLatency(transferLatency, TimeUnit.MICROSECONDS);
+
+		final UsbYubiKey      yubiKey    = new UsbYubiKey(UsbYubiKey.Type.YK4_OTP_CCID, null, new CcidTransport(simulator));
+		final PhaseStatistics statistics = new PhaseStatistics();
+		yubiKey.setMetricsListener(statistics);
+
+		for (int i = 0; i < Math.min(iterations, 100); i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		statistics.clear();
+		final int  transfers = simulator.getTransfers();
+		final long start     = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+
+		final long duration = System.nanoTime() - start;
+
+		System.out.printf("CCID: %d requests in %.1f ms, %.1f requests/s%n", iterations, duration / 1e6, iterations * 1e9 / duration);
+		System.out.printf("%.2f bulk transfers/op%n", (double) (simulator.getTransfers() - transfers) / iterations);
+		statistics.print(iterations);
+	}
+}
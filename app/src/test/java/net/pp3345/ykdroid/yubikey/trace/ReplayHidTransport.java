@@ -0,0 +1,215 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import net.pp3345.ykdroid.yubikey.HidTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link HidTransport} that replays a {@link Trace} recorded by a {@link RecordingHidTransport},
+ * including the timing of the YubiKey, so that e.g. slow YubiKeys or touch delays can be
+ * benchmarked repeatedly and offline.
+ * <p>
+ * The driver being replayed may poll differently than the recorded one. The trace is therefore
+ * split into segments starting at each claim and each written report. Within a segment, status
+ * reports are replayed by time: a read returns the last report the YubiKey had returned at the
+ * same time after the start of the segment. Once a report with the RESPONSE_PENDING flag is
+ * reached, the response is replayed report by report. Every call takes as long as the recorded
+ * one.
+ * </p>
+ * <p>
+ * Written reports are matched to the next recorded report with the same sequence number. If there
+ * is none, the trace has diverged and the write fails.
+ * </p>
+ */
+public class ReplayHidTransport implements HidTransport {
+	private static final int REPORT_LENGTH         = 8;
+	private static final int FLAG_RESPONSE_PENDING = 0x40;
+	private static final int FLAGS                 = 0xe0;
+
+	private static class Segment {
+		private final TraceRecord       start;
+		private final List<TraceRecord> reports = new ArrayList<>();
+
+		Segment(final TraceRecord start) {
+			this.start = start;
+		}
+
+		long getOffset(final TraceRecord report) {
+			return report.getStartNanos() - (this.start != null ? this.start : this.reports.get(0)).getStartNanos();
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<>();
+	private final byte[]        idleReport;
+
+	private       int     segment;
+	private       long    segmentStart;
+	private       int     responseReport = -1;
+	private       boolean started;
+	private       int     mismatchedWrites;
+
+	/**
+	 * @param trace Trace of kind {@link Trace.Kind#HID}.
+	 */
+	public ReplayHidTransport(final Trace trace) {
+		if (trace.getKind() != Trace.Kind.HID)
+			throw new IllegalArgumentException("Trace kind must be " + Trace.Kind.HID);
+
+		Segment current    = new Segment(null);
+		byte[]  idleReport = new byte[REPORT_LENGTH];
+		boolean foundIdle  = false;
+		this.segments.add(current);
+
+		for (final TraceRecord record : trace.getRecords()) {
+			switch (record.getType()) {
+				case TraceRecord.CLAIM:
+				case TraceRecord.SET_FEATURE_REPORT:
+					current = new Segment(record);
+					this.segments.add(current);
+					break;
+				case TraceRecord.GET_FEATURE_REPORT:
+					if (record.getData().length != REPORT_LENGTH)
+						break;
+
+					current.reports.add(record);
+
+					if (!foundIdle && (record.getData()[REPORT_LENGTH - 1] & FLAGS) == 0) {
+						idleReport = record.getData();
+						foundIdle = true;
+					}
+					break;
+			}
+		}
+
+		// Returned when the driver reads more reports than were recorded
+		this.idleReport = idleReport;
+	}
+
+	/**
+	 * @return Number of written reports that matched a recorded report by sequence number only.
+	 */
+	public synchronized int getMismatchedWrites() {
+		return this.mismatchedWrites;
+	}
+
+	@Override
+	public synchronized boolean claim() {
+		final long start = System.nanoTime();
+
+		for (int i = this.segment + 1; i < this.segments.size(); i++) {
+			final TraceRecord record = this.segments.get(i).start;
+
+			if (record.getType() == TraceRecord.CLAIM) {
+				this.enterSegment(i, start);
+				sleepUntil(start + record.getDurationNanos());
+
+				return record.getResult() != 0;
+			}
+		}
+
+		// Replaying a trace that was recorded while the interface was already claimed
+		if (!this.started)
+			this.enterSegment(0, start);
+
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+	}
+
+	@Override
+	public synchronized int getFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		final long start = System.nanoTime();
+
+		if (!this.started)
+			this.enterSegment(0, start);
+
+		final List<TraceRecord> reports = this.segments.get(this.segment).reports;
+		final TraceRecord       record;
+
+		if (this.responseReport >= 0) {
+			record = this.responseReport < reports.size() ? reports.get(this.responseReport++) : null;
+		} else {
+			record = this.findReport(start - this.segmentStart);
+
+			if (record != null && (record.getData()[REPORT_LENGTH - 1] & FLAG_RESPONSE_PENDING) != 0)
+				this.responseReport = reports.indexOf(record) + 1;
+		}
+
+		if (record == null) {
+			System.arraycopy(this.idleReport, 0, report, 0, Math.min(length, REPORT_LENGTH));
+			return Math.min(length, REPORT_LENGTH);
+		}
+
+		System.arraycopy(record.getData(), 0, report, 0, Math.min(length, REPORT_LENGTH));
+		sleepUntil(start + record.getDurationNanos());
+
+		return record.getResult();
+	}
+
+	@Override
+	public synchronized int setFeatureReport(final byte[] report, final int length, final int timeoutMillis) {
+		final long start = System.nanoTime();
+
+		for (int i = this.segment + 1; i < this.segments.size(); i++) {
+			final TraceRecord record = this.segments.get(i).start;
+
+			if (record.getType() != TraceRecord.SET_FEATURE_REPORT || record.getData().length != length || record.getData()[length - 1] != report[length - 1])
+				continue;
+
+			for (int j = 0; j < length; j++) {
+				if (record.getData()[j] != report[j]) {
+					this.mismatchedWrites++;
+					break;
+				}
+			}
+
+			this.enterSegment(i, start);
+			sleepUntil(start + record.getDurationNanos());
+
+			return record.getResult();
+		}
+
+		// The trace diverged
+		return -1;
+	}
+
+	private void enterSegment(final int segment, final long start) {
+		this.segment = segment;
+		this.segmentStart = start;
+		this.responseReport = -1;
+		this.started = true;
+	}
+
+	/**
+	 * Finds the last report of the current segment that was read no later than the given time after
+	 * the start of the segment, or the first one if there is none. Never skips the start of a
+	 * response.
+	 */
+	private TraceRecord findReport(final long offset) {
+		final Segment segment = this.segments.get(this.segment);
+		TraceRecord   found   = null;
+
+		for (final TraceRecord record : segment.reports) {
+			if (found != null && segment.getOffset(record) > offset)
+				break;
+
+			found = record;
+
+			if ((record.getData()[REPORT_LENGTH - 1] & FLAG_RESPONSE_PENDING) != 0)
+				break;
+		}
+
+		return found;
+	}
+
+	private static void sleepUntil(final long deadline) {
+		long remaining;
+
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+}
@@ -0,0 +1,147 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import net.pp3345.ykdroid.yubikey.NfcTransport;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link NfcTransport} that replays a {@link Trace} recorded by a {@link RecordingNfcTransport},
+ * including the timing of the YubiKey, so that the NFC driver can be benchmarked repeatedly and
+ * offline.
+ * <p>
+ * Connects, closes and transceives are replayed in the recorded order and take as long as the
+ * recorded ones. A command whose header (class, instruction and parameters) differs from the
+ * recorded one means that the trace has diverged and fails like a lost tag.
+ * </p>
+ */
+public class ReplayNfcTransport implements NfcTransport {
+	private static final int HEADER_LENGTH = 4;
+
+	private final List<TraceRecord> records;
+	private       int               position;
+	private       boolean           connected;
+	private       boolean           extendedLengthApduSupported;
+	private       int               maxTransceiveLength = 261;
+
+	/**
+	 * @param trace Trace of kind {@link Trace.Kind#NFC}.
+	 */
+	public ReplayNfcTransport(final Trace trace) {
+		if (trace.getKind() != Trace.Kind.NFC)
+			throw new IllegalArgumentException("Trace kind must be " + Trace.Kind.NFC);
+
+		this.records = trace.getRecords();
+	}
+
+	/**
+	 * The capabilities of the NFC controller are not part of the trace.
+	 *
+	 * @param supported Whether extended length APDUs are supported. False by default.
+	 */
+	public synchronized void setExtendedLengthApduSupported(final boolean supported) {
+		this.extendedLengthApduSupported = supported;
+	}
+
+	/**
+	 * The capabilities of the NFC controller are not part of the trace.
+	 *
+	 * @param maxTransceiveLength The maximum length of a command APDU, 261 by default.
+	 */
+	public synchronized void setMaxTransceiveLength(final int maxTransceiveLength) {
+		this.maxTransceiveLength = maxTransceiveLength;
+	}
+
+	@Override
+	public synchronized boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public synchronized void connect() throws IOException {
+		final long        start  = System.nanoTime();
+		final TraceRecord record = this.next(TraceRecord.CONNECT);
+
+		sleepUntil(start + record.getDurationNanos());
+
+		if (record.getResult() != 0)
+			throw new IOException("Connect failed in trace");
+
+		this.connected = true;
+	}
+
+	@Override
+	public synchronized void close() {
+		final long start = System.nanoTime();
+
+		this.connected = false;
+
+		// The driver may close the connection more often than recorded
+		if (this.position < this.records.size() && this.records.get(this.position).getType() == TraceRecord.CLOSE)
+			sleepUntil(start + this.records.get(this.position++).getDurationNanos());
+	}
+
+	@Override
+	public synchronized void setTimeout(final int timeoutMillis) {
+	}
+
+	@Override
+	public synchronized byte[] transceive(final byte[] command) throws IOException {
+		final long start = System.nanoTime();
+
+		if (!this.connected)
+			throw new IOException("Tag is not connected");
+
+		final TraceRecord record = this.next(TraceRecord.TRANSCEIVE);
+
+		if (command.length < HEADER_LENGTH || record.getData().length < HEADER_LENGTH)
+			throw new IOException("Trace diverged");
+
+		for (int i = 0; i < HEADER_LENGTH; i++) {
+			if (command[i] != record.getData()[i])
+				throw new IOException("Trace diverged");
+		}
+
+		sleepUntil(start + record.getDurationNanos());
+
+		if (record.getResult() != 0) {
+			this.connected = false;
+			throw new IOException("Tag was lost in trace");
+		}
+
+		return record.getResponseData().clone();
+	}
+
+	@Override
+	public synchronized boolean isExtendedLengthApduSupported() {
+		return this.extendedLengthApduSupported;
+	}
+
+	@Override
+	public synchronized int getMaxTransceiveLength() {
+		return this.maxTransceiveLength;
+	}
+
+	/**
+	 * Skips to the next record of a type. Records of other types are skipped, e.g. closes the
+	 * driver being replayed did not issue.
+	 */
+	private TraceRecord next(final byte type) throws IOException {
+		while (this.position < this.records.size()) {
+			final TraceRecord record = this.records.get(this.position++);
+
+			if (record.getType() == type)
+				return record;
+		}
+
+		throw new IOException("End of trace");
+	}
+
+	private static void sleepUntil(final long deadline) {
+		long remaining;
+
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+}
@@ -0,0 +1,161 @@
+package net.pp3345.ykdroid.yubikey.trace;
+
+import net.pp3345.ykdroid.YubiKey;
+import net.pp3345.ykdroid.yubikey.NfcYubiKey;
+import net.pp3345.ykdroid.yubikey.Slot;
+import net.pp3345.ykdroid.yubikey.UsbYubiKey;
+import net.pp3345.ykdroid.yubikey.YubiKeyException;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a trace recorded on a device against the current drivers and prints the time each
+ * operation took. The operations (device information and challenge-response requests) are
+ * reconstructed from the frames and APDUs in the trace, so that the driver sends the same data
+ * to the replayed YubiKey as the recorded one did.
+ * <p>
+ * Usage: <code>./gradlew :app:benchmark -Pbenchmark=net.pp3345.ykdroid.yubikey.trace.TraceReplayBenchmark
+ * -PbenchmarkArgs="&lt;trace file&gt; [repetitions]"</code>
+ * </p>
+ */
+public final class TraceReplayBenchmark {
+	private static final int  REPORT_LENGTH  = 8;
+	private static final int  PAYLOAD_LENGTH = 64;
+	private static final int  FRAME_LENGTH   = 70;
+	private static final int  LAST_SEQUENCE  = FRAME_LENGTH / (REPORT_LENGTH - 1) - 1;
+	private static final byte INS_PUT        = 0x01;
+
+	private TraceReplayBenchmark() {
+	}
+
+	private static class Operation {
+		private final Slot   slot;
+		private final byte[] challenge;
+		private       long   durationNanos;
+		private       int    failures;
+
+		Operation(final Slot slot, final byte[] challenge) {
+			this.slot = slot;
+			this.challenge = challenge;
+		}
+
+		void execute(final YubiKey yubiKey) throws YubiKeyException {
+			if (this.slot == Slot.DEVICE_SERIAL)
+				yubiKey.getDeviceInfo();
+			else
+				yubiKey.challengeResponse(this.slot, this.challenge);
+		}
+
+		@Override
+		public String toString() {
+			return this.slot == Slot.DEVICE_SERIAL ? "getDeviceInfo" : "challengeResponse(" + this.slot + ", " + this.challenge.length + " bytes)";
+		}
+	}
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ./gradlew :app:benchmark -Pbenchmark=" + TraceReplayBenchmark.class.getName() + " -PbenchmarkArgs=\"<trace file> [repetitions]\"");
+			System.exit(2);
+		}
+
+		final int   repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final Trace trace;
+
+		try (final InputStream in = new BufferedInputStream(new FileInputStream(args[0]))) {
+			trace = Trace.read(in);
+		}
+
+		final List<Operation> operations = trace.getKind() == Trace.Kind.HID ? parseFrames(trace) : parseApdus(trace);
+
+		System.out.printf("%s trace with %d records and %d operations%n", trace.getKind(), trace.getRecords().size(), operations.size());
+
+		for (int i = 0; i < repetitions; i++) {
+			// The drivers cache the device information, so every repetition needs a new instance
+			final YubiKey yubiKey = trace.getKind() == Trace.Kind.HID ? new UsbYubiKey(UsbYubiKey.Type.YK_UNKNOWN, new ReplayHidTransport(trace)) : new NfcYubiKey(new ReplayNfcTransport(trace));
+
+			for (final Operation operation : operations) {
+				final long start = System.nanoTime();
+
+				try {
+					operation.execute(yubiKey);
+				} catch (final YubiKeyException e) {
+					operation.failures++;
+				}
+
+				operation.durationNanos += System.nanoTime() - start;
+			}
+		}
+
+		for (final Operation operation : operations)
+			System.out.printf("%-40s %10.2f ms, %d failures%n", operation, operation.durationNanos / 1e6 / repetitions, operation.failures);
+	}
+
+	/**
+	 * Reassembles the frames written to a YubiKey connected via USB.
+	 */
+	private static List<Operation> parseFrames(final Trace trace) {
+		final List<Operation> operations = new ArrayList<>();
+		final byte[]          frame      = new byte[FRAME_LENGTH];
+
+		for (final TraceRecord record : trace.getRecords()) {
+			if (record.getType() != TraceRecord.SET_FEATURE_REPORT || record.getData().length != REPORT_LENGTH)
+				continue;
+
+			final int sequence = record.getData()[REPORT_LENGTH - 1] & 0b11111;
+			if (sequence > LAST_SEQUENCE)
+				continue;
+
+			// Sequences consisting of zeroes only are not written
+			if (sequence == 0)
+				Arrays.fill(frame, (byte) 0);
+
+			System.arraycopy(record.getData(), 0, frame, sequence * (REPORT_LENGTH - 1), REPORT_LENGTH - 1);
+
+			if (sequence == LAST_SEQUENCE) {
+				// The drivers pad challenges with zeroes, so stripping them results in the same frame
+				int length = PAYLOAD_LENGTH;
+				while (length > 0 && frame[length - 1] == 0)
+					length--;
+
+				addOperation(operations, frame[PAYLOAD_LENGTH], Arrays.copyOf(frame, length));
+			}
+		}
+
+		return operations;
+	}
+
+	/**
+	 * Extracts the PUT commands sent to a YubiKey connected via NFC.
+	 */
+	private static List<Operation> parseApdus(final Trace trace) {
+		final List<Operation> operations = new ArrayList<>();
+
+		for (final TraceRecord record : trace.getRecords()) {
+			final byte[] command = record.getData();
+
+			if (record.getType() != TraceRecord.TRANSCEIVE || command.length < 4 || command[0] != 0x00 || command[1] != INS_PUT)
+				continue;
+
+			final int length = command.length > 5 ? command[4] & 0xff : 0;
+			addOperation(operations, command[2], Arrays.copyOfRange(command, 5, Math.min(command.length, 5 + length)));
+		}
+
+		return operations;
+	}
+
+	private static void addOperation(final List<Operation> operations, final byte slotAddress, final byte[] challenge) {
+		if (slotAddress == Slot.DEVICE_SERIAL.getAddress())
+			operations.add(new Operation(Slot.DEVICE_SERIAL, null));
+		else if (slotAddress == Slot.CHALLENGE_HMAC_1.getAddress())
+			operations.add(new Operation(Slot.CHALLENGE_HMAC_1, challenge));
+		else if (slotAddress == Slot.CHALLENGE_HMAC_2.getAddress())
+			operations.add(new Operation(Slot.CHALLENGE_HMAC_2, challenge));
+		// The capabilities are read along with the serial number, other frames are resets
+	}
+}